@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.Term;
+
+/**
+ *  BatchSearch prepares a batch of queries to be evaluated together.
+ *  Queries in a batch often share terms, so the inverted list of each
+ *  distinct (term, field) is read from the index once, materialized,
+ *  and given to every term operator that uses it.  That is the only
+ *  thing the queries share.  Each query is then evaluated on its own,
+ *  by the normal query path (QryEval.evaluateQuery), with its own
+ *  iterators and score list, so the rankings are the ones that queries
+ *  evaluated one at a time produce.  The saving is in reading the
+ *  index, not in evaluating queries.
+ *  <p>
+ *  The queries must be evaluated against the index that the lists were
+ *  read from, and each shared list is materialized until the batch is
+ *  done, so the batch size bounds the memory that is used.
+ *  </p>
+ */
+public class BatchSearch {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final IndexContext context;
+  private final RetrievalModel model;
+
+  //  Counts for the most recent batch.
+
+  private int termInstances = 0;
+  private int distinctTerms = 0;
+  private long postingsRead = 0;
+  private long postingsUsed = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param context The index to search.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   */
+  public BatchSearch (IndexContext context, RetrievalModel model) {
+    this.context = context;
+    this.model = model;
+  }
+
+  /**
+   *  Parse a batch of queries, and give the term operators that use
+   *  the same term the same inverted list.
+   *  @param queries The query strings.
+   *  @return The parsed queries, in the order of the batch, or null
+   *    for a query that is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public List<Qry> prepare (List<String> queries) throws IOException {
+
+    List<Qry> trees = new ArrayList<Qry> ();
+
+    for (String query : queries) {
+      trees.add (QryEval.parseQuery (query, this.model));
+    }
+
+    shareInvertedLists (trees);
+    return trees;
+  }
+
+  /**
+   *  Read the inverted list of each distinct term in a batch once,
+   *  and give it to every term operator that uses it.
+   *  @param trees The parsed queries of the batch.  Null entries are
+   *    ignored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void shareInvertedLists (List<Qry> trees) throws IOException {
+
+    Map<Term,List<QryIopTerm>> users = new LinkedHashMap<Term,List<QryIopTerm>> ();
+
+    for (Qry q : trees) {
+      if (q == null) {
+        continue;
+      }
+
+      for (QryIop iop : q.getIopArgs (new ArrayList<QryIop> ())) {
+        if (iop instanceof QryIopTerm) {
+          Term term = new Term (iop.getField (), ((QryIopTerm) iop).getTerm ());
+          List<QryIopTerm> list = users.get (term);
+
+          if (list == null) {
+            list = new ArrayList<QryIopTerm> ();
+            users.put (term, list);
+          }
+
+          list.add ((QryIopTerm) iop);
+        }
+      }
+    }
+
+    this.termInstances = 0;
+    this.distinctTerms = users.size ();
+    this.postingsRead = 0;
+    this.postingsUsed = 0;
+
+    for (Map.Entry<Term,List<QryIopTerm>> entry : users.entrySet ()) {
+      Term term = entry.getKey ();
+      InvList list = new InvList (this.context, term.text (), term.field ());
+
+      for (QryIopTerm iop : entry.getValue ()) {
+        iop.setSharedInvList (list);
+      }
+
+      this.termInstances += entry.getValue ().size ();
+      this.postingsRead += list.df;
+      this.postingsUsed += (long) list.df * entry.getValue ().size ();
+    }
+  }
+
+  /**
+   *  Get a description of the most recent batch's sharing, e.g., for
+   *  logs.
+   *  @return The description.
+   */
+  public String getSharingSummary () {
+    return this.termInstances + " term uses, " +
+      this.distinctTerms + " distinct terms, " +
+      this.postingsRead + " postings read for " +
+      this.postingsUsed + " used" +
+      ((this.postingsRead > 0)
+       ? String.format (" (sharing factor %.2f)",
+                        (double) this.postingsUsed / this.postingsRead)
+       : "");
+  }
+}
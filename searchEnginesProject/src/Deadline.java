@@ -0,0 +1,125 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.InterruptedIOException;
+
+/**
+ *  A Deadline bounds the time that a query may take.  The query's
+ *  thread makes it current, and the loops that do most of the work
+ *  (reading and combining inverted lists, and scoring documents)
+ *  check it.  When it expires, reading stops with
+ *  {@link Deadline.Exceeded}, and scoring stops with the documents
+ *  scored so far, so the query returns a partial ranking that is
+ *  marked as timed out.
+ *  <p>
+ *  Checks are cheap:  the clock is only read every CHECK_INTERVAL
+ *  calls to expired.
+ *  </p>
+ */
+public class Deadline {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of calls to expired between reads of the clock.
+   */
+  public static final int CHECK_INTERVAL = 256;
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline> ();
+
+  private final long endNanos;
+  private int countdown = 0;		// Shared by threads, but only a hint
+  private volatile boolean expired = false;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Thrown when a deadline expires while an inverted list is read or
+   *  combined.  It is an IOException, so it passes through the query
+   *  operators' initialize and evaluate methods unchanged.
+   */
+  public static class Exceeded extends InterruptedIOException {
+    private static final long serialVersionUID = 1L;
+
+    public Exceeded () {
+      super ("The query's time budget was exceeded");
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param millis The time budget, in milliseconds, from now.
+   */
+  public Deadline (double millis) {
+    this.endNanos = System.nanoTime () + (long) (millis * 1000000);
+  }
+
+  /**
+   *  Get the calling thread's deadline.
+   *  @return The deadline, or null if there isn't one.
+   */
+  public static Deadline current () {
+    return CURRENT.get ();
+  }
+
+  /**
+   *  Set the calling thread's deadline.
+   *  @param deadline The deadline, or null for none.
+   *  @return The thread's previous deadline, or null.
+   */
+  public static Deadline setCurrent (Deadline deadline) {
+    Deadline previous = CURRENT.get ();
+
+    if (deadline == null) {
+      CURRENT.remove ();
+    } else {
+      CURRENT.set (deadline);
+    }
+
+    return previous;
+  }
+
+  /**
+   *  Check whether the deadline has passed.  After it has, this
+   *  returns true every time.
+   *  @return True if the deadline has passed.
+   */
+  public boolean expired () {
+    if (this.expired) {
+      return true;
+    }
+
+    if (--this.countdown > 0) {
+      return false;
+    }
+
+    this.countdown = CHECK_INTERVAL;
+
+    if (System.nanoTime () - this.endNanos >= 0) {
+      this.expired = true;
+    }
+
+    return this.expired;
+  }
+
+  /**
+   *  Throw an exception if the deadline has passed.
+   *  @param deadline A deadline, or null for none.
+   *  @throws Exceeded The deadline has passed.
+   */
+  public static void check (Deadline deadline) throws Exceeded {
+    if ((deadline != null) && deadline.expired ()) {
+      throw new Exceeded ();
+    }
+  }
+
+  /**
+   *  Check whether the deadline has been found to be expired.  Unlike
+   *  expired, this doesn't read the clock.
+   *  @return True if a check found that the deadline has passed.
+   */
+  public boolean hasExpired () {
+    return this.expired;
+  }
+}
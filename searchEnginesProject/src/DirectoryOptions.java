@@ -0,0 +1,239 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.store.*;
+
+/**
+ *  DirectoryOptions describes how an index's files are read:  the
+ *  Lucene Directory implementation, the size of memory-mapped chunks,
+ *  and which files are loaded into memory when they are opened.
+ *  <p>
+ *  The options are read from the parameter file.
+ *  </p>
+ *  <ul>
+ *  <li><b>index:directory</b>: fs (the default; Lucene chooses),
+ *      mmap, nio, simple, or ram (a copy of the index in the heap,
+ *      for small indexes; it doesn't see later commits).</li>
+ *  <li><b>index:mmapChunkSize</b>: The maximum size in bytes of a
+ *      memory-mapped chunk (rounded down to a power of 2), for mmap
+ *      and preloaded files.</li>
+ *  <li><b>index:preload</b>: A comma-separated list of file
+ *      extensions (e.g., "doc,pos,tim,tip,nvd") whose files are
+ *      memory-mapped and loaded into physical memory when they are
+ *      opened, or "all".  Other files use index:directory.  Segments
+ *      stored as compound files have the extension cfs.</li>
+ *  <li><b>index:verifySnapshot</b>: true if the checksum of every
+ *      section of an {@link IndexSnapshot} is verified when it is
+ *      attached, which reads the whole file.  The default is false.</li>
+ *  </ul>
+ */
+public class DirectoryOptions {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String FS = "fs";
+  public static final String MMAP = "mmap";
+  public static final String NIO = "nio";
+  public static final String SIMPLE = "simple";
+  public static final String RAM = "ram";
+
+  /**
+   *  The options that Idx uses if none are set:  FSDirectory.open.
+   */
+  public static final DirectoryOptions DEFAULT =
+    new DirectoryOptions (FS, 0, Collections.<String>emptySet (), false);
+
+  private final String type;
+  private final int mmapChunkSize;
+  private final Set<String> preloadExtensions;
+  private final boolean preloadAll;
+  private final boolean verifySnapshot;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param type The directory implementation.
+   *  @param mmapChunkSize The maximum memory-mapped chunk size, or 0
+   *    for Lucene's default.
+   *  @param preloadExtensions The extensions of files to preload.
+   *  @param preloadAll True if every file is preloaded.
+   *  @throws IllegalArgumentException Unknown directory type.
+   */
+  public DirectoryOptions (String type,
+                           int mmapChunkSize,
+                           Set<String> preloadExtensions,
+                           boolean preloadAll)
+    throws IllegalArgumentException {
+    this (type, mmapChunkSize, preloadExtensions, preloadAll, false);
+  }
+
+  /**
+   *  @param type The directory implementation.
+   *  @param mmapChunkSize The maximum memory-mapped chunk size, or 0
+   *    for Lucene's default.
+   *  @param preloadExtensions The extensions of files to preload.
+   *  @param preloadAll True if every file is preloaded.
+   *  @param verifySnapshot True if every section of a snapshot is verified.
+   *  @throws IllegalArgumentException Unknown directory type.
+   */
+  public DirectoryOptions (String type,
+                           int mmapChunkSize,
+                           Set<String> preloadExtensions,
+                           boolean preloadAll,
+                           boolean verifySnapshot)
+    throws IllegalArgumentException {
+
+    if (! (type.equals (FS) || type.equals (MMAP) || type.equals (NIO) ||
+           type.equals (SIMPLE) || type.equals (RAM))) {
+      throw new IllegalArgumentException ("Unknown index:directory " + type);
+    }
+
+    this.type = type;
+    this.mmapChunkSize = mmapChunkSize;
+    this.preloadExtensions =
+      Collections.unmodifiableSet (new HashSet<String> (preloadExtensions));
+    this.preloadAll = preloadAll;
+    this.verifySnapshot = verifySnapshot;
+  }
+
+  /**
+   *  Get the directory options that a parameter file specifies.
+   *  @param parameters The parameters of the run.
+   *  @return The options.
+   *  @throws IllegalArgumentException Unknown directory type.
+   */
+  public static DirectoryOptions fromParameters (Map<String,String> parameters)
+    throws IllegalArgumentException {
+
+    String type = FS;
+    int chunkSize = 0;
+    Set<String> extensions = new HashSet<String> ();
+    boolean all = false;
+
+    if (parameters.containsKey ("index:directory")) {
+      type = parameters.get ("index:directory").trim ().toLowerCase ();
+    }
+
+    if (parameters.containsKey ("index:mmapChunkSize")) {
+      chunkSize = Integer.parseInt (parameters.get ("index:mmapChunkSize").trim ());
+    }
+
+    if (parameters.containsKey ("index:preload")) {
+      for (String ext : parameters.get ("index:preload").split (",")) {
+        ext = ext.trim ().toLowerCase ();
+
+        if (ext.startsWith (".")) {
+          ext = ext.substring (1);
+        }
+
+        if (ext.equals ("all") || ext.equals ("true")) {
+          all = true;
+        } else if (ext.length () > 0) {
+          extensions.add (ext);
+        }
+      }
+    }
+
+    boolean verify = parameters.containsKey ("index:verifySnapshot") &&
+      parameters.get ("index:verifySnapshot").trim ().toLowerCase ().equals ("true");
+
+    return new DirectoryOptions (type, chunkSize, extensions, all, verify);
+  }
+
+  /**
+   *  Is every section of an index snapshot verified when it is attached?
+   *  @return True if it is.
+   */
+  public boolean getVerifySnapshot () {
+    return this.verifySnapshot;
+  }
+
+  /**
+   *  Open the directory that contains an index.
+   *  @param path The directory.
+   *  @return The Lucene directory.
+   *  @throws IOException Error opening the directory.
+   */
+  public Directory open (Path path) throws IOException {
+
+    if (this.preloadAll) {
+      return preloadedDirectory (path);
+    }
+
+    Directory dir = directory (path);
+
+    if (this.preloadExtensions.isEmpty ()) {
+      return dir;
+    }
+
+    //  Files with the listed extensions are read from a preloaded
+    //  memory-mapped directory, the rest from the configured one.
+
+    return new FileSwitchDirectory (
+      this.preloadExtensions, preloadedDirectory (path), dir, true);
+  }
+
+  /**
+   *  Open a directory of the configured type.
+   *  @param path The directory.
+   *  @return The Lucene directory.
+   *  @throws IOException Error opening the directory.
+   */
+  private Directory directory (Path path) throws IOException {
+
+    if (this.type.equals (MMAP)) {
+      return mmapDirectory (path);
+    } else if (this.type.equals (NIO)) {
+      return new NIOFSDirectory (path);
+    } else if (this.type.equals (SIMPLE)) {
+      return new SimpleFSDirectory (path);
+    } else if (this.type.equals (RAM)) {
+      try (FSDirectory source = FSDirectory.open (path)) {
+        return new RAMDirectory (source, IOContext.READONCE);
+      }
+    } else {
+      return FSDirectory.open (path);
+    }
+  }
+
+  /**
+   *  Open a memory-mapped directory with the configured chunk size.
+   *  @param path The directory.
+   *  @return The Lucene directory.
+   *  @throws IOException Error opening the directory.
+   */
+  private MMapDirectory mmapDirectory (Path path) throws IOException {
+    return (this.mmapChunkSize > 0)
+      ? new MMapDirectory (path, this.mmapChunkSize)
+      : new MMapDirectory (path);
+  }
+
+  /**
+   *  Open a memory-mapped directory that loads files into physical
+   *  memory when they are opened.
+   *  @param path The directory.
+   *  @return The Lucene directory.
+   *  @throws IOException Error opening the directory.
+   */
+  private MMapDirectory preloadedDirectory (Path path) throws IOException {
+    MMapDirectory dir = mmapDirectory (path);
+    dir.setPreload (true);
+    return dir;
+  }
+
+  /**
+   *  Get a description of the options, e.g., for logs.
+   *  @return The description.
+   */
+  @Override public String toString () {
+    return this.type +
+      ((this.mmapChunkSize > 0) ? ", chunk " + this.mmapChunkSize : "") +
+      (this.preloadAll ? ", preload all" :
+       this.preloadExtensions.isEmpty () ? "" :
+       ", preload " + new TreeSet<String> (this.preloadExtensions));
+  }
+}
@@ -3,8 +3,14 @@
  */
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,11 +18,36 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * Lucene's norm values may not be shared between threads, so each
+ * thread that reads lengths gets its own copy of them.  Lengths can
+ * also come from an {@link IndexSnapshot}, which any thread can read.
+ * <p>
+ * The norms of a field are fetched when a thread first asks for a
+ * length in that field, so fields that no query uses (e.g., externalId)
+ * cost nothing.  prefetch instead copies the lengths of some fields
+ * into arrays that every thread reads, as it reads a snapshot.
+ * </p>
  */
 public class DocLengthStore  {
 
-  private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private final IndexReader reader;
+  private final Set<String> normFields;
+
+  //  Lengths that any thread can read, from a snapshot or prefetch, by
+  //  field.  The map is replaced, not changed, when fields are added.
+
+  private volatile Map<String, IntBuffer> sharedLengths =
+    Collections.emptyMap();
+
+  //  Each thread's norm values, by field.  They are confined to the
+  //  thread, so they are filled in without synchronization.
+
+  private final ThreadLocal<Map<String, NumericDocValues>> threadValues =
+    new ThreadLocal<Map<String, NumericDocValues>>() {
+      @Override protected Map<String, NumericDocValues> initialValue() {
+        return new HashMap<String, NumericDocValues>();
+      }
+    };
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
@@ -24,9 +55,53 @@ public class DocLengthStore  {
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.normFields = normFields(reader);
+  }
+
+  /**
+   * Read document lengths from an index snapshot instead of norms.
+   *
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param lengths The lengths of each field that has them, indexed by docid.
+   */
+  public DocLengthStore(IndexReader reader, Map<String, IntBuffer> lengths) {
+    this.reader = reader;
+    this.normFields = Collections.unmodifiableSet(lengths.keySet());
+    this.sharedLengths = lengths;
+  }
+
+  /**
+   * Find the fields that have norms.  Only the index's field metadata
+   * is read.
+   *
+   * @param reader The index.
+   * @return Set The names of the fields.
+   */
+  private static Set<String> normFields(IndexReader reader) {
+    Set<String> fields = new HashSet<String>();
+    for (FieldInfo info : MultiFields.getMergedFieldInfos(reader)) {
+      if (info.hasNorms())
+        fields.add(info.name);
     }
+    return Collections.unmodifiableSet(fields);
+  }
+
+  /**
+   * Get this thread's norm values for a field, fetching them the first
+   * time that the thread uses the field.
+   *
+   * @param fieldname Name of field.
+   * @return NumericDocValues The norm values, null if the field has none.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private NumericDocValues normValues(String fieldname) throws IOException {
+    Map<String, NumericDocValues> values = threadValues.get();
+    NumericDocValues v = values.get(fieldname);
+    if ((v == null) && !values.containsKey(fieldname)) {
+      v = MultiDocValues.getNormValues(reader, fieldname);
+      values.put(fieldname, v);
+    }
+    return v;
   }
 
   /**
@@ -39,6 +114,44 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    IntBuffer lengths = sharedLengths.get(fieldname);
+    if (lengths != null)
+      return lengths.get(docid);
+    return normValues(fieldname).get(docid);
+  }
+
+  /**
+   * Returns true if the store has lengths for the specified field.
+   * Fields that are indexed without norms (e.g., externalId) don't.
+   *
+   * @param fieldname Name of field.
+   * @return boolean True if the field has lengths.
+   */
+  public boolean hasField(String fieldname) {
+    return normFields.contains(fieldname);
+  }
+
+  /**
+   * Copy the lengths of some fields into arrays that every thread
+   * reads, so that no query thread fetches norms for them.  It costs
+   * 4 bytes per document per field.
+   *
+   * @param fieldnames Names of fields.  Fields without lengths, and
+   * fields that are already shared, are ignored.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized void prefetch(Collection<String> fieldnames) throws IOException {
+    int maxDoc = reader.maxDoc();
+    Map<String, IntBuffer> lengths = new HashMap<String, IntBuffer>(sharedLengths);
+    for (String fieldname : fieldnames) {
+      if (hasField(fieldname) && !lengths.containsKey(fieldname)) {
+        NumericDocValues v = normValues(fieldname);
+        int[] fieldLengths = new int[maxDoc];
+        for (int docid = 0; docid < maxDoc; docid++)
+          fieldLengths[docid] = (int) v.get(docid);
+        lengths.put(fieldname, IntBuffer.wrap(fieldLengths));
+      }
+    }
+    sharedLengths = Collections.unmodifiableMap(lengths);
   }
 }
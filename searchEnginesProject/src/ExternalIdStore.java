@@ -0,0 +1,547 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  ExternalIdStore is a pair of compact, memory-mapped sidecar files
+ *  that map internal document ids to external document ids and back.
+ *  Looking up an external id in the Lucene index requires reading the
+ *  document's stored fields, and looking up an internal id requires a
+ *  term dictionary lookup, which are slow when they are done for every
+ *  document in a result list or an initial ranking file.
+ *  <p>
+ *  The sidecars are written next to the index (in the index directory)
+ *  by running this class as a program.  Each has a small header that
+ *  records the index version and maxDoc, so a sidecar that is stale is
+ *  not used.  The forward file has an offset table with one entry per
+ *  internal docid, and the UTF-8 bytes of the external ids.
+ *  </p>
+ *  <pre>
+ *    int   magic
+ *    int   format version
+ *    long  index version
+ *    int   maxDoc
+ *    int[] offsets, maxDoc+1 entries, relative to the start of the data
+ *    byte[] data
+ *  </pre>
+ *  <p>
+ *  The inverse file has the same header followed by a count and the
+ *  internal docids of the live documents, sorted by external id.  An
+ *  external id is found by binary search, comparing against the bytes
+ *  in the forward file.
+ *  </p>
+ *  <pre>
+ *    int   magic
+ *    int   format version
+ *    long  index version
+ *    int   maxDoc
+ *    int   count
+ *    int[] internal docids, count entries, in external id order
+ *  </pre>
+ */
+public class ExternalIdStore {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the internal to external id sidecar file in the
+   *  index directory.
+   */
+  public static final String FILE_NAME = "externalId.fwd";
+
+  /**
+   *  The name of the external to internal id sidecar file in the
+   *  index directory.
+   */
+  public static final String INVERSE_FILE_NAME = "externalId.inv";
+
+  private static final int MAGIC = 0x45494446;		// "EIDF"
+  private static final int INVERSE_MAGIC = 0x45494449;	// "EIDI"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4;
+
+  private static final String USAGE =
+    "Usage:  java ExternalIdStore -index INDEX_PATH\n\n" +
+    "Writes " + FILE_NAME + " and " + INVERSE_FILE_NAME +
+    " into the index directory.\n";
+
+  private static String externalIdField = new String ("externalId");
+
+  private final ByteBuffer buffer;
+  private final int maxDoc;
+  private final int dataStart;
+
+  /**
+   *  The inverse sidecar, or null if there isn't one.
+   */
+  private final ByteBuffer inverse;
+  private final int inverseCount;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Wrap buffers that contain sidecars written by write and
+   *  writeInverse.
+   *  @param buffer The forward sidecar contents.
+   *  @param inverse The inverse sidecar contents, or null.
+   *  @param maxDoc The number of entries in the offset table.
+   */
+  private ExternalIdStore (ByteBuffer buffer, ByteBuffer inverse, int maxDoc) {
+    this.buffer = buffer;
+    this.maxDoc = maxDoc;
+    this.dataStart = HEADER_LENGTH + 4 * (maxDoc + 1);
+    this.inverse = inverse;
+    this.inverseCount = (inverse == null) ? 0 : inverse.getInt (HEADER_LENGTH);
+  }
+
+  /**
+   *  Compare an external id to the external id of a document, in
+   *  BytesRef (unsigned byte) order.
+   *  @param key The UTF-8 bytes of an external id.
+   *  @param docid An internal document id.
+   *  @return negative, zero, or positive, like Comparator.compare.
+   */
+  private int compareTo (byte[] key, int docid) {
+
+    int start = this.dataStart + this.buffer.getInt (HEADER_LENGTH + 4 * docid);
+    int end = this.dataStart + this.buffer.getInt (HEADER_LENGTH + 4 * (docid + 1));
+    int length = Math.min (key.length, end - start);
+
+    for (int i = 0; i < length; i++) {
+      int diff = (key[i] & 0xff) - (this.buffer.get (start + i) & 0xff);
+
+      if (diff != 0) {
+        return diff;
+      }
+    }
+
+    return key.length - (end - start);
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.  The lookup reads the mapped file
+   *  directly, so it is safe to call from several threads.
+   *  @param docid The internal document id of the document.
+   *  @return the external document id, or null if there is none.
+   */
+  public String getExternalDocid (int docid) {
+
+    if ((docid < 0) || (docid >= this.maxDoc)) {
+      return null;
+    }
+
+    int start = this.buffer.getInt (HEADER_LENGTH + 4 * docid);
+    int end = this.buffer.getInt (HEADER_LENGTH + 4 * (docid + 1));
+
+    if (start == end) {
+      return null;				// A deleted document
+    }
+
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = this.buffer.get (this.dataStart + start + i);
+    }
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id.  It is an error to call this method if the index
+   *  doesn't have an inverse sidecar.
+   *  @param externalId The external docid in the Lucene index.
+   *  @return internal docid.
+   *  @throws Exception The external id isn't in the index, or isn't unique.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int base = HEADER_LENGTH + 4;
+    int lo = 0;
+    int hi = this.inverseCount - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int docid = this.inverse.getInt (base + 4 * mid);
+      int cmp = compareTo (key, docid);
+
+      if (cmp > 0) {
+        lo = mid + 1;
+      } else if (cmp < 0) {
+        hi = mid - 1;
+      } else {
+
+        //  Duplicates are adjacent in the sorted table.
+
+        if (((mid > 0) &&
+             (compareTo (key, this.inverse.getInt (base + 4 * (mid - 1))) == 0)) ||
+            ((mid < this.inverseCount - 1) &&
+             (compareTo (key, this.inverse.getInt (base + 4 * (mid + 1))) == 0))) {
+          throw new Exception ("Multiple matches for external id " + externalId);
+        }
+
+        return docid;
+      }
+    }
+
+    throw new Exception ("External id " + externalId + " not found.");
+  }
+
+  /**
+   *  Returns true if the store can map external ids to internal ids.
+   *  @return True if the index has an inverse sidecar.
+   */
+  public boolean hasInverse () {
+    return (this.inverse != null);
+  }
+
+  /**
+   *  Load the store into physical memory, so that the first lookups
+   *  don't wait for page faults.
+   */
+  public void load () {
+    if (this.buffer instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) this.buffer).load ();
+    }
+
+    if (this.inverse instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) this.inverse).load ();
+    }
+  }
+
+  /**
+   *  Get the number of entries in the store.
+   *  @return The maxDoc of the index that the store was built from.
+   */
+  public int maxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Memory-map the sidecar files of an index, if they exist and
+   *  match the index.  The inverse sidecar is optional.
+   *  @param reader The index that the sidecars must describe.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The store, or null if it is missing or stale.
+   *  @throws IOException Error reading the sidecar files.
+   */
+  public static ExternalIdStore open (DirectoryReader reader, String indexPath)
+    throws IOException {
+
+    ByteBuffer buffer = map (reader, Paths.get (indexPath, FILE_NAME), MAGIC);
+
+    if (buffer == null) {
+      return null;
+    }
+
+    ByteBuffer inverse =
+      map (reader, Paths.get (indexPath, INVERSE_FILE_NAME), INVERSE_MAGIC);
+
+    return new ExternalIdStore (buffer, inverse, reader.maxDoc ());
+  }
+
+  /**
+   *  Create a store from sidecar contents that were already checked,
+   *  e.g., sections of an {@link IndexSnapshot}.
+   *  @param buffer The forward sidecar contents.
+   *  @param inverse The inverse sidecar contents, or null.
+   *  @param maxDoc The number of entries in the offset table.
+   *  @return The store.
+   */
+  static ExternalIdStore fromBuffers (ByteBuffer buffer, ByteBuffer inverse,
+                                      int maxDoc) {
+    return new ExternalIdStore (buffer, inverse, maxDoc);
+  }
+
+  /**
+   *  Memory-map a sidecar file and check that its header matches
+   *  the index, and that the file is as long as its header and tables
+   *  say.  A short file would make lookups fail, so it is ignored,
+   *  and ids are read from the index instead.
+   *  @param reader The index that the sidecar must describe.
+   *  @param file The sidecar file.
+   *  @param magic The magic number of the file type.
+   *  @return The mapped file, or null if it is missing, stale, or
+   *    malformed.
+   *  @throws IOException Error reading the sidecar file.
+   */
+  private static ByteBuffer map (DirectoryReader reader, Path file, int magic)
+    throws IOException {
+
+    if (! Files.isReadable (file)) {
+      return null;
+    }
+
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+      buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((buffer.capacity () < HEADER_LENGTH) ||
+        (buffer.getInt (0) != magic) ||
+        (buffer.getInt (4) != FORMAT_VERSION)) {
+      System.err.println ("Warning:  Ignoring malformed " + file);
+      return null;
+    }
+
+    if ((buffer.getLong (8) != reader.getVersion ()) ||
+        (buffer.getInt (16) != reader.maxDoc ())) {
+      System.err.println ("Warning:  Ignoring stale " + file);
+      return null;
+    }
+
+    if (buffer.capacity () != expectedLength (buffer, magic, reader.maxDoc ())) {
+      System.err.println ("Warning:  Ignoring malformed " + file);
+      return null;
+    }
+
+    return buffer;
+  }
+
+  /**
+   *  Get the length that a sidecar file must have, according to its
+   *  header and tables.
+   *  @param buffer The sidecar contents.  The header was checked.
+   *  @param magic The magic number of the file type.
+   *  @param maxDoc The maxDoc of the index.
+   *  @return The length, or -1 if the file is too short to tell.
+   */
+  private static long expectedLength (ByteBuffer buffer, int magic, int maxDoc) {
+
+    if (magic == MAGIC) {
+      long offsetsEnd = HEADER_LENGTH + 4L * (maxDoc + 1);
+
+      if (buffer.capacity () < offsetsEnd) {
+        return -1;
+      }
+
+      return offsetsEnd + buffer.getInt ((int) offsetsEnd - 4);
+    }
+
+    if (buffer.capacity () < HEADER_LENGTH + 4) {
+      return -1;
+    }
+
+    int count = buffer.getInt (HEADER_LENGTH);
+
+    if ((count < 0) || (count > maxDoc)) {
+      return -1;
+    }
+
+    return HEADER_LENGTH + 4 + 4L * count;
+  }
+
+  /**
+   *  Write the inverse sidecar file for an index.  The externalId
+   *  term dictionary is already sorted, so the docids are written
+   *  in term order.  Like the forward file, it is written to a
+   *  temporary file that then replaces the old one.
+   *  @param reader The index.
+   *  @param file The file to write.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void writeInverse (DirectoryReader reader, Path file)
+    throws IOException {
+
+    Path tmp = file.resolveSibling (file.getFileName () + ".tmp");
+
+    try {
+      try (OutputStream out = Files.newOutputStream (tmp)) {
+        writeInverse (reader, out);
+      }
+
+      Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists (tmp);
+    }
+  }
+
+  /**
+   *  Write the contents of the inverse sidecar file for an index.
+   *  @param reader The index.
+   *  @param stream The stream to write to.  It is not closed.
+   *  @throws IOException Error accessing the index or writing the stream.
+   */
+  static void writeInverse (DirectoryReader reader, OutputStream stream)
+    throws IOException {
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    Terms terms = MultiFields.getTerms (reader, externalIdField);
+    int[] docids = new int[reader.numDocs ()];
+    int count = 0;
+
+    if (terms != null) {
+      TermsEnum ithTerm = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (ithTerm.next () != null) {
+        postings = ithTerm.postings (postings, PostingsEnum.NONE);
+
+        int docid;
+
+        while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if ((liveDocs == null) || liveDocs.get (docid)) {
+            docids[count++] = docid;
+          }
+        }
+      }
+    }
+
+    DataOutputStream out =
+      new DataOutputStream (new BufferedOutputStream (stream, 1 << 16));
+    out.writeInt (INVERSE_MAGIC);
+    out.writeInt (FORMAT_VERSION);
+    out.writeLong (reader.getVersion ());
+    out.writeInt (reader.maxDoc ());
+    out.writeInt (count);
+
+    for (int i = 0; i < count; i++) {
+      out.writeInt (docids[i]);
+    }
+    out.flush ();
+  }
+
+  /**
+   *  Write the sidecar file for an index.  It is written to a
+   *  temporary file that then replaces the old one, so a searcher that
+   *  has the old one mapped keeps reading it, and a crash doesn't
+   *  leave a partial file.
+   *  @param reader The index.
+   *  @param file The file to write.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void write (DirectoryReader reader, Path file)
+    throws IOException {
+
+    Path tmp = file.resolveSibling (file.getFileName () + ".tmp");
+
+    try {
+      try (OutputStream out = Files.newOutputStream (tmp)) {
+        write (reader, out);
+      }
+
+      Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists (tmp);
+    }
+  }
+
+  /**
+   *  Write the contents of the sidecar file for an index.  The ids are
+   *  read twice, once to write the offset table and once to write the
+   *  bytes, so they are never all in memory at once.
+   *  @param reader The index.
+   *  @param stream The stream to write to.  It is not closed.
+   *  @throws IOException Error accessing the index or writing the
+   *    stream, or the file would be larger than 2GB.
+   */
+  static void write (DirectoryReader reader, OutputStream stream)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    Set<String> fields = Collections.singleton (externalIdField);
+    long dataStart = HEADER_LENGTH + 4L * (maxDoc + 1);
+
+    DataOutputStream out =
+      new DataOutputStream (new BufferedOutputStream (stream, 1 << 16));
+    out.writeInt (MAGIC);
+    out.writeInt (FORMAT_VERSION);
+    out.writeLong (reader.getVersion ());
+    out.writeInt (maxDoc);
+
+    //  The offsets.  A MappedByteBuffer is limited to 2GB, so stop as
+    //  soon as the file would be larger.
+
+    long offset = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      out.writeInt ((int) offset);
+
+      byte[] bytes = externalIdBytes (reader, liveDocs, fields, docid);
+
+      if (bytes != null) {
+        offset += bytes.length;
+
+        if (dataStart + offset > Integer.MAX_VALUE) {
+          throw new IOException ("The external ids are too large for " + FILE_NAME);
+        }
+      }
+    }
+
+    out.writeInt ((int) offset);
+
+    //  The bytes.
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      byte[] bytes = externalIdBytes (reader, liveDocs, fields, docid);
+
+      if (bytes != null) {
+        out.write (bytes);
+      }
+    }
+
+    out.flush ();
+  }
+
+  /**
+   *  Get the UTF-8 bytes of a document's external id.
+   *  @param reader The index.
+   *  @param liveDocs The live documents, or null if all are live.
+   *  @param fields The stored fields to read, just the external id.
+   *  @param docid The internal document id.
+   *  @return The bytes, or null if the document is deleted or has no
+   *    external id.
+   *  @throws IOException Error accessing the index.
+   */
+  private static byte[] externalIdBytes (IndexReader reader, Bits liveDocs,
+                                         Set<String> fields, int docid)
+    throws IOException {
+
+    if ((liveDocs != null) && (! liveDocs.get (docid))) {
+      return null;
+    }
+
+    String eid = reader.document (docid, fields).get (externalIdField);
+    return (eid == null) ? null : eid.getBytes (StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Write the sidecar files for the index named on the command line.
+   *  @param args -index INDEX_PATH
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length != 2) || (! "-index".equals (args[0]))) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    try (DirectoryReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (args[1])))) {
+      Path file = Paths.get (args[1], FILE_NAME);
+      write (reader, file);
+      System.out.println ("Wrote " + reader.maxDoc () + " external ids to " + file);
+
+      file = Paths.get (args[1], INVERSE_FILE_NAME);
+      writeInverse (reader, file);
+      System.out.println ("Wrote " + reader.numDocs () + " internal ids to " + file);
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  FederatedSearch evaluates a query against several open indexes
+ *  (shards) at the same time and merges their results into one
+ *  ranking.  Each shard is searched by a thread from a fixed pool, so
+ *  a split corpus is searched at the speed of its slowest shard.
+ *  <p>
+ *  Scores from different shards are not directly comparable, so one
+ *  of three merge methods is used.
+ *  </p>
+ *  <ul>
+ *  <li><b>global</b>: Query operators in every shard are scored with
+ *      the statistics of the whole corpus (the number of documents,
+ *      field lengths, and each term's df and ctf summed over shards),
+ *      so the merged ranking is the ranking that a single index would
+ *      produce.  This is the default.</li>
+ *  <li><b>minmax</b>: Each shard's scores are scaled to [0, 1] with
+ *      its own minimum and maximum score (as in CORI result merging),
+ *      and the scaled scores are merged.</li>
+ *  <li><b>raw</b>: Scores are merged as they are.</li>
+ *  </ul>
+ *  <p>
+ *  Each query acquires the current version of each index from
+ *  {@link Idx}, so refreshed indexes are searched from the next query
+ *  on, and holds it until the query is done.
+ *  </p>
+ */
+public class FederatedSearch {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String MERGE_GLOBAL = "global";
+  public static final String MERGE_MINMAX = "minmax";
+  public static final String MERGE_RAW = "raw";
+
+  private final List<String> indexPaths;
+  private final String mergeMethod;
+  private final ExecutorService executor;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The query tree of one shard.  Trees are parsed from the same
+   *  query string, so their QryIop operators correspond one-to-one.
+   */
+  private static class ShardQuery {
+    private final IndexContext context;
+    private final Qry q;
+    private final List<QryIop> iops;
+
+    private ShardQuery (IndexContext context, Qry q) {
+      this.context = context;
+      this.q = q;
+      this.iops = q.getIopArgs (new ArrayList<QryIop> ());
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a federated search over several indexes, which must be
+   *  open in {@link Idx}.
+   *  @param indexPaths The directories of the indexes.
+   *  @param numThreads The number of threads that search shards.
+   *  @param mergeMethod How scores are merged:  global, minmax or raw.
+   *  @throws IllegalArgumentException Unknown merge method, or an
+   *    index isn't open.
+   */
+  public FederatedSearch (List<String> indexPaths,
+                          int numThreads,
+                          String mergeMethod)
+    throws IllegalArgumentException {
+
+    if (indexPaths.isEmpty ()) {
+      throw new IllegalArgumentException ("Federated search needs an index");
+    }
+
+    if (! (mergeMethod.equals (MERGE_GLOBAL) ||
+           mergeMethod.equals (MERGE_MINMAX) ||
+           mergeMethod.equals (MERGE_RAW))) {
+      throw new IllegalArgumentException (
+        "Unknown federated merge method " + mergeMethod);
+    }
+
+    for (String indexPath : indexPaths) {
+      Idx.getContext (indexPath);		// Throws if it isn't open
+    }
+
+    this.indexPaths = Collections.unmodifiableList (new ArrayList<String> (indexPaths));
+    this.mergeMethod = mergeMethod;
+    this.executor = Executors.newFixedThreadPool (
+      Math.max (1, Math.min (numThreads, indexPaths.size ())),
+      new ThreadFactory () {
+        public Thread newThread (Runnable r) {
+          Thread t = new Thread (r, "federated-search");
+          t.setDaemon (true);
+          return t;
+        }
+      });
+  }
+
+  /**
+   *  Stop the threads that search shards.
+   */
+  public void close () {
+    this.executor.shutdown ();
+  }
+
+  /**
+   *  Get the merge method.
+   *  @return The merge method.
+   */
+  public String getMergeMethod () {
+    return this.mergeMethod;
+  }
+
+  /**
+   *  Get the indexes that are searched.
+   *  @return The directories of the indexes.
+   */
+  public List<String> getIndexPaths () {
+    return this.indexPaths;
+  }
+
+  /**
+   *  Acquire the current context of each shard.  With global
+   *  statistics, each shard is searched through a view of its context
+   *  that has the corpus statistics of every shard.
+   *  @return The contexts, which must be released with release.
+   *  @throws IOException Error closing an index after a failure.
+   */
+  private List<IndexContext> acquireShards () throws IOException {
+
+    List<IndexContext> shards = new ArrayList<IndexContext> ();
+
+    try {
+      for (String indexPath : this.indexPaths) {
+        shards.add (Idx.acquireContext (indexPath));
+      }
+    } catch (RuntimeException ex) {
+      release (shards);
+      throw ex;
+    }
+
+    if (! this.mergeMethod.equals (MERGE_GLOBAL)) {
+      return shards;
+    }
+
+    List<IndexStats> stats = new ArrayList<IndexStats> ();
+
+    for (IndexContext shard : shards) {
+      stats.add (shard.getIndexStats ());
+    }
+
+    IndexStats globalStats = IndexStats.merge (stats);
+    List<IndexContext> views = new ArrayList<IndexContext> ();
+
+    for (IndexContext shard : shards) {
+      views.add (shard.withIndexStats (globalStats));
+    }
+
+    return views;
+  }
+
+  /**
+   *  Release the contexts of the shards.
+   *  @param shards The contexts that acquireShards returned.
+   *  @throws IOException Error closing an index.
+   */
+  private static void release (List<IndexContext> shards) throws IOException {
+    for (IndexContext shard : shards) {
+      Idx.release (shard);
+    }
+  }
+
+  /**
+   *  Evaluate a query against every shard and merge the results.
+   *  @param qString A string that contains a query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param k The number of documents that each shard contributes, and
+   *    the length of the merged ranking.
+   *  @return The merged ranking, or null if the query is empty.
+   *  @throws IOException Error accessing an index.
+   */
+  public ScoreList search (final String qString,
+                           final RetrievalModel model,
+                           final int k)
+    throws IOException {
+
+    List<IndexContext> shards = acquireShards ();
+
+    try {
+      return search (shards, qString, model, k);
+    } finally {
+      release (shards);
+    }
+  }
+
+  /**
+   *  Evaluate a query against the acquired shards and merge the results.
+   *  @param shards The contexts of the shards.
+   *  @param qString A string that contains a query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param k The length of the merged ranking.
+   *  @return The merged ranking, or null if the query is empty.
+   *  @throws IOException Error accessing an index.
+   */
+  private ScoreList search (List<IndexContext> shards,
+                            final String qString,
+                            final RetrievalModel model,
+                            final int k)
+    throws IOException {
+
+    //  Parse and initialize a query tree for each shard.  Initializing
+    //  reads the inverted lists, which is most of the work.  The pool's
+    //  threads work under the calling thread's deadline.
+
+    final Deadline deadline = Deadline.current ();
+    List<Callable<ShardQuery>> initTasks = new ArrayList<Callable<ShardQuery>> ();
+
+    for (final IndexContext shard : shards) {
+      initTasks.add (new Callable<ShardQuery> () {
+        public ShardQuery call () throws IOException {
+          Deadline previous = Deadline.setCurrent (deadline);
+
+          try {
+            Qry q = QryEval.parseQuery (qString, model);
+
+            if ((q == null) || (q.args.size () == 0)) {
+              return null;
+            }
+
+            q.initialize (model, shard);
+            return new ShardQuery (shard, q);
+          } finally {
+            Deadline.setCurrent (previous);
+          }
+        }
+      });
+    }
+
+    List<ShardQuery> queries;
+
+    try {
+      queries = invokeAll (initTasks);
+    } catch (Deadline.Exceeded ex) {
+      ScoreList r = new ScoreList (null);
+      r.setTimedOut (true);			// Nothing was scored
+      return r;
+    }
+
+    if (queries.get (0) == null) {
+      return null;				// Empty query
+    }
+
+    //  Replace each shard's df and ctf with their sums over shards.
+
+    if (this.mergeMethod.equals (MERGE_GLOBAL)) {
+      int numIops = queries.get (0).iops.size ();
+
+      for (int i = 0; i < numIops; i++) {
+        int df = 0;
+        int ctf = 0;
+
+        for (ShardQuery sq : queries) {
+          df += sq.iops.get (i).getListDf ();
+          ctf += sq.iops.get (i).getListCtf ();
+        }
+
+        for (ShardQuery sq : queries) {
+          sq.iops.get (i).setCollectionStats (df, ctf);
+        }
+      }
+    }
+
+    //  Score the documents of each shard.
+
+    List<Callable<ScoreList>> scoreTasks = new ArrayList<Callable<ScoreList>> ();
+
+    for (final ShardQuery sq : queries) {
+      scoreTasks.add (new Callable<ScoreList> () {
+        public ScoreList call () throws IOException {
+          Deadline previous = Deadline.setCurrent (deadline);
+
+          try {
+            ScoreList r = new ScoreList (sq.context);
+            QryEval.iterateQuery (sq.q, model, r);
+            r.sort ();
+            r.truncate (k);
+            return r;
+          } finally {
+            Deadline.setCurrent (previous);
+          }
+        }
+      });
+    }
+
+    List<ScoreList> results = invokeAll (scoreTasks);
+
+    //  Merge.  Internal docids are only meaningful within a shard, so
+    //  merged entries carry their external ids.
+
+    ScoreList merged = new ScoreList (null);
+
+    for (ScoreList r : results) {
+      double min = Double.POSITIVE_INFINITY;
+
+      if (r.isTimedOut ()) {
+        merged.setTimedOut (true);
+      }
+
+      double max = Double.NEGATIVE_INFINITY;
+
+      if (this.mergeMethod.equals (MERGE_MINMAX)) {
+        for (int i = 0; i < r.size (); i++) {
+          min = Math.min (min, r.getDocidScore (i));
+          max = Math.max (max, r.getDocidScore (i));
+        }
+      }
+
+      for (int i = 0; i < r.size (); i++) {
+        double score = r.getDocidScore (i);
+
+        if (this.mergeMethod.equals (MERGE_MINMAX)) {
+          score = (max > min) ? (score - min) / (max - min) : 1.0;
+        }
+
+        merged.add (r.getDocid (i), r.getExternalDocid (i), score);
+      }
+    }
+
+    merged.sort ();
+    merged.truncate (k);
+    return merged;
+  }
+
+  /**
+   *  Run tasks on the thread pool and wait for their results.
+   *  @param tasks The tasks.
+   *  @return Their results, in the same order.
+   *  @throws IOException A task failed.
+   */
+  private <T> List<T> invokeAll (List<Callable<T>> tasks) throws IOException {
+
+    List<T> results = new ArrayList<T> ();
+
+    try {
+      for (Future<T> f : this.executor.invokeAll (tasks)) {
+        results.add (f.get ());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Federated search was interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException (cause);
+    }
+
+    return results;
+  }
+}
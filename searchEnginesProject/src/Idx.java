@@ -1,15 +1,11 @@
-/** 
+/**
  *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -20,6 +16,16 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Each open index is represented by an {@link IndexContext}.  The
+ *  static methods of this class are a thin facade over the current
+ *  context.  Code that evaluates queries concurrently, or against
+ *  more than one index, should use an IndexContext directly.
+ *  </p><p>
+ *  An index that is updated while it is open can be refreshed, on
+ *  demand (refresh) or periodically (startRefreshTimer).  Refreshing
+ *  replaces an index's context atomically.  The replaced context is
+ *  closed when the last query that acquired it releases it.
  *  </p>
  */
 public class Idx {
@@ -29,18 +35,72 @@ public class Idx {
   /**
    *  The Lucene index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
+
+  /**
+   *  The context of the current index.
+   */
+  private static volatile IndexContext CURRENT=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  private static Map<String,IndexContext> openIndexContexts =
+    new ConcurrentHashMap<String,IndexContext> ();
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
-  private static String externalIdField = new String ("externalId");
+  private static ScheduledExecutorService refreshTimer = null;
+
+  private static volatile DirectoryOptions directoryOptions =
+    DirectoryOptions.DEFAULT;
 
   //  --------------- Methods ---------------------------------------
 
+  /**
+   *  Get the context of the current index, and hold a reference to it
+   *  so that it isn't closed if the index is refreshed.  Call release
+   *  when done with it.
+   *  @return The context of the current index.
+   */
+  public static IndexContext acquireCurrentContext () {
+    while (true) {
+      IndexContext context = Idx.CURRENT;
+
+      if (context.tryIncRef ()) {
+        return context;
+      }
+
+      //  The context was replaced and closed since it was read.
+    }
+  }
+
+  /**
+   *  Get the context of an open index, and hold a reference to it so
+   *  that it isn't closed if the index is refreshed.  Call release
+   *  when done with it.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The context of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexContext acquireContext (String indexPath)
+    throws IllegalArgumentException {
+    while (true) {
+      IndexContext context = getContext (indexPath);
+
+      if (context.tryIncRef ()) {
+        return context;
+      }
+
+      //  The context was replaced and closed since it was read.
+    }
+  }
+
+  /**
+   *  Release a context acquired by acquireCurrentContext or
+   *  acquireContext.
+   *  @param context The context.
+   *  @throws IOException Error closing the Lucene index.
+   */
+  public static void release (IndexContext context) throws IOException {
+    context.decRef ();
+  }
+
   /**
    *  Get the specified attribute from the specified document.
    *  @param attributeName Name of attribute
@@ -50,9 +110,34 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
+    return Idx.CURRENT.getAttribute (attributeName, docid);
+  }
+
+  /**
+   *  Get the context of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The context of the index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexContext getContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext context = openIndexContexts.get (indexPath);
+
+    if (context == null) {
+      throw new IllegalArgumentException (
+        "The index " + indexPath + " is not open");
+    }
+
+    return context;
+  }
 
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+  /**
+   *  Get the context of the current index.
+   *  @return The context of the current index.
+   */
+  public static IndexContext getCurrentContext () {
+    return Idx.CURRENT;
   }
 
   /**
@@ -63,20 +148,44 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENT.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the
+   *  number of documents that contain 'apple' in the title field).
+   *  Term statistics are cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The document frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return Idx.CURRENT.getDocFreq (fieldName, term);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.  Term statistics are
+   *  cached.
+   *  @param term The field and term.
+   *  @return The document frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (Term term) throws IOException {
+    return Idx.CURRENT.getDocFreq (term);
   }
 
   /**
    *  Get the external document id for a document specified by an
-   *  internal document id.
+   *  internal document id.  The external id sidecar is used if the
+   *  index has one, otherwise the document's stored fields are read.
    *  @param iid The internal document id of the document.
    *  @return the external document id
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CURRENT.getExternalDocid (iid);
   }
 
   /**
@@ -88,34 +197,21 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CURRENT.getFieldLength (fieldName, docid);
   }
 
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
+   * exists, throw an exception.  The external id sidecar is used if
+   * the index has one, otherwise the term dictionary is searched.
    * @param externalId The external docid in the Lucene index.
    * @return iternal docid.
    * @throws Exception Could not read the internal document id from the index.
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
-
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
-
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+    return Idx.CURRENT.getInternalDocid (externalId);
   }
 
   /**
@@ -124,7 +220,17 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENT.getNumDocs ();
+  }
+
+  /**
+   *  Get the corpus and field statistics of the current index.  They
+   *  are computed when the index is opened, so reading them doesn't
+   *  access the index.
+   *  @return The statistics of the current index.
+   */
+  public static IndexStats getIndexStats () {
+    return Idx.CURRENT.getIndexStats ();
   }
 
   /**
@@ -137,14 +243,14 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENT.getSumOfFieldLengths (fieldName);
   }
 
 
   /**
    *  Get the collection term frequency (ctf) of a term in
    *  a field (e.g., the total number of times the term 'apple'
-   *  occurs in title fields.
+   *  occurs in title fields.  Term statistics are cached.
    *  @param fieldName The field name.
    *  @param term The term.
    *  @return The total number of term occurrence
@@ -152,51 +258,183 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENT.getTotalTermFreq (fieldName, term);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.  Term
+   *  statistics are cached.
+   *  @param term The field and term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getTotalTermFreq (Term term) throws IOException {
+    return Idx.CURRENT.getTotalTermFreq (term);
+  }
+
+  /**
+   *  Read the statistics (df, ctf) of many terms in a field into the
+   *  term statistics cache with a single pass over the field's term
+   *  dictionary.  Use this before asking for the statistics of many
+   *  terms, e.g., query expansion candidates.
+   *  @param fieldName The field name.
+   *  @param terms The terms.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void prefetchTermStats (String fieldName, Collection<String> terms)
+    throws IOException {
+    Idx.CURRENT.prefetchTermStats (fieldName, terms);
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index, the associated DocLengthStore and
+   *  IndexStats, and the external id sidecar, if there is one.  An
+   *  index that is already open is not opened again; it stays open
+   *  as it is, e.g., for federated search of the current index.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
-    IndexReader indexReader;
-    DocLengthStore docLengthStore;
+    if (openIndexContexts.containsKey (indexPath)) {
+      return;
+    }
+
+    IndexContext context = IndexContext.open (indexPath, directoryOptions);
 
-    //  Open the Lucene index
+    //  Keep track of the open indexes.
 
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Can't open the index.");
+    openIndexContexts.put (indexPath, context);
+
+    if (refreshTimer != null) {
+      prepareReopen (context);
     }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
-
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Can't open the document length store.");
+
+    //  The current index defaults to the first open index.
+
+    if (Idx.CURRENT == null) {
+      Idx.CURRENT = context;
+      Idx.INDEXREADER = context.getIndexReader ();
     }
+  }
 
-    //  Keep track of the open indexes.
+  /**
+   *  Reopen every open index that changed since it was opened, so
+   *  that new commits become searchable.
+   *  @return True if any index changed.
+   *  @throws IOException Error accessing an index.
+   */
+  public static boolean refresh () throws IOException {
+    boolean changed = false;
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    for (String indexPath : openIndexContexts.keySet ()) {
+      changed |= refresh (indexPath);
+    }
 
-    //  The current index defaults to the first open index.
+    return changed;
+  }
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+  /**
+   *  Reopen an open index if it changed since it was opened.  Its new
+   *  context replaces the old one atomically; the old one is closed
+   *  when queries that acquired it release it.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return True if the index changed.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized boolean refresh (String indexPath)
+    throws IllegalArgumentException, IOException {
+
+    IndexContext oldContext = getContext (indexPath);
+    IndexContext newContext = oldContext.reopen ();
+
+    if (newContext == null) {
+      return false;
+    }
+
+    openIndexContexts.put (indexPath, newContext);
+
+    if (Idx.CURRENT == oldContext) {
+      Idx.CURRENT = newContext;
+      Idx.INDEXREADER = newContext.getIndexReader ();
+    }
+
+    oldContext.decRef ();
+    return true;
+  }
+
+  /**
+   *  Refresh the open indexes periodically, in a background thread.
+   *  @param periodSeconds The time between refreshes.
+   */
+  public static synchronized void startRefreshTimer (double periodSeconds) {
+
+    stopRefreshTimer ();
+
+    refreshTimer = Executors.newSingleThreadScheduledExecutor (
+      new ThreadFactory () {
+        public Thread newThread (Runnable r) {
+          Thread t = new Thread (r, "index-refresh");
+          t.setDaemon (true);
+          return t;
+        }
+      });
+
+    for (IndexContext context : openIndexContexts.values ()) {
+      prepareReopen (context);
     }
+
+    long period = Math.max (1, (long) (periodSeconds * 1000));
+
+    refreshTimer.scheduleWithFixedDelay (new Runnable () {
+      public void run () {
+        try {
+          Idx.refresh ();
+        } catch (Exception ex) {
+          System.err.println ("Warning:  Index refresh failed: " + ex);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   *  Compute the segment statistics that the first refresh of an index
+   *  reuses, in the refresh thread, before the refresh runs.
+   *  @param context The context of the index.
+   */
+  private static void prepareReopen (final IndexContext context) {
+    refreshTimer.execute (new Runnable () {
+      public void run () {
+        try {
+          context.prepareReopen ();
+        } catch (Exception ex) {
+          System.err.println ("Warning:  Can't compute segment statistics: " + ex);
+        }
+      }
+    });
+  }
+
+  /**
+   *  Stop refreshing the open indexes periodically.
+   */
+  public static synchronized void stopRefreshTimer () {
+    if (refreshTimer != null) {
+      refreshTimer.shutdownNow ();
+      refreshTimer = null;
+    }
+  }
+
+  /**
+   *  Set how the files of indexes that are opened later are read:  the
+   *  Lucene Directory implementation and preloading.
+   *  @param options The directory options.
+   */
+  public static void setDirectoryOptions (DirectoryOptions options) {
+    directoryOptions = options;
   }
 
   /**
@@ -204,18 +442,17 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext context = openIndexContexts.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (context == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENT = context;
+    Idx.INDEXREADER = context.getIndexReader ();
   }
 }
@@ -0,0 +1,626 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An IndexContext holds one open Lucene index and the auxiliary data
+ *  structures that query evaluation uses with it: document lengths,
+ *  corpus statistics, the external id sidecar, and the term statistics
+ *  cache.
+ *  <p>
+ *  Query operators receive the context when they are initialized, so
+ *  that queries can be evaluated against several indexes at the same
+ *  time, and by several threads at the same time.  Every method is
+ *  safe to call concurrently.  {@link Idx} is a static facade over the
+ *  <i>current</i> context.
+ *  </p><p>
+ *  An index that changes can be reopened (see reopen), which produces
+ *  a new context.  Statistics that are kept per segment (field
+ *  statistics and term statistics) are reused for segments that did
+ *  not change.  A context is reference counted through its reader:
+ *  code that might use a context while it is replaced should hold a
+ *  reference (tryIncRef, decRef).
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static String externalIdField = new String ("externalId");
+
+  private final String indexPath;
+  private final IndexReader indexReader;
+  private final DocLengthStore docLengthStore;
+  private final ExternalIdStore externalIdStore;
+  private final IndexStats indexStats;
+  private final TermStatsCache termStatsCache;
+
+  /**
+   *  For the context of one segment (leaf) of an index, the context of
+   *  the whole index and the segment's first docid in it.
+   */
+  private final IndexContext parent;
+  private final int docBase;
+
+  /**
+   *  The external id sidecar describes documents below this docid.
+   *  It is Integer.MAX_VALUE if the sidecar describes this version of
+   *  the index, and smaller if the index was reopened and only its
+   *  first segments are unchanged.
+   */
+  private final int externalIdLimit;
+
+  /**
+   *  Statistics of the index's segments, keyed by segment core, so
+   *  that they can be reused when the index is reopened.
+   */
+  private final Map<Object,IndexStats> segmentStats;
+  private final Map<Object,TermStatsCache> segmentTermStats;
+
+  /**
+   *  The contexts of the index's segments, created when they are
+   *  first needed.
+   */
+  private volatile List<IndexContext> leaves = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a context from its parts.  Use open to open an index.
+   */
+  private IndexContext (String indexPath,
+                        IndexReader indexReader,
+                        DocLengthStore docLengthStore,
+                        ExternalIdStore externalIdStore,
+                        IndexStats indexStats,
+                        TermStatsCache termStatsCache,
+                        IndexContext parent,
+                        int docBase,
+                        int externalIdLimit,
+                        Map<Object,IndexStats> segmentStats,
+                        Map<Object,TermStatsCache> segmentTermStats) {
+    this.indexPath = indexPath;
+    this.indexReader = indexReader;
+    this.docLengthStore = docLengthStore;
+    this.externalIdStore = externalIdStore;
+    this.indexStats = indexStats;
+    this.termStatsCache = termStatsCache;
+    this.parent = parent;
+    this.docBase = docBase;
+    this.externalIdLimit = externalIdLimit;
+    this.segmentStats = segmentStats;
+    this.segmentTermStats = segmentTermStats;
+  }
+
+  /**
+   *  Open a Lucene index, the associated DocLengthStore and
+   *  IndexStats, and the external id sidecar, if there is one.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The context of the index.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static IndexContext open (String indexPath)
+    throws IllegalArgumentException, IOException {
+    return open (indexPath, DirectoryOptions.DEFAULT);
+  }
+
+  /**
+   *  Open a Lucene index, the associated DocLengthStore and
+   *  IndexStats, and the external id sidecar, if there is one.  If
+   *  the index has a current {@link IndexSnapshot}, they are read from
+   *  it instead.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param options How the index's files are read.
+   *  @return The context of the index.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static IndexContext open (String indexPath, DirectoryOptions options)
+    throws IllegalArgumentException, IOException {
+
+    DirectoryReader indexReader;
+    DocLengthStore docLengthStore;
+    ExternalIdStore externalIdStore;
+    IndexStats indexStats;
+
+    //  Statistics are kept per segment, so that the statistics of
+    //  segments that don't change are reused when the index is
+    //  reopened.
+
+    Map<Object,IndexStats> segmentStats =
+      new ConcurrentHashMap<Object,IndexStats> ();
+    Map<Object,TermStatsCache> segmentTermStats =
+      new ConcurrentHashMap<Object,TermStatsCache> ();
+
+    //  Open the Lucene index
+
+    indexReader = DirectoryReader.open (options.open (Paths.get (indexPath)));
+
+    if (indexReader == null) {
+      throw new IllegalArgumentException ("Can't open the index.");
+    }
+
+    //  A snapshot of this version of the index has every auxiliary
+    //  data structure, ready to use.
+
+    IndexSnapshot snapshot = IndexSnapshot.open (indexReader, indexPath, options.getVerifySnapshot ());
+    TermStatsCache termStatsCache = ofSegments (
+      indexReader, Collections.<Object,TermStatsCache>emptyMap (), segmentTermStats);
+
+    if (snapshot != null) {
+      return new IndexContext (
+        indexPath, indexReader, snapshot.getDocLengthStore (indexReader),
+        snapshot.getExternalIdStore (), snapshot.getIndexStats (),
+        termStatsCache, null, 0, Integer.MAX_VALUE,
+        segmentStats, segmentTermStats);
+    }
+
+    //  Lucene doesn't store field lengths the way that we want them,
+    //  so we have our own document length store.
+
+    docLengthStore = new DocLengthStore (indexReader);
+
+    if (docLengthStore == null) {
+      throw new IllegalArgumentException ("Can't open the document length store.");
+    }
+
+    //  External ids are read from a memory-mapped sidecar if
+    //  ExternalIdStore has written one for this version of the index.
+
+    externalIdStore = ExternalIdStore.open (indexReader, indexPath);
+
+    //  Corpus statistics are needed for every posting, so they are
+    //  computed once (or read from the index directory) now.
+
+    indexStats = IndexStats.open (indexReader, indexPath, segmentStats);
+
+    return new IndexContext (
+      indexPath, indexReader, docLengthStore, externalIdStore, indexStats,
+      termStatsCache, null, 0, Integer.MAX_VALUE,
+      segmentStats, segmentTermStats);
+  }
+
+  /**
+   *  Create a term statistics cache that sums the caches of an
+   *  index's segments.  Segments that had a cache keep it; the others
+   *  start with an empty cache.
+   *  @param reader The index.
+   *  @param previous The caches of segments, keyed by segment core.
+   *  @param segments The caches of the index's segments are added to it.
+   *  @return The cache of the index.
+   */
+  private static TermStatsCache ofSegments (IndexReader reader,
+                                            Map<Object,TermStatsCache> previous,
+                                            Map<Object,TermStatsCache> segments) {
+
+    List<TermStatsCache> termStats = new ArrayList<TermStatsCache> ();
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      LeafReader segment = leaf.reader ();
+      Object key = segment.getCoreCacheKey ();
+      TermStatsCache t = previous.get (key);
+
+      t = (t == null)
+        ? new TermStatsCache (segment, TermStatsCache.DEFAULT_MAX_SIZE)
+        : t.reopen (segment);
+
+      segments.put (key, t);
+      termStats.add (t);
+    }
+
+    return TermStatsCache.ofSegments (termStats, TermStatsCache.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   *  Compute the statistics of the index's segments, if they were not
+   *  computed when the index was opened (because they were read from
+   *  a snapshot or a saved file), so that the first reopen can reuse
+   *  them.  It scans the document lengths of the index, so Idx does it
+   *  in the background before the first refresh.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void prepareReopen () throws IOException {
+    IndexStats.compute (this.indexReader, this.segmentStats);
+  }
+
+  /**
+   *  Get a view of this context that uses different corpus and field
+   *  statistics, e.g., statistics of a whole corpus when this index
+   *  is one shard of it.  Everything else is shared.
+   *  @param indexStats The statistics to use.
+   *  @return A context that uses the statistics.
+   */
+  public IndexContext withIndexStats (IndexStats indexStats) {
+    return new IndexContext (
+      this.indexPath, this.indexReader, this.docLengthStore,
+      this.externalIdStore, indexStats, this.termStatsCache,
+      this.parent, this.docBase, this.externalIdLimit,
+      this.segmentStats, this.segmentTermStats);
+  }
+
+  /**
+   *  Reopen the index if it changed, e.g., because documents were
+   *  added or deleted and committed.  The new context reuses the
+   *  statistics of segments that did not change, and the external id
+   *  sidecar for the unchanged segments at the start of the index.
+   *  Everything else is rebuilt.  This context is not closed; release
+   *  it with decRef when it is no longer used.
+   *  @return The context of the new version of the index, or null if
+   *    the index did not change.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IndexContext reopen () throws IOException {
+
+    if (this.parent != null) {
+      throw new IllegalStateException ("A segment can't be reopened");
+    }
+
+    DirectoryReader newReader =
+      DirectoryReader.openIfChanged ((DirectoryReader) this.indexReader);
+
+    if (newReader == null) {
+      return null;
+    }
+
+    Map<Object,IndexStats> newSegmentStats =
+      new ConcurrentHashMap<Object,IndexStats> ();
+    Map<Object,TermStatsCache> newSegmentTermStats =
+      new ConcurrentHashMap<Object,TermStatsCache> ();
+    List<LeafReaderContext> oldLeaves = this.indexReader.leaves ();
+    int unchangedPrefix = 0;
+    boolean inPrefix = true;
+
+    for (LeafReaderContext leaf : newReader.leaves ()) {
+      LeafReader reader = leaf.reader ();
+      Object key = reader.getCoreCacheKey ();
+
+      IndexStats s = this.segmentStats.get (key);
+
+      if (s != null) {
+        newSegmentStats.put (key, s);
+      }
+
+      //  Docids don't change in segments that were not merged away,
+      //  so the sidecar is still right for a prefix of the index.
+
+      inPrefix = inPrefix &&
+        (leaf.ord < oldLeaves.size ()) &&
+        (oldLeaves.get (leaf.ord).reader ().getCoreCacheKey () == key);
+
+      if (inPrefix) {
+        unchangedPrefix = leaf.docBase + reader.maxDoc ();
+      }
+    }
+
+    //  Only new segments are scanned.
+
+    IndexStats newStats = IndexStats.compute (newReader, newSegmentStats);
+    TermStatsCache newTermStats =
+      ofSegments (newReader, this.segmentTermStats, newSegmentTermStats);
+
+    ExternalIdStore store = this.externalIdStore;
+    int limit = Math.min (this.externalIdLimit, unchangedPrefix);
+
+    if ((store == null) || (limit == 0)) {
+      store = null;
+      limit = 0;
+    }
+
+    return new IndexContext (
+      this.indexPath, newReader, new DocLengthStore (newReader), store,
+      newStats, newTermStats, null, 0, limit, newSegmentStats, newSegmentTermStats);
+  }
+
+  /**
+   *  Increase the reference count of the index.
+   *  @return False if the index was already closed.
+   */
+  public boolean tryIncRef () {
+    return (this.parent != null)
+      ? this.parent.tryIncRef ()
+      : this.indexReader.tryIncRef ();
+  }
+
+  /**
+   *  Decrease the reference count of the index.  The index is closed
+   *  when the count reaches 0.
+   *  @throws IOException Error closing the Lucene index.
+   */
+  public void decRef () throws IOException {
+    if (this.parent != null) {
+      this.parent.decRef ();
+    } else {
+      this.indexReader.decRef ();
+    }
+  }
+
+  /**
+   *  Get the contexts of the index's segments (Lucene leaf readers).
+   *  A segment's context reads postings, document lengths and term
+   *  statistics from the segment alone, and uses segment docids, but
+   *  its corpus statistics and external ids are those of the whole
+   *  index.  Use getDocBase to convert a segment docid to an index
+   *  docid.
+   *  @return The contexts of the segments, in docid order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public List<IndexContext> getLeafContexts () throws IOException {
+
+    List<IndexContext> result = this.leaves;
+
+    if (result != null) {
+      return result;
+    }
+
+    synchronized (this) {
+      if (this.leaves == null) {
+        List<IndexContext> contexts = new ArrayList<IndexContext> ();
+
+        for (LeafReaderContext leaf : this.indexReader.leaves ()) {
+          LeafReader reader = leaf.reader ();
+          Object key = reader.getCoreCacheKey ();
+          TermStatsCache termStats = this.segmentTermStats.get (key);
+
+          if (termStats == null) {
+            termStats = new TermStatsCache (reader, TermStatsCache.DEFAULT_MAX_SIZE);
+            this.segmentTermStats.put (key, termStats);
+          }
+
+          contexts.add (new IndexContext (
+            this.indexPath, reader, new DocLengthStore (reader), null,
+            this.indexStats, termStats, this, this.docBase + leaf.docBase,
+            0, this.segmentStats, this.segmentTermStats));
+        }
+
+        this.leaves = Collections.unmodifiableList (contexts);
+      }
+
+      return this.leaves;
+    }
+  }
+
+  /**
+   *  Get the docid, in the whole index, of the first document of this
+   *  context.  It is 0 unless this is the context of a segment.
+   *  @return The first docid.
+   */
+  public int getDocBase () {
+    return this.docBase;
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.indexReader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   */
+  public int getDocCount (String fieldName) {
+    return this.indexStats.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.  Term
+   *  statistics are cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The document frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return this.termStatsCache.docFreq (new Term (fieldName, term));
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.  Term statistics are
+   *  cached.
+   *  @param term The field and term.
+   *  @return The document frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (Term term) throws IOException {
+    return this.termStatsCache.docFreq (term);
+  }
+
+  /**
+   *  Get the document length store of the index.
+   *  @return The document length store.
+   */
+  public DocLengthStore getDocLengthStore () {
+    return this.docLengthStore;
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.  The external id sidecar is used if the
+   *  index has one, otherwise the document's stored fields are read.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+    if (this.parent != null) {
+      return this.parent.getExternalDocid (iid + this.docBase - this.parent.docBase);
+    }
+
+    if ((this.externalIdStore != null) && (iid < this.externalIdLimit)) {
+      return this.externalIdStore.getExternalDocid (iid);
+    }
+
+    Document d = this.indexReader.document (iid);
+    return d.get (externalIdField);
+  }
+
+  /**
+   *  Get the external id sidecar of the index.
+   *  @return The external id store, or null if the index doesn't have one.
+   */
+  public ExternalIdStore getExternalIdStore () {
+    return this.externalIdStore;
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index reader.
+   */
+  public IndexReader getIndexReader () {
+    return this.indexReader;
+  }
+
+  /**
+   *  Get the directory that contains the index.
+   *  @return The index path.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the corpus and field statistics of the index.
+   *  @return The statistics of the index.
+   */
+  public IndexStats getIndexStats () {
+    return this.indexStats;
+  }
+
+  /**
+   * Get the internal document id for a document specified by its
+   * external id.  If no such document exists, throw an exception.
+   * The external id sidecar is used if the index has one, otherwise
+   * the term dictionary is searched.
+   * @param externalId The external docid in the Lucene index.
+   * @return iternal docid.
+   * @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    if (this.parent != null) {
+      int docid =
+        this.parent.getInternalDocid (externalId) + this.parent.docBase - this.docBase;
+
+      if ((docid < 0) || (docid >= this.indexReader.maxDoc ())) {
+        throw new Exception ("External id " + externalId + " not found.");
+      }
+
+      return docid;
+    }
+
+    if ((this.externalIdStore != null) &&
+        (this.externalIdLimit == Integer.MAX_VALUE) &&
+        this.externalIdStore.hasInverse ()) {
+      return this.externalIdStore.getInternalDocid (externalId);
+    }
+
+    BytesRef termBytes = new BytesRef (externalId);
+    Term term = new Term (externalIdField, termBytes);
+    int df = this.indexReader.docFreq (term);
+
+    if (df == 0) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (df > 1) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    PostingsEnum iList =
+      MultiFields.getTermPositionsEnum (this.indexReader, externalIdField, termBytes);
+    iList.nextDoc();
+    return (iList.docID());
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.indexStats.getNumDocs ();
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.indexStats.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the term statistics cache of the index.
+   *  @return The term statistics cache.
+   */
+  public TermStatsCache getTermStatsCache () {
+    return this.termStatsCache;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  Term statistics are cached.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.termStatsCache.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.  Term
+   *  statistics are cached.
+   *  @param term The field and term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (Term term) throws IOException {
+    return this.termStatsCache.totalTermFreq (term);
+  }
+
+  /**
+   *  Read the statistics (df, ctf) of many terms in a field into the
+   *  term statistics cache with a single pass over the field's term
+   *  dictionary.
+   *  @param fieldName The field name.
+   *  @param terms The terms.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void prefetchTermStats (String fieldName, Collection<String> terms)
+    throws IOException {
+    this.termStatsCache.prefetch (fieldName, terms);
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  IndexSnapshot is a single file, in the index directory, that holds
+ *  every auxiliary data structure that is derived from the index:  the
+ *  corpus and field statistics, the length of every field of every
+ *  document, and the external id maps.  Building them takes a pass
+ *  over the index at every startup; attaching a snapshot memory-maps
+ *  it instead, so short runs start in milliseconds.
+ *  <p>
+ *  The snapshot is written by running this class as a program.  Its
+ *  header records the index version, commit generation and maxDoc, so
+ *  a snapshot of another version of the index is not used.  The file
+ *  is a sequence of named sections, each with a CRC32 checksum.
+ *  Opening a snapshot verifies the header, the section directory and
+ *  the small stats section; the other sections, which are most of
+ *  the file, are verified only if asked (index:verifySnapshot, verify,
+ *  or running this class with -verify), so that attaching doesn't read
+ *  the whole file.
+ *  </p>
+ *  <pre>
+ *    int   magic
+ *    int   format version
+ *    long  index version
+ *    long  commit generation
+ *    int   maxDoc
+ *    int   unused
+ *    long  offset of the section directory
+ *    long  checksum of the section directory
+ *    ...   sections, each starting at a multiple of 8
+ *    int   number of sections       (the section directory)
+ *    { UTF name, long offset, long length, long checksum } per section
+ *  </pre>
+ *  <p>
+ *  The sections are "stats" ({@link IndexStats}), "length:FIELD" (one
+ *  int per docid for each field that has lengths), and
+ *  "externalId.fwd" and "externalId.inv" (the contents of the
+ *  {@link ExternalIdStore} sidecar files).
+ *  </p>
+ */
+public class IndexSnapshot {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the snapshot file in the index directory.
+   */
+  public static final String FILE_NAME = "index.snapshot";
+
+  private static final int MAGIC = 0x4944534e;		// "IDSN"
+  private static final int FORMAT_VERSION = 2;		// 2: CRC32, not CRC32C
+  private static final int HEADER_LENGTH = 48;
+
+  private static final String STATS = "stats";
+  private static final String LENGTH_PREFIX = "length:";
+  private static final String EXTERNAL_ID = "externalId.fwd";
+  private static final String EXTERNAL_ID_INVERSE = "externalId.inv";
+
+  private static final String USAGE =
+    "Usage:  java IndexSnapshot [-verify] -index INDEX_PATH\n\n" +
+    "Writes " + FILE_NAME + " in the index directory, or with -verify,\n" +
+    "verifies the checksum of every section of it.\n";
+
+  private final Path file;
+  private final int maxDoc;
+  private final Map<String,ByteBuffer> sections;
+  private final Map<String,Long> checksums;
+
+  //  --------------- Methods ---------------------------------------
+
+  private IndexSnapshot (Path file,
+                         int maxDoc,
+                         Map<String,ByteBuffer> sections,
+                         Map<String,Long> checksums) {
+    this.file = file;
+    this.maxDoc = maxDoc;
+    this.sections = sections;
+    this.checksums = checksums;
+  }
+
+  /**
+   *  Get a section of the snapshot.
+   *  @param name The name of the section.
+   *  @return A buffer positioned at the start of the section, or null.
+   */
+  private ByteBuffer section (String name) {
+    ByteBuffer b = this.sections.get (name);
+    return (b == null) ? null : b.duplicate ();
+  }
+
+  /**
+   *  Get the document lengths in the snapshot.
+   *  @param reader The index that the snapshot describes.
+   *  @return A document length store that reads the snapshot.
+   */
+  public DocLengthStore getDocLengthStore (IndexReader reader) {
+
+    Map<String,IntBuffer> lengths = new HashMap<String,IntBuffer> ();
+
+    for (String name : this.sections.keySet ()) {
+      if (name.startsWith (LENGTH_PREFIX)) {
+        lengths.put (name.substring (LENGTH_PREFIX.length ()),
+                     section (name).asIntBuffer ());
+      }
+    }
+
+    return new DocLengthStore (reader, lengths);
+  }
+
+  /**
+   *  Get the external id maps in the snapshot.
+   *  @return The external id store, or null if the snapshot has none.
+   */
+  public ExternalIdStore getExternalIdStore () {
+
+    ByteBuffer forward = section (EXTERNAL_ID);
+
+    if (forward == null) {
+      return null;
+    }
+
+    return ExternalIdStore.fromBuffers (
+      forward.slice (), section (EXTERNAL_ID_INVERSE), this.maxDoc);
+  }
+
+  /**
+   *  Get the corpus and field statistics in the snapshot.
+   *  @return The statistics.
+   *  @throws IOException The section is malformed.
+   */
+  public IndexStats getIndexStats () throws IOException {
+
+    ByteBuffer b = section (STATS);
+    byte[] bytes = new byte[b.remaining ()];
+    b.get (bytes);
+
+    return IndexStats.readFrom (
+      new DataInputStream (new ByteArrayInputStream (bytes)), this.maxDoc);
+  }
+
+  /**
+   *  Attach the snapshot of an index, if there is one and it matches
+   *  the index.  Only the header, the section directory and the stats
+   *  section are verified.
+   *  @param reader The index.
+   *  @param indexPath A directory that contains the Lucene index.
+   *  @return The snapshot, or null if it is missing, stale or corrupt.
+   *  @throws IOException Error reading the snapshot.
+   */
+  public static IndexSnapshot open (DirectoryReader reader, String indexPath)
+    throws IOException {
+    return open (reader, indexPath, false);
+  }
+
+  /**
+   *  Attach the snapshot of an index, if there is one and it matches
+   *  the index.
+   *  @param reader The index.
+   *  @param indexPath A directory that contains the Lucene index.
+   *  @param verify True if the checksum of every section is verified,
+   *    which reads the whole file; otherwise only the header, the
+   *    section directory and the stats section are verified.
+   *  @return The snapshot, or null if it is missing, stale or corrupt.
+   *  @throws IOException Error reading the snapshot.
+   */
+  public static IndexSnapshot open (DirectoryReader reader,
+                                    String indexPath,
+                                    boolean verify)
+    throws IOException {
+
+    Path file = Paths.get (indexPath, FILE_NAME);
+
+    if (! Files.isReadable (file)) {
+      return null;
+    }
+
+    try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+      long size = channel.size ();
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+
+      if ((size < HEADER_LENGTH) ||
+          (channel.read (header, 0) != HEADER_LENGTH) ||
+          (header.getInt (0) != MAGIC) ||
+          (header.getInt (4) != FORMAT_VERSION)) {
+        System.err.println ("Warning:  Ignoring malformed " + file);
+        return null;
+      }
+
+      if ((header.getLong (8) != reader.getVersion ()) ||
+          (header.getLong (16) != reader.getIndexCommit ().getGeneration ()) ||
+          (header.getInt (24) != reader.maxDoc ())) {
+        System.err.println ("Warning:  Ignoring stale " + file);
+        return null;
+      }
+
+      //  Read and check the section directory.
+
+      long directoryOffset = header.getLong (32);
+
+      if ((directoryOffset < HEADER_LENGTH) || (directoryOffset > size) ||
+          (size - directoryOffset > Integer.MAX_VALUE)) {
+        System.err.println ("Warning:  Ignoring malformed " + file);
+        return null;
+      }
+
+      ByteBuffer directory = ByteBuffer.allocate ((int) (size - directoryOffset));
+
+      while (directory.hasRemaining () &&
+             (channel.read (directory, directoryOffset + directory.position ()) > 0))
+        ;
+      directory.flip ();
+
+      if (checksum (directory.duplicate ()) != header.getLong (40)) {
+        System.err.println ("Warning:  Ignoring corrupt " + file);
+        return null;
+      }
+
+      DataInputStream in = new DataInputStream (
+        new ByteArrayInputStream (directory.array (), 0, directory.limit ()));
+      int count = in.readInt ();
+      Map<String,ByteBuffer> sections = new HashMap<String,ByteBuffer> ();
+      Map<String,Long> checksums = new HashMap<String,Long> ();
+
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF ();
+        long offset = in.readLong ();
+        long length = in.readLong ();
+        long crc = in.readLong ();
+
+        if ((offset < HEADER_LENGTH) || (length < 0) ||
+            (offset + length > directoryOffset) ||
+            (length > Integer.MAX_VALUE)) {
+          System.err.println ("Warning:  Ignoring malformed " + file);
+          return null;
+        }
+
+        sections.put (name,
+                      channel.map (FileChannel.MapMode.READ_ONLY, offset, length));
+        checksums.put (name, crc);
+      }
+
+      if (! sections.containsKey (STATS)) {
+        System.err.println ("Warning:  Ignoring malformed " + file);
+        return null;
+      }
+
+      IndexSnapshot snapshot =
+        new IndexSnapshot (file, reader.maxDoc (), sections, checksums);
+
+      if (! (verify ? snapshot.verify () : snapshot.verify (STATS))) {
+        System.err.println ("Warning:  Ignoring corrupt " + file);
+        return null;
+      }
+
+      return snapshot;
+    }
+  }
+
+  /**
+   *  Verify the checksum of every section.  It reads the whole file.
+   *  @return True if every section is intact.
+   */
+  public boolean verify () {
+
+    boolean intact = true;
+
+    for (String name : this.sections.keySet ()) {
+      intact &= verify (name);
+    }
+
+    return intact;
+  }
+
+  /**
+   *  Verify the checksum of a section.
+   *  @param name The name of the section.
+   *  @return True if the section is intact.
+   */
+  private boolean verify (String name) {
+
+    if (checksum (section (name)) == this.checksums.get (name)) {
+      return true;
+    }
+
+    System.err.println ("Warning:  Section " + name + " of " + this.file + " is corrupt");
+    return false;
+  }
+
+  /**
+   *  Compute the checksum of a buffer's remaining bytes.
+   *  @param b The buffer.
+   *  @return The checksum.
+   */
+  private static long checksum (ByteBuffer b) {
+    CRC32 crc = new CRC32 ();
+    crc.update (b);
+    return crc.getValue ();
+  }
+
+  /**
+   *  Write the snapshot of an index.  It is written to a temporary
+   *  file that replaces the old snapshot when it is complete.
+   *  @param reader The index.
+   *  @param file The file to write.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void write (DirectoryReader reader, Path file)
+    throws IOException {
+
+    DocLengthStore docLengthStore = new DocLengthStore (reader);
+    IndexStats stats = IndexStats.compute (reader, docLengthStore);
+    int maxDoc = reader.maxDoc ();
+    Path tmp = file.resolveSibling (file.getFileName () + ".tmp");
+
+    try (FileChannel channel = FileChannel.open (
+           tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+           StandardOpenOption.TRUNCATE_EXISTING)) {
+
+      SectionWriter w = new SectionWriter (channel);
+
+      DataOutputStream out = w.begin (STATS);
+      stats.writeTo (out);
+      w.end ();
+
+      for (String field : stats.getFields ()) {
+        if (docLengthStore.hasField (field)) {
+          out = w.begin (LENGTH_PREFIX + field);
+
+          for (int docid = 0; docid < maxDoc; docid++) {
+            out.writeInt ((int) docLengthStore.getDocLength (field, docid));
+          }
+          w.end ();
+        }
+      }
+
+      ExternalIdStore.write (reader, w.begin (EXTERNAL_ID));
+      w.end ();
+
+      ExternalIdStore.writeInverse (reader, w.begin (EXTERNAL_ID_INVERSE));
+      w.end ();
+
+      //  The section directory, then the header.
+
+      long directoryOffset = channel.position ();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+      w.writeDirectory (new DataOutputStream (bytes));
+      ByteBuffer directory = ByteBuffer.wrap (bytes.toByteArray ());
+      long directoryCrc = checksum (directory.duplicate ());
+      writeFully (channel, directory, directoryOffset);
+
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+      header.putInt (MAGIC);
+      header.putInt (FORMAT_VERSION);
+      header.putLong (reader.getVersion ());
+      header.putLong (reader.getIndexCommit ().getGeneration ());
+      header.putInt (maxDoc);
+      header.putInt (0);
+      header.putLong (directoryOffset);
+      header.putLong (directoryCrc);
+      header.flip ();
+      writeFully (channel, header, 0);
+
+      channel.force (true);
+    }
+
+    Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   *  Write a buffer at a position in a file.
+   *  @param channel The file.
+   *  @param b The bytes to write.
+   *  @param position The position.
+   *  @throws IOException Error writing the file.
+   */
+  private static void writeFully (FileChannel channel, ByteBuffer b, long position)
+    throws IOException {
+    while (b.hasRemaining ()) {
+      position += channel.write (b, position);
+    }
+  }
+
+  /**
+   *  Writes the sections of a snapshot, and remembers where they are.
+   */
+  private static class SectionWriter {
+
+    private final FileChannel channel;
+    private final List<String> names = new ArrayList<String> ();
+    private final List<long[]> entries = new ArrayList<long[]> ();
+    private DataOutputStream out = null;
+    private CRC32 crc = null;
+    private long start = 0;
+
+    private SectionWriter (FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.channel.position (HEADER_LENGTH);
+    }
+
+    /**
+     *  Start a section, at a multiple of 8 bytes.
+     *  @param name The name of the section.
+     *  @return The stream to write the section to.
+     *  @throws IOException Error writing the file.
+     */
+    private DataOutputStream begin (String name) throws IOException {
+
+      long pad = (8 - (this.channel.position () % 8)) % 8;
+      this.channel.write (ByteBuffer.allocate ((int) pad));
+
+      this.names.add (name);
+      this.start = this.channel.position ();
+      this.crc = new CRC32 ();
+      this.out = new DataOutputStream (new BufferedOutputStream (
+        new CheckedOutputStream (
+          Channels.newOutputStream (this.channel), this.crc), 1 << 16));
+      return this.out;
+    }
+
+    /**
+     *  Finish the current section.
+     *  @throws IOException Error writing the file.
+     */
+    private void end () throws IOException {
+      this.out.flush ();
+      this.entries.add (new long[] {
+        this.start, this.channel.position () - this.start, this.crc.getValue () });
+      this.out = null;
+    }
+
+    /**
+     *  Write the section directory.
+     *  @param out The stream to write it to.
+     *  @throws IOException Error writing the stream.
+     */
+    private void writeDirectory (DataOutputStream out) throws IOException {
+      out.writeInt (this.names.size ());
+
+      for (int i = 0; i < this.names.size (); i++) {
+        long[] e = this.entries.get (i);
+        out.writeUTF (this.names.get (i));
+        out.writeLong (e[0]);
+        out.writeLong (e[1]);
+        out.writeLong (e[2]);
+      }
+      out.flush ();
+    }
+  }
+
+  /**
+   *  Write the snapshot of the index named on the command line.
+   *  @param args -index INDEX_PATH
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    boolean verify = (args.length == 3) && "-verify".equals (args[0]);
+
+    if (verify) {
+      args = Arrays.copyOfRange (args, 1, args.length);
+    }
+
+    if ((args.length != 2) || (! "-index".equals (args[0]))) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    try (DirectoryReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (args[1])))) {
+      Path file = Paths.get (args[1], FILE_NAME);
+
+      if (verify) {
+        IndexSnapshot snapshot = open (reader, args[1], true);
+        timer.stop ();
+        System.out.println (((snapshot == null) ? "Can't use " : "Verified ") +
+                            file + " in " + timer);
+        System.exit ((snapshot == null) ? 1 : 0);
+      }
+
+      write (reader, file);
+      timer.stop ();
+      System.out.println ("Wrote " + file + " (" + Files.size (file) +
+                          " bytes) in " + timer);
+    }
+  }
+}
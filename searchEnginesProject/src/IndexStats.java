@@ -0,0 +1,456 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  IndexStats is an immutable snapshot of the corpus and field
+ *  statistics that retrieval models use on every posting: the number
+ *  of documents, and for each field the number of documents that
+ *  contain it, the sum and average of its lengths, and its minimum
+ *  and maximum length (useful as bounds for pruning).
+ *  <p>
+ *  The statistics are computed once, when {@link Idx} opens the
+ *  index, unless they were saved in the index directory by running
+ *  this class's main method, in which case they are read instead of
+ *  scanning the document lengths again.  The file records the index
+ *  version and maxDoc, so stale statistics are recomputed.  Opening
+ *  an index never writes the file.
+ *  </p>
+ */
+public class IndexStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the statistics file in the index directory.
+   */
+  public static final String FILE_NAME = "corpus.stats";
+
+  private static final int MAGIC = 0x49445853;		// "IDXS"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String USAGE =
+    "Usage:  java IndexStats -index INDEX_PATH\n\n" +
+    "Writes " + FILE_NAME + " into the index directory.\n";
+
+  private final long numDocs;
+  private final int maxDoc;
+  private final Map<String,FieldStats> fields;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Statistics about one field.
+   */
+  public static class FieldStats {
+
+    /**
+     *  The number of documents that contain the field.
+     */
+    public final int docCount;
+
+    /**
+     *  The total number of term occurrences in the field.
+     */
+    public final long sumTotalTermFreq;
+
+    /**
+     *  The average length of the field in documents that contain it.
+     */
+    public final double avgLength;
+
+    /**
+     *  The length of the shortest instance of the field, or 0 if
+     *  the field doesn't have lengths.
+     */
+    public final long minLength;
+
+    /**
+     *  The length of the longest instance of the field, or 0 if
+     *  the field doesn't have lengths.
+     */
+    public final long maxLength;
+
+    private FieldStats (int docCount, long sumTotalTermFreq,
+                        long minLength, long maxLength) {
+      this.docCount = docCount;
+      this.sumTotalTermFreq = sumTotalTermFreq;
+      this.avgLength = sumTotalTermFreq / (double) docCount;
+      this.minLength = minLength;
+      this.maxLength = maxLength;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private IndexStats (long numDocs, int maxDoc, Map<String,FieldStats> fields) {
+    this.numDocs = numDocs;
+    this.maxDoc = maxDoc;
+    this.fields = Collections.unmodifiableMap (fields);
+  }
+
+  /**
+   *  Compute the statistics of an index.  This scans the document
+   *  lengths of every field, so it is done only when there isn't a
+   *  saved copy.
+   *  @param reader The index.
+   *  @param docLengthStore The document lengths of the index.
+   *  @return The statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static IndexStats compute (IndexReader reader,
+                                    DocLengthStore docLengthStore)
+    throws IOException {
+
+    Map<String,FieldStats> fields = new TreeMap<String,FieldStats> ();
+    int maxDoc = reader.maxDoc ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      int docCount = reader.getDocCount (field);
+      long sum = reader.getSumTotalTermFreq (field);
+      long min = 0;
+      long max = 0;
+
+      if (docLengthStore.hasField (field)) {
+        min = Long.MAX_VALUE;
+
+        for (int docid = 0; docid < maxDoc; docid++) {
+          long length = docLengthStore.getDocLength (field, docid);
+
+          if (length > 0) {			// 0 means the field is absent
+            min = Math.min (min, length);
+            max = Math.max (max, length);
+          }
+        }
+
+        if (min == Long.MAX_VALUE) {
+          min = 0;
+        }
+      }
+
+      fields.put (field, new FieldStats (docCount, sum, min, max));
+    }
+
+    return new IndexStats (reader.numDocs (), maxDoc, fields);
+  }
+
+  /**
+   *  Combine the statistics of several indexes that are parts (shards)
+   *  of one corpus into the statistics of the whole corpus.
+   *  @param shards The statistics of each part.
+   *  @return The statistics of the corpus.
+   */
+  public static IndexStats merge (List<IndexStats> shards) {
+
+    Map<String,FieldStats> fields = new TreeMap<String,FieldStats> ();
+    long numDocs = 0;
+    int maxDoc = 0;
+
+    for (IndexStats shard : shards) {
+      numDocs += shard.numDocs;
+      maxDoc += shard.maxDoc;
+
+      for (Map.Entry<String,FieldStats> entry : shard.fields.entrySet ()) {
+        FieldStats a = fields.get (entry.getKey ());
+        FieldStats b = entry.getValue ();
+
+        if (a == null) {
+          fields.put (entry.getKey (), b);
+        } else {
+          long min = (a.minLength == 0) ? b.minLength :
+                     (b.minLength == 0) ? a.minLength :
+                     Math.min (a.minLength, b.minLength);
+          fields.put (entry.getKey (),
+                      new FieldStats (a.docCount + b.docCount,
+                                      a.sumTotalTermFreq + b.sumTotalTermFreq,
+                                      min, Math.max (a.maxLength, b.maxLength)));
+        }
+      }
+    }
+
+    return new IndexStats (numDocs, maxDoc, fields);
+  }
+
+  /**
+   *  Get a copy of these statistics with a different number of
+   *  documents, e.g., after documents were deleted.  The field
+   *  statistics include deleted documents, as Lucene's do.
+   *  @param numDocs The number of documents.
+   *  @return The statistics.
+   */
+  public IndexStats withNumDocs (long numDocs) {
+    return new IndexStats (numDocs, this.maxDoc, this.fields);
+  }
+
+  /**
+   *  Get the statistics of an index.  They are read from the index
+   *  directory if a current copy was saved there; otherwise they are
+   *  computed, segment by segment.  The index directory is not changed.
+   *  @param reader The index.
+   *  @param indexPath A directory that contains the Lucene index.
+   *  @param segments If the statistics are computed, the statistics of
+   *    each segment are added to it, keyed by segment core.
+   *  @return The statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static IndexStats open (DirectoryReader reader,
+                                 String indexPath,
+                                 Map<Object,IndexStats> segments)
+    throws IOException {
+
+    Path file = Paths.get (indexPath, FILE_NAME);
+    IndexStats stats = read (reader, file);
+
+    if (stats == null) {
+      stats = compute (reader, segments);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Compute the statistics of an index from the statistics of its
+   *  segments.  Segments whose statistics are already known are not
+   *  scanned again, which is what makes reopening an index cheap.
+   *  @param reader The index.
+   *  @param segments The statistics of segments, keyed by segment
+   *    core.  The statistics of the other segments are added to it.
+   *  @return The statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static IndexStats compute (IndexReader reader,
+                                    Map<Object,IndexStats> segments)
+    throws IOException {
+
+    List<IndexStats> stats = new ArrayList<IndexStats> ();
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      LeafReader segment = leaf.reader ();
+      Object key = segment.getCoreCacheKey ();
+      IndexStats s = segments.get (key);
+
+      if (s == null) {
+        s = compute (segment, new DocLengthStore (segment));
+        segments.put (key, s);
+      }
+
+      stats.add (s);
+    }
+
+    //  Segment statistics include deleted documents; the number of
+    //  documents doesn't.
+
+    return merge (stats).withNumDocs (reader.numDocs ());
+  }
+
+  /**
+   *  Read saved statistics, if they exist and match the index.
+   *  @param reader The index that the statistics must describe.
+   *  @param file The statistics file.
+   *  @return The statistics, or null if they are missing or stale.
+   *  @throws IOException Error reading the file.
+   */
+  private static IndexStats read (DirectoryReader reader, Path file)
+    throws IOException {
+
+    if (! Files.isReadable (file)) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (Files.newInputStream (file)))) {
+
+      if ((in.readInt () != MAGIC) ||
+          (in.readInt () != FORMAT_VERSION) ||
+          (in.readLong () != reader.getVersion ()) ||
+          (in.readInt () != reader.maxDoc ())) {
+        return null;
+      }
+
+      return readFrom (in, reader.maxDoc ());
+    } catch (EOFException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Read statistics written by writeTo.
+   *  @param in The stream to read from.
+   *  @param maxDoc The maxDoc of the index that they describe.
+   *  @return The statistics.
+   *  @throws IOException Error reading the stream.
+   */
+  static IndexStats readFrom (DataInput in, int maxDoc) throws IOException {
+
+    long numDocs = in.readLong ();
+    int numFields = in.readInt ();
+    Map<String,FieldStats> fields = new TreeMap<String,FieldStats> ();
+
+    for (int i = 0; i < numFields; i++) {
+      String field = in.readUTF ();
+      int docCount = in.readInt ();
+      long sum = in.readLong ();
+      long min = in.readLong ();
+      long max = in.readLong ();
+      fields.put (field, new FieldStats (docCount, sum, min, max));
+    }
+
+    return new IndexStats (numDocs, maxDoc, fields);
+  }
+
+  /**
+   *  Save the statistics.  They are written to a temporary file that
+   *  replaces the old file when it is complete, so that readers never
+   *  see a partial file.
+   *  @param reader The index that the statistics describe.
+   *  @param file The statistics file.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (DirectoryReader reader, Path file) throws IOException {
+
+    Path tmp = file.resolveSibling (file.getFileName () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT_VERSION);
+      out.writeLong (reader.getVersion ());
+      out.writeInt (this.maxDoc);
+      writeTo (out);
+    }
+
+    Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   *  Write the statistics, without a header.
+   *  @param out The stream to write to.
+   *  @throws IOException Error writing the stream.
+   */
+  void writeTo (DataOutput out) throws IOException {
+
+    out.writeLong (this.numDocs);
+    out.writeInt (this.fields.size ());
+
+    for (Map.Entry<String,FieldStats> entry : this.fields.entrySet ()) {
+      FieldStats f = entry.getValue ();
+      out.writeUTF (entry.getKey ());
+      out.writeInt (f.docCount);
+      out.writeLong (f.sumTotalTermFreq);
+      out.writeLong (f.minLength);
+      out.writeLong (f.maxLength);
+    }
+  }
+
+  /**
+   *  Get the average length of a field in documents that contain it.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   */
+  public double getAvgFieldLength (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? Double.NaN : f.avgLength;
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName The field name.
+   *  @return The number of documents that contain the field.
+   */
+  public int getDocCount (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.docCount;
+  }
+
+  /**
+   *  Get the statistics of a field.
+   *  @param fieldName The field name.
+   *  @return The field's statistics, or null if it isn't indexed.
+   */
+  public FieldStats getFieldStats (String fieldName) {
+    return this.fields.get (fieldName);
+  }
+
+  /**
+   *  Get the names of the indexed fields.
+   *  @return The field names.
+   */
+  public Set<String> getFields () {
+    return this.fields.keySet ();
+  }
+
+  /**
+   *  Get the length of the longest instance of a field.
+   *  @param fieldName The field name.
+   *  @return The maximum field length.
+   */
+  public long getMaxFieldLength (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.maxLength;
+  }
+
+  /**
+   *  Get the maxDoc of the index (one greater than the largest
+   *  internal document id).
+   *  @return The maxDoc of the index.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the length of the shortest instance of a field.
+   *  @param fieldName The field name.
+   *  @return The minimum field length.
+   */
+  public long getMinFieldLength (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.minLength;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.sumTotalTermFreq;
+  }
+
+  /**
+   *  Write the statistics file of the index named on the command line.
+   *  @param args -index INDEX_PATH
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length != 2) || (! "-index".equals (args[0]))) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    try (DirectoryReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (args[1])))) {
+      Path file = Paths.get (args[1], FILE_NAME);
+      compute (reader, new DocLengthStore (reader)).write (reader, file);
+      System.out.println ("Wrote " + file);
+    }
+  }
+}
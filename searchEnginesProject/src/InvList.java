@@ -98,12 +98,24 @@ public class InvList {
   }
 
   /**
-   *  Get an inverted list from the index.
+   *  Get an inverted list from the current index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(Idx.getCurrentContext(), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from the specified index.
+   *  @param context The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext context, String termString, String fieldString)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -114,30 +126,41 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (context.getDocFreq(term) < 1)
       return;
 
     //  Lookup the inverted list.
 
     PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+      MultiFields.getTermPositionsEnum (context.getIndexReader(), fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+    Deadline deadline = Deadline.current();
+
+    try {
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+        Deadline.check(deadline);
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+        int tf = iList.freq();
+        int[] positions = new int[tf];
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        for (int j = 0; j < tf; j++)
+          positions[j] = iList.nextPosition();
+
+        this.postings.add(new DocPosting(iList.docID(), positions));
+        this.df++;
+        this.ctf += tf;
+      }
+    } finally {
+      QueryMetrics metrics = QueryMetrics.current();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      if (metrics != null)
+        metrics.addPostings(this.df, this.ctf);
     }
   }
 
@@ -0,0 +1,249 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A LatencyHistogram counts durations in log-linear buckets, so
+ *  that percentiles can be estimated from any number of values in a
+ *  fixed amount of memory.  Each power of two is split into
+ *  SUB_BUCKETS buckets, so an estimate is within about 3% of the
+ *  true value.
+ *  <p>
+ *  record is lock-free and doesn't allocate.  Threads record into
+ *  stripes, chosen by thread id, so that threads seldom update the
+ *  same counters; the stripes are merged when the histogram is read.
+ *  Reads that overlap records are approximate.
+ *  </p>
+ */
+public class LatencyHistogram {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of buckets per power of two.
+   */
+  public static final int SUB_BUCKETS = 16;
+
+  private static final int SUB_BITS = 4;		// log2 (SUB_BUCKETS)
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  //  Each stripe is BUCKETS counters, then the count, sum and maximum.
+
+  private static final int COUNT = BUCKETS;
+  private static final int SUM = BUCKETS + 1;
+  private static final int MAX = BUCKETS + 2;
+  private static final int STRIPE_LENGTH = BUCKETS + 3;
+
+  private final AtomicLongArray[] stripes;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a histogram with a stripe per core, up to 16.
+   */
+  public LatencyHistogram () {
+    this (Integer.highestOneBit (
+      Math.min (16, Runtime.getRuntime ().availableProcessors ())));
+  }
+
+  /**
+   *  @param numStripes The number of stripes, a power of two.
+   */
+  public LatencyHistogram (int numStripes) {
+
+    if (Integer.bitCount (numStripes) != 1) {
+      throw new IllegalArgumentException ("The stripes must be a power of two");
+    }
+
+    this.stripes = new AtomicLongArray[numStripes];
+
+    for (int i = 0; i < numStripes; i++) {
+      this.stripes[i] = new AtomicLongArray (STRIPE_LENGTH);
+    }
+  }
+
+  /**
+   *  Get the bucket of a value.  Values below SUB_BUCKETS have their
+   *  own buckets; above that, the top SUB_BITS + 1 bits of a value
+   *  select its bucket.
+   *  @param value A value, at least 0.
+   *  @return The bucket.
+   */
+  static int bucket (long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max (0, value);
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros (value) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  /**
+   *  Get the smallest value of a bucket.
+   *  @param bucket The bucket.
+   *  @return The value.
+   */
+  static long lowestValue (int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+
+  /**
+   *  Record a value.
+   *  @param nanos The value, e.g., a duration in nanoseconds.
+   */
+  public void record (long nanos) {
+
+    AtomicLongArray stripe = this.stripes[
+      (int) Thread.currentThread ().getId () & (this.stripes.length - 1)];
+
+    stripe.incrementAndGet (bucket (nanos));
+    stripe.incrementAndGet (COUNT);
+    stripe.addAndGet (SUM, nanos);
+
+    long max;
+
+    while (nanos > (max = stripe.get (MAX))) {
+      if (stripe.compareAndSet (MAX, max, nanos)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   *  Get the number of values recorded.
+   *  @return The number.
+   */
+  public long getCount () {
+    long n = 0;
+
+    for (AtomicLongArray stripe : this.stripes) {
+      n += stripe.get (COUNT);
+    }
+
+    return n;
+  }
+
+  /**
+   *  Get the sum of the values recorded.
+   *  @return The sum.
+   */
+  public long getSum () {
+    long sum = 0;
+
+    for (AtomicLongArray stripe : this.stripes) {
+      sum += stripe.get (SUM);
+    }
+
+    return sum;
+  }
+
+  /**
+   *  Get the mean of the values recorded.
+   *  @return The mean, or 0 if there are none.
+   */
+  public double getMean () {
+    long n = getCount ();
+    return (n == 0) ? 0 : (double) getSum () / n;
+  }
+
+  /**
+   *  Get the largest value recorded.
+   *  @return The value, or 0 if there are none.
+   */
+  public long getMax () {
+    long max = 0;
+
+    for (AtomicLongArray stripe : this.stripes) {
+      max = Math.max (max, stripe.get (MAX));
+    }
+
+    return max;
+  }
+
+  /**
+   *  Estimate a percentile (the nearest-rank method).  The estimate
+   *  is the middle of the bucket that has the value, and no more than
+   *  the maximum.
+   *  @param p The percentile, in [0, 1].
+   *  @return The value, or 0 if there are none.
+   */
+  public long getPercentile (double p) {
+
+    long[] counts = new long[BUCKETS];
+    long n = 0;
+
+    for (AtomicLongArray stripe : this.stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        long c = stripe.get (i);
+        counts[i] += c;
+        n += c;
+      }
+    }
+
+    if (n == 0) {
+      return 0;
+    }
+
+    long rank = Math.max (1, (long) Math.ceil (p * n));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+
+      if (seen >= rank) {
+        long low = lowestValue (i);
+        long high = (i + 1 < BUCKETS) ? lowestValue (i + 1) : Long.MAX_VALUE;
+        return Math.min (getMax (), low + (high - low - 1) / 2);
+      }
+    }
+
+    return getMax ();
+  }
+
+  /**
+   *  Add the values of another histogram to this one.
+   *  @param other The other histogram.
+   */
+  public void add (LatencyHistogram other) {
+
+    AtomicLongArray stripe = this.stripes[0];
+
+    for (AtomicLongArray o : other.stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        long c = o.get (i);
+
+        if (c != 0) {
+          stripe.addAndGet (i, c);
+        }
+      }
+
+      stripe.addAndGet (COUNT, o.get (COUNT));
+      stripe.addAndGet (SUM, o.get (SUM));
+
+      long max;
+
+      while (o.get (MAX) > (max = stripe.get (MAX))) {
+        if (stripe.compareAndSet (MAX, max, o.get (MAX))) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Describe the distribution, in milliseconds.
+   *  @return The count, mean, p50, p95, p99 and maximum.
+   */
+  @Override public String toString () {
+    return String.format ("n %d, mean %.3f, p50 %.3f, p95 %.3f, p99 %.3f, max %.3f ms",
+                          getCount (), getMean () / 1e6,
+                          getPercentile (0.50) / 1e6, getPercentile (0.95) / 1e6,
+                          getPercentile (0.99) / 1e6, getMax () / 1e6);
+  }
+}
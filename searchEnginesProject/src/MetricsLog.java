@@ -0,0 +1,202 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  MetricsLog writes a record of each query's {@link QueryMetrics},
+ *  and summarizes them at the end of the run.
+ *  <ul>
+ *  <li><b>metrics:path</b>: The file of records.</li>
+ *  <li><b>metrics:format</b>: jsonl (one JSON object per line) or
+ *      csv.  The default is csv if the path ends with .csv, otherwise
+ *      jsonl.</li>
+ *  </ul>
+ *  <p>
+ *  The summary has the mean, median, 95th and 99th percentile, and
+ *  maximum of each phase's time and of the total time (estimated
+ *  from {@link LatencyHistogram}s, so within a few percent), the sums of
+ *  the counters, the cache hit rate and the number of timeouts.
+ *  </p>
+ */
+public class MetricsLog implements Closeable {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String JSONL = "jsonl";
+  public static final String CSV = "csv";
+
+  private final Writer output;
+  private final String format;
+
+  //  Values for the summary.  The times are kept in histograms, so
+  //  that the summary takes the same memory however long the run is.
+
+  private final LatencyHistogram[] phaseNanos =
+    new LatencyHistogram[QueryMetrics.PHASES.length];
+  private final LatencyHistogram totalNanos = new LatencyHistogram (1);
+  private long postings = 0;
+  private long positions = 0;
+  private long documentsScored = 0;
+  private long allocatedBytes = 0;
+  private int cacheHits = 0;
+  private int cacheMisses = 0;
+  private int timedOut = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param path The file of records.
+   *  @param format jsonl or csv.
+   *  @throws IOException Error opening the file.
+   */
+  public MetricsLog (String path, String format) throws IOException {
+
+    if (! (format.equals (JSONL) || format.equals (CSV))) {
+      throw new IllegalArgumentException ("Unknown metrics:format " + format);
+    }
+
+    for (int i = 0; i < this.phaseNanos.length; i++) {
+      this.phaseNanos[i] = new LatencyHistogram (1);
+    }
+
+    this.format = format;
+    this.output = new BufferedWriter (
+      new OutputStreamWriter (new FileOutputStream (path), StandardCharsets.UTF_8));
+
+    if (format.equals (CSV)) {
+      this.output.write (QueryMetrics.csvHeader ());
+      this.output.write ('\n');
+    }
+  }
+
+  /**
+   *  Get the metrics log that a parameter file specifies.
+   *  @param parameters The parameters of the run.
+   *  @return The log, or null if there is no metrics:path.
+   *  @throws IOException Error opening the file.
+   */
+  public static MetricsLog fromParameters (Map<String,String> parameters)
+    throws IOException {
+
+    String path = parameters.get ("metrics:path");
+
+    if (path == null) {
+      return null;
+    }
+
+    String format = path.toLowerCase ().endsWith (".csv") ? CSV : JSONL;
+
+    if (parameters.containsKey ("metrics:format")) {
+      format = parameters.get ("metrics:format").trim ().toLowerCase ();
+    }
+
+    return new MetricsLog (path, format);
+  }
+
+  /**
+   *  Write a query's record, and add it to the summary.
+   *  @param m The query's metrics.
+   *  @throws IOException Error writing the file.
+   */
+  public synchronized void record (QueryMetrics m) throws IOException {
+
+    this.output.write (this.format.equals (CSV) ? m.toCsv () : m.toJson ());
+    this.output.write ('\n');
+
+    for (int i = 0; i < this.phaseNanos.length; i++) {
+      this.phaseNanos[i].record (m.phaseNanos[i]);
+    }
+
+    this.totalNanos.record (m.totalNanos);
+    this.postings += m.postings;
+    this.positions += m.positions;
+    this.documentsScored += m.documentsScored;
+    this.allocatedBytes += m.allocatedBytes;
+
+    if (m.cache.equals (QueryMetrics.CACHE_HIT)) {
+      this.cacheHits++;
+    } else if (m.cache.equals (QueryMetrics.CACHE_MISS)) {
+      this.cacheMisses++;
+    }
+
+    if (m.timedOut) {
+      this.timedOut++;
+    }
+  }
+
+  /**
+   *  Get the summary of the queries that were recorded.
+   *  @return The summary, one line per statistic.
+   */
+  public synchronized String summary () {
+
+    long n = this.totalNanos.getCount ();
+    StringBuilder b = new StringBuilder ();
+
+    b.append (String.format ("Metrics:  %d queries%n", n));
+
+    if (n == 0) {
+      return b.toString ();
+    }
+
+    b.append (String.format ("  %-12s %10s %10s %10s %10s %10s%n",
+                             "ms", "mean", "p50", "p95", "p99", "max"));
+
+    for (int phase = 0; phase < QueryMetrics.PHASES.length; phase++) {
+      b.append (summaryLine (QueryMetrics.PHASES[phase], this.phaseNanos[phase]));
+    }
+
+    b.append (summaryLine ("total", this.totalNanos));
+
+    b.append (String.format (
+      "  postings %d, positions %d, documents scored %d, allocated %d MB%n",
+      this.postings, this.positions, this.documentsScored,
+      this.allocatedBytes / (1024 * 1024)));
+
+    if (this.cacheHits + this.cacheMisses > 0) {
+      b.append (String.format ("  cache hits %d of %d (%.1f%%)%n",
+                               this.cacheHits, this.cacheHits + this.cacheMisses,
+                               100.0 * this.cacheHits / (this.cacheHits + this.cacheMisses)));
+    }
+
+    b.append (String.format ("  timed out %d%n", this.timedOut));
+    return b.toString ();
+  }
+
+  /**
+   *  Summarize one kind of time.
+   *  @param name The name of the time.
+   *  @param h Each query's time, in nanoseconds.
+   *  @return A line of the summary.
+   */
+  private static String summaryLine (String name, LatencyHistogram h) {
+    return String.format ("  %-12s %10.3f %10.3f %10.3f %10.3f %10.3f%n", name,
+                          h.getMean () / 1e6,
+                          h.getPercentile (0.50) / 1e6,
+                          h.getPercentile (0.95) / 1e6,
+                          h.getPercentile (0.99) / 1e6,
+                          h.getMax () / 1e6);
+  }
+
+  /**
+   *  Get a percentile of sorted values (the nearest-rank method).
+   *  @param sorted The values, in ascending order.
+   *  @param p The percentile, in [0, 1].
+   *  @return The value.
+   */
+  static long percentile (long[] sorted, double p) {
+    int rank = (int) Math.ceil (p * sorted.length);
+    return sorted[Math.max (0, Math.min (sorted.length - 1, rank - 1))];
+  }
+
+  /**
+   *  Flush and close the file of records.
+   *  @throws IOException Error writing the file.
+   */
+  @Override public synchronized void close () throws IOException {
+    this.output.close ();
+  }
+}
@@ -0,0 +1,573 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ *  MicroBenchmark measures the throughput and the allocation rate of
+ *  the inner loops of query evaluation, so that changes to them can
+ *  be compared:
+ *  <ul>
+ *  <li>InvList.decode: copying a term's postings from the index;</li>
+ *  <li>QryIopSyn, QryIopNear, QryIopWindow: evaluating the operator
+ *      over inverted lists that were already read;</li>
+ *  <li>BM25.score, Indri.score: scoring every document that a query
+ *      matches (initialize, then the document-at-a-time loop); and</li>
+ *  <li>ScoreList.sort: building and sorting a score list.</li>
+ *  </ul>
+ *  <p>
+ *  The operators and ScoreList.sort also run over synthetic data (the
+ *  cases named "synthetic"), which needs no index.  The other cases
+ *  use the index and the queries of the parameter file.  Each case is
+ *  run for some warm-up iterations, whose results are discarded, and
+ *  then for some measured iterations of a fixed length.  The report
+ *  has the mean and the standard deviation of the operations per
+ *  second, the time per operation, and the bytes allocated per
+ *  operation (from the JVM's per-thread allocation counter).
+ *  </p>
+ *  <p>
+ *  Usage:  java MicroBenchmark paramFile.  Parameters:
+ *  </p>
+ *  <ul>
+ *  <li><b>indexPath</b>: The index (optional; without it, only the
+ *      synthetic cases run).</li>
+ *  <li><b>bench:queryFilePath</b>: The queries (default queryFilePath).</li>
+ *  <li><b>bench:include</b>: A regular expression.  Only cases whose
+ *      names contain a match run.</li>
+ *  <li><b>bench:warmupIterations</b>, <b>bench:iterations</b>,
+ *      <b>bench:iterationSeconds</b>: (defaults 3, 5, 1.0).</li>
+ *  <li><b>bench:syntheticDocs</b>: The documents of the synthetic
+ *      inverted lists (default 100000).</li>
+ *  <li><b>bench:scoreListSize</b>: The length of the synthetic score
+ *      lists (default 10000).</li>
+ *  <li><b>bench:seed</b>: The seed of the synthetic data (default 1).</li>
+ *  </ul>
+ *  <p>
+ *  BM25 and Indri use the parameter file's BM25: and Indri:
+ *  parameters, or the usual defaults.
+ *  </p>
+ */
+public class MicroBenchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+  public static final int DEFAULT_ITERATIONS = 5;
+  public static final double DEFAULT_ITERATION_SECONDS = 1.0;
+  public static final int DEFAULT_SYNTHETIC_DOCS = 100000;
+  public static final int DEFAULT_SCORE_LIST_SIZE = 10000;
+
+  /**
+   *  Results are added to the sink so that the JIT can't remove the
+   *  work that produced them.
+   */
+  static volatile long sink = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A benchmark case.  run does one operation.
+   */
+  abstract static class Case {
+    final String name;
+
+    Case (String name) {
+      this.name = name;
+    }
+
+    /**
+     *  Do one operation.
+     *  @return A value that depends on the work that was done.
+     *  @throws IOException Error accessing the index.
+     */
+    abstract long run () throws IOException;
+  }
+
+  /**
+   *  Evaluates a rotating set of query operators.  QryIopTerm
+   *  arguments have shared inverted lists, so only the operators'
+   *  own work is measured.
+   */
+  private static class OperatorCase extends Case {
+    private final List<QryIop> operators;
+    private final IndexContext context;
+    private int next = 0;
+
+    OperatorCase (String name, List<QryIop> operators, IndexContext context) {
+      super (name);
+      this.operators = operators;
+      this.context = context;
+    }
+
+    long run () throws IOException {
+      QryIop op = this.operators.get (this.next);
+      this.next = (this.next + 1) % this.operators.size ();
+      op.initialize (null, this.context);
+      return op.getListDf () + op.getListCtf ();
+    }
+  }
+
+  /**
+   *  Scores every document that a rotating set of queries matches.
+   */
+  private static class ScoreCase extends Case {
+    private final List<Qry> queries;
+    private final RetrievalModel model;
+    private final IndexContext context;
+    private int next = 0;
+
+    ScoreCase (String name, List<Qry> queries, RetrievalModel model,
+               IndexContext context) {
+      super (name);
+      this.queries = queries;
+      this.model = model;
+      this.context = context;
+    }
+
+    long run () throws IOException {
+      Qry q = this.queries.get (this.next);
+      this.next = (this.next + 1) % this.queries.size ();
+
+      q.initialize (this.model, this.context);
+
+      long matches = 0;
+      double sum = 0;
+
+      while (q.docIteratorHasMatch (this.model)) {
+        int docid = q.docIteratorGetMatch ();
+        sum += ((QrySop) q).getScore (this.model);
+        matches++;
+        q.docIteratorAdvancePast (docid);
+      }
+
+      return matches + (long) sum;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the index or the query file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException ("Usage:  java MicroBenchmark paramFile");
+    }
+
+    Map<String,String> parameters = QryEval.readParameters (args[0]);
+    int warmupIterations = getInt (parameters, "bench:warmupIterations",
+                                   DEFAULT_WARMUP_ITERATIONS);
+    int iterations = getInt (parameters, "bench:iterations", DEFAULT_ITERATIONS);
+    double seconds = DEFAULT_ITERATION_SECONDS;
+
+    if (parameters.containsKey ("bench:iterationSeconds")) {
+      seconds = Double.parseDouble (parameters.get ("bench:iterationSeconds"));
+    }
+
+    List<Case> cases = new ArrayList<Case> ();
+    addSyntheticCases (cases, parameters);
+
+    if (parameters.containsKey ("indexPath")) {
+      Idx.setDirectoryOptions (DirectoryOptions.fromParameters (parameters));
+      Idx.open (parameters.get ("indexPath"));
+      addIndexCases (cases, parameters, Idx.getCurrentContext ());
+    }
+
+    Pattern include = parameters.containsKey ("bench:include")
+      ? Pattern.compile (parameters.get ("bench:include"))
+      : null;
+
+    System.out.println (String.format ("%-32s %12s %10s %12s %14s %10s",
+                                       "Benchmark", "ops/s", "+-", "us/op",
+                                       "alloc B/op", "alloc MB/s"));
+
+    for (Case c : cases) {
+      if ((include == null) || include.matcher (c.name).find ()) {
+        System.out.println (measure (c, warmupIterations, iterations,
+                                     (long) (seconds * 1e9)));
+      }
+    }
+  }
+
+  /**
+   *  Add the cases that use synthetic data.
+   *  @param cases The list of cases.
+   *  @param parameters The parameters of the run.
+   */
+  private static void addSyntheticCases (List<Case> cases,
+                                         Map<String,String> parameters) {
+
+    Random random = new Random (getInt (parameters, "bench:seed", 1));
+    int numDocs = getInt (parameters, "bench:syntheticDocs", DEFAULT_SYNTHETIC_DOCS);
+
+    //  Terms have Zipfian document frequencies.  Operators combine a
+    //  frequent term with a less frequent one.
+
+    InvList[] lists = new InvList[8];
+
+    for (int rank = 1; rank <= lists.length; rank++) {
+      lists[rank - 1] = syntheticList (random, numDocs, numDocs / (4 * rank), 200);
+    }
+
+    for (String op : new String[] { "QryIopSyn", "QryIopNear", "QryIopWindow" }) {
+      List<QryIop> operators = new ArrayList<QryIop> ();
+
+      for (int i = 0; i + 1 < lists.length; i++) {
+        QryIop q = newOperator (op);
+        q.appendArg (sharedTerm ("s" + i, lists[i]));
+        q.appendArg (sharedTerm ("s" + (i + 1), lists[i + 1]));
+        operators.add (q);
+      }
+
+      cases.add (new OperatorCase (op + ".synthetic", operators, null));
+    }
+
+    //  Score lists have ties, so the external id comparison is used.
+
+    final int size = getInt (parameters, "bench:scoreListSize", DEFAULT_SCORE_LIST_SIZE);
+    final int[] docids = new int[size];
+    final String[] externalIds = new String[size];
+    final double[] scores = new double[size];
+
+    for (int i = 0; i < size; i++) {
+      docids[i] = random.nextInt (numDocs);
+      externalIds[i] = String.format ("doc-%08d", docids[i]);
+      scores[i] = Math.floor (random.nextDouble () * 1000) / 100;
+    }
+
+    cases.add (new Case ("ScoreList.sort.synthetic") {
+      long run () {
+        ScoreList r = new ScoreList (null);
+
+        for (int i = 0; i < size; i++) {
+          r.add (docids[i], externalIds[i], scores[i]);
+        }
+
+        r.sort ();
+        return r.getDocid (0);
+      }
+    });
+  }
+
+  /**
+   *  Add the cases that use the index and the query file.
+   *  @param cases The list of cases.
+   *  @param parameters The parameters of the run.
+   *  @param context The index.
+   *  @throws IOException Error accessing the index or the query file.
+   */
+  private static void addIndexCases (List<Case> cases,
+                                     Map<String,String> parameters,
+                                     final IndexContext context)
+    throws IOException {
+
+    String queryFilePath = parameters.containsKey ("bench:queryFilePath")
+      ? parameters.get ("bench:queryFilePath")
+      : parameters.get ("queryFilePath");
+
+    if (queryFilePath == null) {
+      System.out.println ("Warning:  No queries, so only synthetic cases run");
+      return;
+    }
+
+    List<String> queries = new ArrayList<String> ();
+
+    try (BufferedReader input = new BufferedReader (new FileReader (queryFilePath))) {
+      String qLine;
+
+      while ((qLine = input.readLine ()) != null) {
+        if (qLine.indexOf (':') >= 0) {
+          queries.add (qLine.substring (qLine.indexOf (':') + 1));
+        }
+      }
+    }
+
+    RetrievalModel bm25 = newModel (parameters, "BM25");
+    RetrievalModel indri = newModel (parameters, "Indri");
+    Map<String,InvList> lists = new LinkedHashMap<String,InvList> ();
+    List<Qry> bm25Queries = parseQueries (queries, bm25, context, lists);
+    List<Qry> indriQueries = parseQueries (queries, indri, context, lists);
+
+    if (lists.isEmpty ()) {
+      System.out.println ("Warning:  The queries have no terms in the index");
+      return;
+    }
+
+    //  Posting decode reads each distinct query term in turn.
+
+    final List<String[]> terms = new ArrayList<String[]> ();
+
+    for (String key : lists.keySet ()) {
+      int dot = key.lastIndexOf ('.');
+      terms.add (new String[] { key.substring (0, dot), key.substring (dot + 1) });
+    }
+
+    cases.add (new Case ("InvList.decode") {
+      private int next = 0;
+
+      long run () throws IOException {
+        String[] t = terms.get (this.next);
+        this.next = (this.next + 1) % terms.size ();
+        InvList list = new InvList (context, t[0], t[1]);
+        return list.df + list.ctf;
+      }
+    });
+
+    //  Operators combine adjacent terms of the same query and field.
+
+    for (String op : new String[] { "QryIopSyn", "QryIopNear", "QryIopWindow" }) {
+      List<QryIop> operators = new ArrayList<QryIop> ();
+
+      for (Qry q : bm25Queries) {
+        List<QryIop> iops = q.getIopArgs (new ArrayList<QryIop> ());
+
+        for (int i = 0; i + 1 < iops.size (); i++) {
+          if ((iops.get (i) instanceof QryIopTerm) &&
+              (iops.get (i + 1) instanceof QryIopTerm) &&
+              iops.get (i).getField ().equals (iops.get (i + 1).getField ())) {
+            QryIop o = newOperator (op);
+            o.appendArg (sharedTerm ((QryIopTerm) iops.get (i), lists));
+            o.appendArg (sharedTerm ((QryIopTerm) iops.get (i + 1), lists));
+            operators.add (o);
+          }
+        }
+      }
+
+      if (! operators.isEmpty ()) {
+        cases.add (new OperatorCase (op, operators, context));
+      }
+    }
+
+    cases.add (new ScoreCase ("BM25.score", bm25Queries, bm25, context));
+    cases.add (new ScoreCase ("Indri.score", indriQueries, indri, context));
+  }
+
+  /**
+   *  Parse queries, and give their terms shared inverted lists, so
+   *  that the index is read once.
+   *  @param queries The queries.
+   *  @param model The retrieval model.
+   *  @param context The index.
+   *  @param lists The shared lists, by term.field.  New ones are added.
+   *  @return The parsed queries that aren't empty.
+   *  @throws IOException Error accessing the index.
+   */
+  private static List<Qry> parseQueries (List<String> queries,
+                                         RetrievalModel model,
+                                         IndexContext context,
+                                         Map<String,InvList> lists)
+    throws IOException {
+
+    List<Qry> result = new ArrayList<Qry> ();
+
+    for (String query : queries) {
+      Qry q = QryEval.parseQuery (query, model);
+
+      if ((q == null) || (q.args.size () == 0)) {
+        continue;
+      }
+
+      for (QryIop iop : q.getIopArgs (new ArrayList<QryIop> ())) {
+        if (iop instanceof QryIopTerm) {
+          QryIopTerm term = (QryIopTerm) iop;
+          String key = term.getTerm () + "." + term.getField ();
+
+          if (! lists.containsKey (key)) {
+            lists.put (key, new InvList (context, term.getTerm (), term.getField ()));
+          }
+
+          term.setSharedInvList (lists.get (key));
+        }
+      }
+
+      result.add (q);
+    }
+
+    return result;
+  }
+
+  /**
+   *  Run a case, and summarize its measured iterations.
+   *  @param c The case.
+   *  @param warmupIterations The number of iterations that are discarded.
+   *  @param iterations The number of iterations that are measured.
+   *  @param iterationNanos The length of an iteration.
+   *  @return A line of the report.
+   *  @throws IOException Error accessing the index.
+   */
+  static String measure (Case c, int warmupIterations, int iterations,
+                         long iterationNanos)
+    throws IOException {
+
+    System.gc ();
+
+    double[] opsPerSecond = new double[iterations];
+    long totalOps = 0;
+    long totalNanos = 0;
+    long totalBytes = 0;
+
+    for (int i = -warmupIterations; i < iterations; i++) {
+      long bytes = QueryMetrics.threadAllocatedBytes ();
+      long start = System.nanoTime ();
+      long end = start;
+      long ops = 0;
+      long result = 0;
+
+      do {
+        result += c.run ();
+        ops++;
+        end = System.nanoTime ();
+      } while (end - start < iterationNanos);
+
+      bytes = QueryMetrics.threadAllocatedBytes () - bytes;
+      sink += result;
+
+      if (i >= 0) {
+        opsPerSecond[i] = ops * 1e9 / (end - start);
+        totalOps += ops;
+        totalNanos += end - start;
+        totalBytes += bytes;
+      }
+    }
+
+    double mean = 0;
+
+    for (double x : opsPerSecond) {
+      mean += x;
+    }
+
+    mean /= iterations;
+
+    double variance = 0;
+
+    for (double x : opsPerSecond) {
+      variance += (x - mean) * (x - mean);
+    }
+
+    double stddev = (iterations > 1) ? Math.sqrt (variance / (iterations - 1)) : 0;
+
+    return String.format ("%-32s %12.1f %10.1f %12.3f %14.0f %10.1f",
+                          c.name, mean, stddev,
+                          totalNanos / 1e3 / totalOps,
+                          (double) totalBytes / totalOps,
+                          totalBytes / 1048576.0 / (totalNanos / 1e9));
+  }
+
+  /**
+   *  Create an inverted list whose postings are spread at random over
+   *  a range of documents.
+   *  @param random The source of randomness.
+   *  @param numDocs The number of documents.
+   *  @param df The expected document frequency.
+   *  @param docLength The length of each document.
+   *  @return The inverted list.
+   */
+  static InvList syntheticList (Random random, int numDocs, int df, int docLength) {
+
+    InvList list = new InvList ("body");
+    double p = (double) df / numDocs;
+
+    for (int docid = 0; docid < numDocs; docid++) {
+      if (random.nextDouble () >= p) {
+        continue;
+      }
+
+      //  Term frequencies are geometric, with a mean of about 2.
+
+      TreeSet<Integer> positions = new TreeSet<Integer> ();
+
+      do {
+        positions.add (random.nextInt (docLength));
+      } while (random.nextBoolean () && (positions.size () < docLength));
+
+      list.appendPosting (docid, new ArrayList<Integer> (positions));
+    }
+
+    return list;
+  }
+
+  /**
+   *  Create a term operator that uses an inverted list that was
+   *  already read.
+   *  @param term The term.
+   *  @param list The term's inverted list.
+   *  @return The operator.
+   */
+  private static QryIopTerm sharedTerm (String term, InvList list) {
+    QryIopTerm t = new QryIopTerm (term, list.field);
+    t.setSharedInvList (list);
+    return t;
+  }
+
+  /**
+   *  Create a term operator like one of a parsed query.
+   *  @param term The parsed query's term operator.
+   *  @param lists The shared lists, by term.field.
+   *  @return The operator.
+   */
+  private static QryIopTerm sharedTerm (QryIopTerm term, Map<String,InvList> lists) {
+    QryIopTerm t = new QryIopTerm (term.getTerm (), term.getField ());
+    t.setSharedInvList (lists.get (term.getTerm () + "." + term.getField ()));
+    return t;
+  }
+
+  /**
+   *  Create an empty query operator of a class.
+   *  @param name The class, e.g., QryIopNear.  NEAR and WINDOW use a
+   *    distance of 8.
+   *  @return The operator.
+   */
+  private static QryIop newOperator (String name) {
+    QryIop q;
+
+    if (name.equals ("QryIopSyn")) {
+      q = new QryIopSyn ();
+    } else if (name.equals ("QryIopNear")) {
+      q = new QryIopNear (8);
+    } else {
+      q = new QryIopWindow (8);
+    }
+
+    q.setDisplayName (name);
+    return q;
+  }
+
+  /**
+   *  Create a retrieval model from the parameter file's parameters,
+   *  or the defaults.
+   *  @param parameters The parameters of the run.
+   *  @param name BM25 or Indri.
+   *  @return The retrieval model.
+   *  @throws IOException Error accessing the index.
+   */
+  private static RetrievalModel newModel (Map<String,String> parameters, String name)
+    throws IOException {
+
+    Map<String,String> p = new HashMap<String,String> ();
+    p.put ("BM25:k_1", "1.2");
+    p.put ("BM25:b", "0.75");
+    p.put ("BM25:k_3", "0");
+    p.put ("Indri:mu", "2500");
+    p.put ("Indri:lambda", "0.4");
+    p.putAll (parameters);
+    p.put ("retrievalAlgorithm", name);
+    return QryEval.initializeRetrievalModel (p);
+  }
+
+  /**
+   *  Get an integer parameter.
+   *  @param parameters The parameters of the run.
+   *  @param key The parameter.
+   *  @param defaultValue The value if the parameter isn't given.
+   *  @return The value.
+   */
+  static int getInt (Map<String,String> parameters, String key, int defaultValue) {
+    return parameters.containsKey (key)
+      ? Integer.parseInt (parameters.get (key))
+      : defaultValue;
+  }
+}
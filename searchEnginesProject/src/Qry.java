@@ -106,6 +106,18 @@ public abstract class Qry {
    */
   public double weight = 0.0;
 
+  /**
+   *  The index that the query operator is evaluated against.  It is
+   *  set when the query operator is initialized.
+   */
+  protected IndexContext context = null;
+
+  /**
+   *  Counters of the work that the query operator does, or null if
+   *  they are not collected.  See enableStats.
+   */
+  protected QryStats stats = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -209,7 +221,11 @@ public abstract class Qry {
    *  @param docid An internal document id.
    */
   public void docIteratorAdvanceTo (int docid) {
-    
+
+    if (this.stats != null) {
+      this.stats.advanceCalls++;
+    }
+
     for (Qry q_i: this.args) {
       q_i.docIteratorAdvanceTo (docid);
     }
@@ -255,6 +271,18 @@ public abstract class Qry {
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
+    long start = this.statsStart ();
+    boolean matchFound = this.docIteratorHasMatchAllArgs (r);
+    this.statsStop (start);
+    return matchFound;
+  }
+
+  /**
+   *  The untimed implementation of docIteratorHasMatchAll.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  private boolean docIteratorHasMatchAllArgs (RetrievalModel r) {
 
     boolean matchFound = false;
 
@@ -311,6 +339,18 @@ public abstract class Qry {
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchFirst (RetrievalModel r) {
+    long start = this.statsStart ();
+    boolean matchFound = this.docIteratorHasMatchFirstArg (r);
+    this.statsStop (start);
+    return matchFound;
+  }
+
+  /**
+   *  The untimed implementation of docIteratorHasMatchFirst.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  private boolean docIteratorHasMatchFirstArg (RetrievalModel r) {
 
     Qry q_0 = this.args.get(0);
 
@@ -332,6 +372,18 @@ public abstract class Qry {
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchMin (RetrievalModel r) {
+    long start = this.statsStart ();
+    boolean matchFound = this.docIteratorHasMatchMinArg (r);
+    this.statsStop (start);
+    return matchFound;
+  }
+
+  /**
+   *  The untimed implementation of docIteratorHasMatchMin.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  private boolean docIteratorHasMatchMinArg (RetrievalModel r) {
 
     int minDocid = Qry.INVALID_DOCID;
 
@@ -370,9 +422,101 @@ public abstract class Qry {
    */
   private void docIteratorSetMatchCache (int docid) {
     this.docIteratorMatchCache = docid;
+
+    if (this.stats != null) {
+      this.stats.match (docid);
+    }
+  }
+
+  /**
+   *  Start timing a QrySop operator's search for a match.
+   *  @return The start time, or 0 if the operator isn't timed.
+   */
+  private long statsStart () {
+    return ((this.stats != null) && (this instanceof QrySop)) ? System.nanoTime () : 0;
+  }
+
+  /**
+   *  Stop timing a QrySop operator's search for a match.  QryIop
+   *  operators are timed by QryIop.initialize instead.
+   *  @param start The time that statsStart returned.
+   */
+  private void statsStop (long start) {
+    if (start != 0) {
+      this.stats.nanos += System.nanoTime () - start;
+    }
+  }
+
+  /**
+   *  Collect counters of the work that this query operator and its
+   *  arguments do.  Call it before the query is initialized.
+   */
+  public void enableStats () {
+
+    this.stats = new QryStats ();
+
+    for (Qry q_i: this.args) {
+      q_i.enableStats ();
+    }
+  }
+
+  /**
+   *  Get the counters of this query operator, or null if they are not
+   *  collected.
+   *  @return The counters.
+   */
+  public QryStats getStats () {
+    return this.stats;
+  }
+
+  /**
+   *  Get the query tree annotated with the counters of each operator,
+   *  one operator per line.
+   *  @param indent The indentation of this operator.
+   *  @return The annotated tree.
+   */
+  public String getStatsTree (String indent) {
+
+    StringBuilder b = new StringBuilder ();
+
+    b.append (indent)
+      .append ((this.args.size () == 0) ? this.toString () : this.displayName);
+
+    if (this.stats != null) {
+      b.append ("  [").append (this.stats).append ("]");
+    }
+
+    b.append (System.lineSeparator ());
+
+    for (Qry q_i: this.args) {
+      b.append (q_i.getStatsTree (indent + "  "));
+    }
+
+    return b.toString ();
   }
 
 
+  /**
+   *  Get the QryIop operators in this query tree, in depth-first
+   *  order.  Query trees parsed from the same query string produce
+   *  corresponding lists, which is how statistics computed in one
+   *  index are matched to operators evaluated in another.
+   *  @param result The list that the operators are appended to.
+   *  @return The list.
+   */
+  public List<QryIop> getIopArgs (List<QryIop> result) {
+
+    if (this instanceof QryIop) {
+      result.add ((QryIop) this);
+    }
+
+    for (Qry q_i: this.args) {
+      q_i.getIopArgs (result);
+    }
+
+    return result;
+  }
+
   /**
    *  Get the i'th query argument.  The main value of this method
    *  is that it casts the argument to the correct type.
@@ -393,13 +537,26 @@ public abstract class Qry {
   }
 
   /**
-   *  Initialize the query operator (and its arguments), including any
-   *  internal iterators; this method must be called before iteration
-   *  can begin.
+   *  Initialize the query operator (and its arguments) against the
+   *  current index, including any internal iterators; this method or
+   *  its two-argument form must be called before iteration can begin.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getCurrentContext ());
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments) against the
+   *  specified index, including any internal iterators; this method
+   *  must be called before iteration can begin.
    *  @param r A retrieval model that guides initialization
+   *  @param context The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(RetrievalModel r, IndexContext context)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
@@ -6,6 +6,8 @@
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -36,6 +38,39 @@ public class QryEval {
     private static final String[] TEXT_FIELDS =
             {"body", "title", "url", "inlink"};
 
+    /**
+     * Rankings of queries that were already evaluated, or null.
+     */
+    static ResultCache resultCache = null;
+
+    /**
+     * The number of queries that ran out of time.
+     */
+    static final AtomicInteger timedOutQueries = new AtomicInteger();
+
+    /**
+     * Records the metrics of each query, or null.
+     */
+    static MetricsLog metricsLog = null;
+
+    /**
+     * The console text of the query that the calling thread evaluates,
+     * or null if it is printed directly.  When queries are evaluated
+     * concurrently, each query's text is collected and printed in query
+     * order, so lines from different queries don't interleave.
+     */
+    private static final ThreadLocal<StringBuilder> consoleBuffer =
+            new ThreadLocal<StringBuilder>();
+
+    //  Phases of query evaluation that are timed when timer:phases is true.
+
+    static final Timer.Phase QUERY_PHASE = Timer.phase("query");
+    static final Timer.Phase PARSE_PHASE = Timer.phase("parse");
+    static final Timer.Phase INITIALIZE_PHASE = Timer.phase("initialize");
+    static final Timer.Phase ITERATE_PHASE = Timer.phase("iterate");
+    static final Timer.Phase SORT_PHASE = Timer.phase("sort");
+    static final Timer.Phase OUTPUT_PHASE = Timer.phase("output");
+
 
     //  --------------- Methods ---------------------------------------
 
@@ -70,18 +105,109 @@ public class QryEval {
 
         //  Open the index and initialize the retrieval model.
 
+        Idx.setDirectoryOptions(DirectoryOptions.fromParameters(parameters));
         Idx.open(parameters.get("indexPath"));
 
+        if (parameters.containsKey("index:refreshInterval")) {
+            Idx.startRefreshTimer(Double.parseDouble(parameters.get("index:refreshInterval")));
+        }
+
+        //  Warm up the index before the first query, if a query log is given.
+
+        if (parameters.containsKey("warmup:queryLog")) {
+            int topTerms = Warmup.DEFAULT_TOP_TERMS;
+            int numQueries = Warmup.DEFAULT_QUERIES;
+
+            if (parameters.containsKey("warmup:topTerms")) {
+                topTerms = Integer.parseInt(parameters.get("warmup:topTerms"));
+            }
+            if (parameters.containsKey("warmup:queries")) {
+                numQueries = Integer.parseInt(parameters.get("warmup:queries"));
+            }
+
+            Warmup.run(Idx.getCurrentContext(), initializeRetrievalModel(parameters),
+                    parameters.get("warmup:queryLog"), topTerms, numQueries);
+        }
+
+        resultCache = ResultCache.fromParameters(parameters);
+        metricsLog = MetricsLog.fromParameters(parameters);
+        Timer.setProfiling(parameters.containsKey("timer:phases") &&
+                parameters.get("timer:phases").toLowerCase().equals("true"));
+
+        if (parameters.containsKey("stats:sampleRate")) {
+            QryStats.setSampleRate(Double.parseDouble(parameters.get("stats:sampleRate")));
+        }
+
+        FederatedSearch federated = initializeFederatedSearch(parameters);
+        SegmentSearch segments = initializeSegmentSearch(parameters);
+
         //  Perform experiments.
         String outputPath = parameters.get("trecEvalOutputPath");
 
-        if (parameters.containsKey("diversity") && parameters.get("diversity").toLowerCase().equals("true")) {
+        if (parameters.containsKey("server:port")) {
+            new QryServer(parameters, federated, segments).run();
+        } else if (parameters.containsKey("diversity") && parameters.get("diversity").toLowerCase().equals("true")) {
             diversification(parameters);
         } else {
             RetrievalModel model = initializeRetrievalModel (parameters);
             int printLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
-            processNormalQueryFile(parameters.get("queryFilePath"), model, outputPath, printLength);
+
+            if (parameters.containsKey("prefetchDocLengths") &&
+                parameters.get("prefetchDocLengths").toLowerCase().equals("true")) {
+                Idx.getCurrentContext().getDocLengthStore().prefetch(
+                        getQueryFields(parameters.get("queryFilePath"), model));
+            }
+
+            int batchSize = 0;
+
+            if (parameters.containsKey("batch:size")) {
+                batchSize = Integer.parseInt(parameters.get("batch:size"));
+            }
+
+            if ((batchSize > 1) && ((federated != null) || (segments != null))) {
+                System.err.println("Warning:  batch:size is ignored in federated and segment search.");
+            }
+
+            QueryExecutor executor = QueryExecutor.fromParameters(parameters);
+
+            if (executor != null) {
+                System.out.println("Execution:  " + executor);
+            }
+
+            if ((batchSize > 1) && (federated == null) && (segments == null)) {
+                processBatchQueryFile(parameters.get("queryFilePath"), model, outputPath, printLength,
+                        batchSize, executor, getEcho(parameters), getTimeout(parameters));
+            } else {
+                processNormalQueryFile(parameters.get("queryFilePath"), model, outputPath, printLength,
+                        federated, segments, executor, getEcho(parameters), getTimeout(parameters));
+            }
+        }
+
+        if (federated != null) {
+            federated.close();
         }
+
+        if (segments != null) {
+            segments.close();
+        }
+
+        Idx.stopRefreshTimer();
+
+        if (resultCache != null) {
+            System.out.println("Cache:  " + resultCache);
+        }
+
+        if (timedOutQueries.get() > 0) {
+            System.out.println("Timed out:  " + timedOutQueries.get() + " queries");
+        }
+
+        if (metricsLog != null) {
+            metricsLog.close();
+            System.out.print(metricsLog.summary());
+        }
+
+        System.out.print(Timer.phaseReport());
+
         //  Clean up.
 
         timer.stop();
@@ -89,69 +215,666 @@ public class QryEval {
     }
 
     /**
-     *  Process the query file.
+     * Open the indexes of a federated search, if the parameter file
+     * specifies one.  federated:indexPaths is a comma-separated list of
+     * indexes; indexPath is searched only if it is in the list.
+     * federated:threads (default: one per index) and federated:merge
+     * (global, minmax or raw; default: global) are optional.
+     *
+     * @param parameters The parameters of the run.
+     * @return The federated search, or null if there isn't one.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static FederatedSearch initializeFederatedSearch(Map<String, String> parameters)
+            throws IOException {
+
+        if (!parameters.containsKey("federated:indexPaths")) {
+            return null;
+        }
+
+        List<String> shards = new ArrayList<String>();
+
+        for (String indexPath : parameters.get("federated:indexPaths").split(",")) {
+            indexPath = indexPath.trim();
+
+            if (indexPath.length() == 0) {
+                continue;
+            }
+
+            if (!indexPath.equals(parameters.get("indexPath"))) {
+                Idx.open(indexPath);
+            }
+            shards.add(indexPath);
+        }
+
+        int numThreads = shards.size();
+
+        if (parameters.containsKey("federated:threads")) {
+            numThreads = Integer.parseInt(parameters.get("federated:threads"));
+        }
+
+        String mergeMethod = FederatedSearch.MERGE_GLOBAL;
+
+        if (parameters.containsKey("federated:merge")) {
+            mergeMethod = parameters.get("federated:merge").toLowerCase();
+        }
+
+        return new FederatedSearch(shards, numThreads, mergeMethod);
+    }
+
+    /**
+     * Create a segment-parallel searcher, if the parameter file asks
+     * for one with segmentSearch=true.  segmentSearch:threads (default:
+     * one per core) is optional.
+     *
+     * @param parameters The parameters of the run.
+     * @return The segment searcher, or null if there isn't one.
+     */
+    static SegmentSearch initializeSegmentSearch(Map<String, String> parameters) {
+
+        if (!(parameters.containsKey("segmentSearch") &&
+              parameters.get("segmentSearch").toLowerCase().equals("true"))) {
+            return null;
+        }
+
+        int numThreads = 0;
+
+        if (parameters.containsKey("segmentSearch:threads")) {
+            numThreads = Integer.parseInt(parameters.get("segmentSearch:threads"));
+        }
+
+        return new SegmentSearch(numThreads);
+    }
+
+    /**
+     *  Process the query file.  With an executor, queries are
+     *  evaluated concurrently, but results are written in query file
+     *  order, so the output is the same as with one thread.
      *  @param queryFilePath
      *  @param model
+     *  @param federated The indexes to search, or null to search the current index.
+     *  @param segments Searches the segments of the current index in
+     *    parallel, or null to search it sequentially.
+     *  @param executor Evaluates queries concurrently, or null to
+     *    evaluate them one at a time.
+     *  @param echo True if results are also printed to the console.
+     *  @param timeout Each query's time budget in milliseconds, or 0 for none.
      *  @throws IOException Error accessing the Lucene index.
      */
     static void processNormalQueryFile(String queryFilePath,
-                                 RetrievalModel model, String outputPath, int outputLength)
+                                 final RetrievalModel model, String outputPath,
+                                 final int outputLength,
+                                 final FederatedSearch federated,
+                                 final SegmentSearch segments,
+                                 final QueryExecutor executor,
+                                 boolean echo,
+                                 final double timeout)
             throws IOException {
 
         BufferedReader input = null;
-        BufferedWriter output = null;
+        TrecRunWriter output = null;
         try {
             String qLine = null;
 
             input = new BufferedReader(new FileReader(queryFilePath));
-            output = new BufferedWriter(new FileWriter(outputPath));
-            //  Each pass of the loop processes one query.
+            output = new TrecRunWriter(outputPath, false, TrecRunWriter.DEFAULT_BUFFER_SIZE, echo);
 
-            while ((qLine = input.readLine()) != null) {
-                int d = qLine.indexOf(':');
+            if (executor == null) {
 
-                if (d < 0) {
-                    throw new IllegalArgumentException
-                            ("Syntax error:  Missing ':' in query line.");
+                //  Each pass of the loop processes one query.
+
+                while ((qLine = input.readLine()) != null) {
+                    QueryMetrics metrics = startMetrics(qLine);
+                    ScoreList r = processQueryLine(qLine, model, outputLength, federated, segments,
+                            null, timeout, metrics);
+                    writeResults(output, getQid(qLine), r, outputLength, metrics);
                 }
+            } else {
 
-                printMemoryUsage(false);
+                //  Queries are submitted to the executor in order.  A window
+                //  of pending queries acts as a reorder buffer:  the oldest is
+                //  written when it finishes, and a new query is submitted.
+
+                final Executor subtrees = executor.getSubtreeExecutor();
+                ArrayDeque<Future<ScoreList>> pending = new ArrayDeque<Future<ScoreList>>();
+                ArrayDeque<String> pendingQids = new ArrayDeque<String>();
+                ArrayDeque<StringBuilder> pendingConsole = new ArrayDeque<StringBuilder>();
+                LinkedList<QueryMetrics> pendingMetrics = new LinkedList<QueryMetrics>();  // May hold nulls
+                int window = 4 * executor.getConcurrency();
+
+                while ((qLine = input.readLine()) != null) {
+                    final String line = qLine;
+                    final QueryMetrics metrics = startMetrics(qLine);
+                    final StringBuilder console = new StringBuilder();
+
+                    try {
+                        pending.add(executor.submit(new Callable<ScoreList>() {
+                            public ScoreList call() throws IOException {
+                                setConsoleBuffer(console);
+
+                                try {
+                                    return processQueryLine(line, model, outputLength, federated, segments,
+                                            subtrees, timeout, metrics);
+                                } finally {
+                                    setConsoleBuffer(null);
+                                }
+                            }
+                        }));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Query evaluation was interrupted");
+                    }
+                    pendingQids.add(getQid(qLine));
+                    pendingConsole.add(console);
+                    pendingMetrics.add(metrics);
 
-                String qid = qLine.substring(0, d);
-                String query = qLine.substring(d + 1);
+                    if (pending.size() >= window) {
+                        writePendingResults(output, pending, pendingQids, pendingConsole,
+                                pendingMetrics, outputLength);
+                    }
+                }
 
-                System.out.println("Query " + qLine);
+                while (!pending.isEmpty()) {
+                    writePendingResults(output, pending, pendingQids, pendingConsole,
+                            pendingMetrics, outputLength);
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            input.close();
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
 
-                ScoreList r = null;
+    /**
+     * Wait for the oldest pending query, print its console text, and
+     * write its results.
+     *
+     * @param output         The output file.
+     * @param pending        The results of the pending queries.
+     * @param pendingQids    Their query ids.
+     * @param pendingConsole Their console text.
+     * @param pendingMetrics Their metrics, or nulls.
+     * @param outputLength   The maximum number of results.
+     * @throws IOException Error evaluating the query or writing the output.
+     */
+    private static void writePendingResults(TrecRunWriter output,
+                                            Queue<Future<ScoreList>> pending,
+                                            Queue<String> pendingQids,
+                                            Queue<StringBuilder> pendingConsole,
+                                            Queue<QueryMetrics> pendingMetrics,
+                                            int outputLength)
+            throws IOException {
+
+        ScoreList r = getResult(pending.remove());
+
+        System.out.print(pendingConsole.remove());
+        writeResults(output, pendingQids.remove(), r, outputLength, pendingMetrics.remove());
+    }
+
+    /**
+     * Collect the calling thread's console text in a buffer instead of
+     * printing it, or stop collecting it.
+     *
+     * @param buffer The buffer, or null to print text directly.
+     */
+    static void setConsoleBuffer(StringBuilder buffer) {
+        if (buffer == null) {
+            consoleBuffer.remove();
+        } else {
+            consoleBuffer.set(buffer);
+        }
+    }
+
+    /**
+     * Print text about the query that the calling thread evaluates, or
+     * add it to the thread's console buffer.
+     *
+     * @param text The text.
+     */
+    static void printConsole(String text) {
+        StringBuilder buffer = consoleBuffer.get();
+
+        if (buffer == null) {
+            System.out.print(text);
+        } else {
+            buffer.append(text);
+        }
+    }
+
+    /**
+     * Print a line about the query that the calling thread evaluates,
+     * or add it to the thread's console buffer.
+     *
+     * @param line The line.
+     */
+    static void printlnConsole(String line) {
+        printConsole(line + System.lineSeparator());
+    }
+
+    /**
+     * Process the query file in batches.  The queries of a batch share
+     * the materialized inverted lists of their common terms (see
+     * {@link BatchSearch}).  Otherwise each query is evaluated like a
+     * query of processNormalQueryFile, with its own time budget, the
+     * result cache, metrics, and statistics.
+     *
+     * @param queryFilePath The query file.
+     * @param model         The retrieval model.
+     * @param outputPath    The trec_eval output file.
+     * @param outputLength  The maximum number of results per query.
+     * @param batchSize     The number of queries in a batch.
+     * @param executor      Evaluates the queries of a batch concurrently,
+     *                      or null to evaluate them one at a time.
+     * @param echo          True if results are also printed to the console.
+     * @param timeout       Each query's time budget in milliseconds, or 0 for none.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static void processBatchQueryFile(String queryFilePath, RetrievalModel model, String outputPath,
+                                      int outputLength, int batchSize, QueryExecutor executor,
+                                      boolean echo, double timeout)
+            throws IOException {
 
-                r = processQuery(query, model);
-
-                if (r != null) {
-                    int i = 0;
-                    int len = Math.min(r.size(), outputLength);
-                    for (i = 0; i < len; i++) {
-                        String externid = Idx.getExternalDocid(r.getDocid(i));
-                        double score = r.getDocidScore(i);
-                        output.write(String.format("%s  Q0  %s  %d  %.18f  fubar\n",
-                                qid, externid, i + 1, score));
-                        System.out.println(String.format("%s  Q0  %s  %d  %f  run-1",
-                                qid, externid, i + 1, score));
+        try (BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
+             TrecRunWriter output = new TrecRunWriter(outputPath, false,
+                     TrecRunWriter.DEFAULT_BUFFER_SIZE, echo)) {
+
+            List<String> qLines = new ArrayList<String>();
+            List<String> queries = new ArrayList<String>();
+            String qLine;
+
+            do {
+                qLine = input.readLine();
+
+                if (qLine != null) {
+                    int d = qLine.indexOf(':');
+
+                    if (d < 0) {
+                        throw new IllegalArgumentException
+                                ("Syntax error:  Missing ':' in query line.");
                     }
 
-                    if (i == 0) {
-                        output.write(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummyRecord", 1, 0));
-                        System.out.print(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummyRecord", 1, 0));
+                    qLines.add(qLine);
+                    queries.add(qLine.substring(d + 1));
+                }
+
+                //  Evaluate a batch when it is full, or at the end of the file.
+
+                if ((queries.size() >= batchSize) || ((qLine == null) && !queries.isEmpty())) {
+                    processBatch(qLines, queries, model, output, outputLength, executor, timeout);
+                    qLines.clear();
+                    queries.clear();
+                }
+            } while (qLine != null);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Evaluate a batch of queries, and write their results in the order
+     * of the batch.  Every query finishes before the index that the
+     * shared lists were read from is released.
+     *
+     * @param qLines       The query file lines of the batch, qid:query.
+     * @param queries      The query strings of the batch.
+     * @param model        The retrieval model.
+     * @param output       The output file.
+     * @param outputLength The maximum number of results per query.
+     * @param executor     Evaluates the queries concurrently, or null.
+     * @param timeout      Each query's time budget in milliseconds, or 0 for none.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static void processBatch(List<String> qLines, List<String> queries,
+                                     final RetrievalModel model, TrecRunWriter output,
+                                     final int outputLength, QueryExecutor executor,
+                                     final double timeout)
+            throws IOException {
+
+        final IndexContext context = Idx.acquireCurrentContext();
+
+        try {
+            BatchSearch batch = new BatchSearch(context, model);
+            List<Qry> trees = batch.prepare(queries);
+            System.out.println("Batch:  " + queries.size() + " queries, " +
+                    batch.getSharingSummary());
+
+            if (executor == null) {
+                for (int i = 0; i < trees.size(); i++) {
+                    String qLine = qLines.get(i);
+                    QueryMetrics metrics = startMetrics(qLine);
+                    ScoreList r = processBatchQuery(qLine, trees.get(i), context, model,
+                            outputLength, null, timeout, metrics);
+                    writeResults(output, getQid(qLine), r, outputLength, metrics);
+                }
+                return;
+            }
+
+            final Executor subtrees = executor.getSubtreeExecutor();
+            ArrayDeque<Future<ScoreList>> pending = new ArrayDeque<Future<ScoreList>>();
+            ArrayDeque<String> pendingQids = new ArrayDeque<String>();
+            ArrayDeque<StringBuilder> pendingConsole = new ArrayDeque<StringBuilder>();
+            LinkedList<QueryMetrics> pendingMetrics = new LinkedList<QueryMetrics>();  // May hold nulls
+
+            try {
+                for (int i = 0; i < trees.size(); i++) {
+                    final String line = qLines.get(i);
+                    final Qry q = trees.get(i);
+                    final QueryMetrics metrics = startMetrics(line);
+                    final StringBuilder console = new StringBuilder();
+
+                    try {
+                        pending.add(executor.submit(new Callable<ScoreList>() {
+                            public ScoreList call() throws IOException {
+                                setConsoleBuffer(console);
+
+                                try {
+                                    return processBatchQuery(line, q, context, model, outputLength,
+                                            subtrees, timeout, metrics);
+                                } finally {
+                                    setConsoleBuffer(null);
+                                }
+                            }
+                        }));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Query evaluation was interrupted");
                     }
-                } else {
-                    output.write(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummy", 1, 0));
-                    System.out.println(String.format("%s  Q0  %s  %d  %f  run-1", qid, "dummy", 1, 0));
+                    pendingQids.add(getQid(line));
+                    pendingConsole.add(console);
+                    pendingMetrics.add(metrics);
+                }
+
+                while (!pending.isEmpty()) {
+                    writePendingResults(output, pending, pendingQids, pendingConsole,
+                            pendingMetrics, outputLength);
+                }
+            } finally {
+                for (Future<ScoreList> f : pending) {
+                    f.cancel(true);
                 }
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
         } finally {
-            input.close();
-            output.close();
+            Idx.release(context);
+        }
+    }
+
+    /**
+     * Evaluate a query of a batch, measuring it, the way processQueryLine
+     * evaluates a query of the current index.  The query was already
+     * parsed, and shares inverted lists with the other queries of its
+     * batch, so it is evaluated against the index that they were read
+     * from.
+     *
+     * @param qLine        The query file line, qid:query.
+     * @param q            The parsed query, or null if it is empty.
+     * @param context      The index that the batch's lists were read from.
+     * @param model        The retrieval model.
+     * @param outputLength The maximum number of results.
+     * @param subtrees     Initializes the subtrees of the query tree
+     *                     concurrently, or null.
+     * @param timeout      The query's time budget in milliseconds, or 0 for none.
+     * @param metrics      The query's metrics, or null if they aren't recorded.
+     * @return The results, or null if the query is empty.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList processBatchQuery(String qLine, Qry q, IndexContext context,
+                                       RetrievalModel model, int outputLength, Executor subtrees,
+                                       double timeout, QueryMetrics metrics)
+            throws IOException {
+
+        ScoreList r = null;
+
+        if (metrics != null) {
+            metrics.start();
+        }
+
+        printlnConsole("Query " + qLine);
+        printlnConsole("    --> " + q);
+
+        Timer.enter(QUERY_PHASE);
+        Deadline previous = Deadline.setCurrent((timeout > 0) ? new Deadline(timeout) : null);
+
+        try {
+            r = processCachedQuery(q, model, outputLength, context, subtrees);
+        } finally {
+            Deadline.setCurrent(previous);
+            Timer.exit();
+
+            if (metrics != null) {
+                metrics.stop(r);
+            }
+        }
+
+        reportTimeout(qLine, r, timeout);
+        return r;
+    }
+
+    /**
+     * Count a query whose time budget ran out, and say so.
+     *
+     * @param qLine   The query file line, qid:query.
+     * @param r       The query's results, or null if it is empty.
+     * @param timeout The query's time budget in milliseconds.
+     */
+    static void reportTimeout(String qLine, ScoreList r, double timeout) {
+        if ((r != null) && r.isTimedOut()) {
+            timedOutQueries.incrementAndGet();
+            printlnConsole("Query " + getQid(qLine) + " timed out after " +
+                    timeout + " ms with " + r.size() + " partial results");
+        }
+    }
+
+    /**
+     * Get the time budget of each query, queryTimeout, in milliseconds.
+     *
+     * @param parameters The parameters of the run.
+     * @return The budget, or 0 if queries aren't bounded.
+     */
+    static double getTimeout(Map<String, String> parameters) {
+        return parameters.containsKey("queryTimeout")
+                ? Double.parseDouble(parameters.get("queryTimeout")) : 0;
+    }
+
+    /**
+     * Whether results are printed to the console as they are written,
+     * which trecEvalOutputEcho (default true) controls.
+     *
+     * @param parameters The parameters of the run.
+     * @return True if results are printed.
+     */
+    static boolean getEcho(Map<String, String> parameters) {
+        return !(parameters.containsKey("trecEvalOutputEcho") &&
+                 parameters.get("trecEvalOutputEcho").toLowerCase().equals("false"));
+    }
+
+    /**
+     * Get the query id of a query file line.
+     *
+     * @param qLine A query file line, qid:query.
+     * @return The query id, or the whole line if it has no ':'.
+     */
+    static String getQid(String qLine) {
+        int d = qLine.indexOf(':');
+        return (d < 0) ? qLine : qLine.substring(0, d);
+    }
+
+    /**
+     * Wait for a query that was submitted to a pool to finish.
+     *
+     * @param f The query's result.
+     * @return The result.
+     * @throws IOException The query failed
+     */
+    static <T> T getResult(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Query evaluation was interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Create the metrics of a query if they are recorded.  Without
+     * metrics, the memory that is in use is printed instead.
+     *
+     * @param qLine A query file line, qid:query.
+     * @return The query's metrics, or null if they aren't recorded.
+     */
+    static QueryMetrics startMetrics(String qLine) {
+        if (metricsLog == null) {
+            printMemoryUsage(false);
+            return null;
+        }
+
+        return new QueryMetrics(getQid(qLine));
+    }
+
+    /**
+     * Write the results of a query, and record its metrics.
+     *
+     * @param output       The output file.
+     * @param qid          The query id.
+     * @param r            The results, or null if the query is empty.
+     * @param outputLength The maximum number of results.
+     * @param metrics      The query's metrics, or null if they aren't recorded.
+     * @throws IOException Error writing the output or the metrics.
+     */
+    static void writeResults(TrecRunWriter output, String qid, ScoreList r, int outputLength,
+                             QueryMetrics metrics)
+            throws IOException {
+
+        long bytes = (metrics == null) ? 0 : QueryMetrics.threadAllocatedBytes();
+        long start = System.nanoTime();
+
+        Timer.enter(OUTPUT_PHASE);
+
+        try {
+            output.write(qid, r, outputLength);
+        } finally {
+            Timer.exit();
+        }
+
+        if (metrics != null) {
+            metrics.addOutput(System.nanoTime() - start, QueryMetrics.threadAllocatedBytes() - bytes);
+            metricsLog.record(metrics);
+        }
+    }
+
+    /**
+     * Evaluate one line of a query file, measuring it.
+     *
+     * @param qLine        A query file line, qid:query.
+     * @param model        The retrieval model.
+     * @param outputLength The maximum number of results.
+     * @param federated    The indexes to search, or null to search the current index.
+     * @param segments     Searches the segments of the current index in
+     *                     parallel, or null to search it sequentially.
+     * @param subtrees     Initializes the subtrees of the query tree
+     *                     concurrently, or null.
+     * @param timeout      The query's time budget in milliseconds, or 0 for none.
+     * @param metrics      The query's metrics, or null if they aren't recorded.
+     * @return The results, or null if the query is empty.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList processQueryLine(String qLine, RetrievalModel model, int outputLength,
+                                      FederatedSearch federated, SegmentSearch segments,
+                                      Executor subtrees, double timeout, QueryMetrics metrics)
+            throws IOException {
+
+        if (metrics == null) {
+            return processQueryLine(qLine, model, outputLength, federated, segments, subtrees, timeout);
+        }
+
+        ScoreList r = null;
+        metrics.start();
+
+        try {
+            r = processQueryLine(qLine, model, outputLength, federated, segments, subtrees, timeout);
+        } finally {
+            metrics.stop(r);
+        }
+
+        return r;
+    }
+
+    /**
+     * Evaluate one line of a query file.
+     *
+     * @param qLine        A query file line, qid:query.
+     * @param model        The retrieval model.
+     * @param outputLength The maximum number of results.
+     * @param federated    The indexes to search, or null to search the current index.
+     * @param segments     Searches the segments of the current index in
+     *                     parallel, or null to search it sequentially.
+     * @param subtrees     Initializes the subtrees of the query tree
+     *                     concurrently, or null.
+     * @param timeout      The query's time budget in milliseconds, or 0
+     *                     for none.
+     * @return The results, or null if the query is empty.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList processQueryLine(String qLine, RetrievalModel model, int outputLength,
+                                   FederatedSearch federated, SegmentSearch segments,
+                                   Executor subtrees, double timeout)
+            throws IOException {
+
+        int d = qLine.indexOf(':');
+
+        if (d < 0) {
+            throw new IllegalArgumentException
+                    ("Syntax error:  Missing ':' in query line.");
+        }
+
+        String query = qLine.substring(d + 1);
+
+        printlnConsole("Query " + qLine);
+
+        Timer.enter(QUERY_PHASE);
+        Deadline previous = Deadline.setCurrent((timeout > 0) ? new Deadline(timeout) : null);
+
+        try {
+            ScoreList r = null;
+
+            if (federated != null) {
+                r = federated.search(query, model, outputLength);
+            } else if (segments != null) {
+                IndexContext context = Idx.acquireCurrentContext();
+
+                try {
+                    r = segments.search(context, query, model, outputLength);
+                } finally {
+                    Idx.release(context);
+                }
+            } else {
+                r = processCachedQuery(query, model, outputLength, subtrees);
+            }
+
+            reportTimeout(qLine, r, timeout);
+            return r;
+        } finally {
+            Deadline.setCurrent(previous);
+            Timer.exit();
         }
     }
 
@@ -164,7 +887,7 @@ public class QryEval {
      * @return The initialized retrieval model
      * @throws IOException Error accessing the Lucene index.
      */
-    private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
+    static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
             throws IOException {
 
         RetrievalModel model = null;
@@ -224,21 +947,28 @@ public class QryEval {
         System.out.println(queryIntentMap);
 
         // produce diversification ranking for each initial query
-        for (Map.Entry<String, ArrayList<String>> entry: queryIntentMap.entrySet()) {
-            // stores all the docs
-            ArrayList<Integer> initialDocList = new ArrayList<>();
-            // stores doc-scoreList
-            Map<Integer, ArrayList<Double>> Id2ScoreMap = new HashMap<>();
-            scalingValues(entry, rankingMap, Id2ScoreMap, initialDocList);
+        TrecRunWriter output = new TrecRunWriter(parameters.get("trecEvalOutputPath"), true,
+                TrecRunWriter.DEFAULT_BUFFER_SIZE, getEcho(parameters));
 
-            String qid =entry.getKey();
-            ArrayList<String> intents = queryIntentMap.get(qid);
-            if (diversify_algorithm.equals("pm2")) {
-                PM2(qid, parameters, intents, Id2ScoreMap, initialDocList);
-            }
-            else if (diversify_algorithm.equals("xquad")) {
-                xQuAD(qid, parameters, intents, Id2ScoreMap, initialDocList);
+        try {
+            for (Map.Entry<String, ArrayList<String>> entry: queryIntentMap.entrySet()) {
+                // stores all the docs
+                ArrayList<Integer> initialDocList = new ArrayList<>();
+                // stores doc-scoreList
+                Map<Integer, ArrayList<Double>> Id2ScoreMap = new HashMap<>();
+                scalingValues(entry, rankingMap, Id2ScoreMap, initialDocList);
+
+                String qid =entry.getKey();
+                ArrayList<String> intents = queryIntentMap.get(qid);
+                if (diversify_algorithm.equals("pm2")) {
+                    PM2(qid, parameters, intents, Id2ScoreMap, initialDocList, output);
+                }
+                else if (diversify_algorithm.equals("xquad")) {
+                    xQuAD(qid, parameters, intents, Id2ScoreMap, initialDocList, output);
+                }
             }
+        } finally {
+            output.close();
         }
     }
 
@@ -249,10 +979,12 @@ public class QryEval {
      * @param intents
      * @param Id2ScoreMap
      * @param initialDocList
+     * @param output The run file.
      * @throws Exception
      */
     public static void xQuAD(String qid, Map<String, String> parameters, ArrayList<String> intents,
-                           Map<Integer, ArrayList<Double>> Id2ScoreMap, ArrayList<Integer> initialDocList) throws Exception {
+                           Map<Integer, ArrayList<Double>> Id2ScoreMap, ArrayList<Integer> initialDocList,
+                           TrecRunWriter output) throws Exception {
         ScoreList final_scoreList = new ScoreList();
         int maxResultLen = Integer.parseInt(parameters.get("diversity:maxResultRankingLength"));
         double lambda = Double.parseDouble(parameters.get("diversity:lambda"));
@@ -305,7 +1037,7 @@ public class QryEval {
                         idinRanking.remove(new Integer(id));
                     }
                 }
-                printResults(qid, final_scoreList, maxResultLen, parameters);
+                printResults(qid, final_scoreList, maxResultLen, output);
                 return;
             }
             idinRanking.remove(maxScoreDocId);
@@ -314,7 +1046,7 @@ public class QryEval {
             initialDocList.remove(new Integer(maxScoreDocId));
             docScoreList.put(maxScoreDocId, maxScoreList);
         }
-        printResults(qid, final_scoreList, maxResultLen, parameters);
+        printResults(qid, final_scoreList, maxResultLen, output);
     }
 
     /**
@@ -324,10 +1056,12 @@ public class QryEval {
      * @param intents
      * @param Id2ScoreMap
      * @param initialDocList
+     * @param output The run file.
      * @throws Exception
      */
     public static void PM2(String qid, Map<String, String> parameters, ArrayList<String> intents,
-                    Map<Integer, ArrayList<Double>> Id2ScoreMap, ArrayList<Integer> initialDocList) throws Exception{
+                    Map<Integer, ArrayList<Double>> Id2ScoreMap, ArrayList<Integer> initialDocList,
+                    TrecRunWriter output) throws Exception{
         ScoreList final_scoreList = new ScoreList();
         HashSet<Integer> idinRanking = new HashSet<>();
         for (int id: Id2ScoreMap.keySet()) {
@@ -415,7 +1149,7 @@ public class QryEval {
                         idinRanking.remove(new Integer(id));
                     }
                 }
-                printResults(qid, final_scoreList, maxResultLen, parameters);
+                printResults(qid, final_scoreList, maxResultLen, output);
                 return;
             }
             // update last scores list
@@ -424,7 +1158,7 @@ public class QryEval {
             initialDocList.remove(new Integer(maxScoreId));
             final_scoreList.add(maxScoreId, maxScore);
         }
-        printResults(qid, final_scoreList, maxResultLen, parameters);
+        printResults(qid, final_scoreList, maxResultLen, output);
         return;
     }
 
@@ -650,36 +1384,325 @@ public class QryEval {
      */
     static ScoreList processQuery(String qString, RetrievalModel model)
             throws IOException {
+        return processQuery(qString, model, (Executor) null);
+    }
 
-        String defaultOp = model.defaultQrySopName();
-        qString = defaultOp + "(" + qString + ")";
-        Qry q = QryParser.getQuery(qString);
+    /**
+     * Process one query, initializing the subtrees of its query tree
+     * concurrently.
+     *
+     * @param qString  A string that contains a query.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param subtrees Initializes subtrees, or null to initialize them sequentially.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, Executor subtrees)
+            throws IOException {
+        IndexContext context = Idx.acquireCurrentContext();
+
+        try {
+            return processQuery(qString, model, context, subtrees);
+        } finally {
+            Idx.release(context);
+        }
+    }
+
+    /**
+     * Process one query against the specified index.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param context The index to search.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, IndexContext context)
+            throws IOException {
+        return processQuery(qString, model, context, null);
+    }
+
+    /**
+     * Process one query against the specified index, initializing the
+     * subtrees of its query tree concurrently.
+     *
+     * @param qString  A string that contains a query.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param context  The index to search.
+     * @param subtrees Initializes subtrees, or null to initialize them sequentially.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, IndexContext context,
+                                  Executor subtrees)
+            throws IOException {
+
+        long start = System.nanoTime();
+        Qry q = parseQuery(qString, model);
 
         // Show the query that is evaluated
-        System.out.println("    --> " + q);
+        printlnConsole("    --> " + q);
+
+        QueryMetrics metrics = QueryMetrics.current();
+
+        if (metrics != null) {
+            metrics.addTime(QueryMetrics.PARSE, System.nanoTime() - start);
+        }
+
+        return evaluateQuery(q, model, context, subtrees);
+    }
+
+    /**
+     * Process one query, using the result cache if there is one.
+     *
+     * @param qString  A string that contains a query.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param k        The number of documents that are needed.  A cached
+     *                 ranking may be cut off after them.
+     * @param subtrees Initializes subtrees, or null to initialize them sequentially.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processCachedQuery(String qString, RetrievalModel model, int k,
+                                        Executor subtrees)
+            throws IOException {
+
+        if (resultCache == null) {
+            return processQuery(qString, model, subtrees);
+        }
+
+        IndexContext context = Idx.acquireCurrentContext();
+
+        try {
+            long start = System.nanoTime();
+            Qry q = parseQuery(qString, model);
+
+            // Show the query that is evaluated
+            printlnConsole("    --> " + q);
+
+            if (q == null) {
+                return null;
+            }
+
+            QueryMetrics metrics = QueryMetrics.current();
+
+            if (metrics != null) {
+                metrics.addTime(QueryMetrics.PARSE, System.nanoTime() - start);
+            }
+
+            return processCachedQuery(q, model, k, context, subtrees);
+        } finally {
+            Idx.release(context);
+        }
+    }
+
+    /**
+     * Process a parsed query against the specified index, using the
+     * result cache if there is one.
+     *
+     * @param q        The query, or null if it is empty.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param k        The number of documents that are needed.  A cached
+     *                 ranking may be cut off after them.
+     * @param context  The index to search.
+     * @param subtrees Initializes subtrees, or null to initialize them sequentially.
+     * @return Search results, or null if the query is null.
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processCachedQuery(Qry q, RetrievalModel model, int k, IndexContext context,
+                                        Executor subtrees)
+            throws IOException {
+
+        if ((q == null) || (resultCache == null)) {
+            return evaluateQuery(q, model, context, subtrees);
+        }
+
+        String key = ResultCache.key(q, model, context);
+        ScoreList r = resultCache.get(key, k, context);
+        QueryMetrics metrics = QueryMetrics.current();
+
+        if (metrics != null) {
+            metrics.setCacheHit(r != null);
+        }
+
+        if (r == null) {
+            r = evaluateQuery(q, model, context, subtrees);
+
+            if (!r.isTimedOut()) {
+                resultCache.put(key, r, k);
+            }
+        }
+
+        return r;
+    }
+
+    /**
+     * Evaluate a parsed query against the specified index.
+     *
+     * @param q        The query, or null if it is empty.
+     * @param model    The retrieval model determines how matching and scoring is done.
+     * @param context  The index to search.
+     * @param subtrees Initializes subtrees, or null to initialize them sequentially.
+     * @return Search results, sorted, or null if the query is null.  If
+     *         the calling thread's deadline expires, the results are
+     *         partial and marked as timed out.
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList evaluateQuery(Qry q, RetrievalModel model, IndexContext context,
+                                   Executor subtrees)
+            throws IOException {
 
         if (q != null) {
 
-            ScoreList r = new ScoreList();
+            ScoreList r = new ScoreList(context);
+            QueryMetrics metrics = QueryMetrics.current();
+            int phase = QueryMetrics.INITIALIZE;
+            long start = System.nanoTime();
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                if (QryStats.sample()) {
+                    q.enableStats();
+                }
+
+                try {
+                    Timer.enter(INITIALIZE_PHASE);
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                    try {
+                        ((QrySop) q).initialize(model, context, subtrees);
+                    } finally {
+                        Timer.exit();
+                    }
+
+                    if (metrics != null) {
+                        long now = System.nanoTime();
+                        metrics.addTime(phase, now - start);
+                        phase = QueryMetrics.ITERATE;
+                        start = now;
+                    }
+
+                    Timer.enter(ITERATE_PHASE);
+
+                    try {
+                        iterateQuery(q, model, r);
+                    } finally {
+                        Timer.exit();
+                    }
+                } catch (Deadline.Exceeded ex) {
+                    r.setTimedOut(true);    // Nothing was scored
+                }
+
+                if (metrics != null) {
+                    long now = System.nanoTime();
+                    metrics.addTime(phase, now - start);
+                    metrics.addDocumentsScored(r.size());
+                    start = now;
                 }
             }
-            r.sort();
+
+            Timer.enter(SORT_PHASE);
+
+            try {
+                r.sort();
+            } finally {
+                Timer.exit();
+            }
+
+            if (metrics != null) {
+                metrics.addTime(QueryMetrics.SORT, System.nanoTime() - start);
+            }
+
+            // Show the work that each operator did, if it was counted
+            if (q.getStats() != null) {
+                printConsole(q.getStatsTree("    ==> "));
+            }
 
             return r;
         } else
             return null;
     }
 
+    /**
+     * Get the fields that the queries in a query file use.
+     *
+     * @param queryFilePath The query file.
+     * @param model         The retrieval model.
+     * @return The fields.
+     * @throws IOException Error reading the query file
+     */
+    static Set<String> getQueryFields(String queryFilePath, RetrievalModel model)
+            throws IOException {
+
+        Set<String> fields = new HashSet<String>();
+
+        try (BufferedReader input = new BufferedReader(new FileReader(queryFilePath))) {
+            String qLine;
+
+            while ((qLine = input.readLine()) != null) {
+                Qry q = parseQuery(qLine.substring(qLine.indexOf(':') + 1), model);
+
+                if (q != null) {
+                    for (QryIop iop : q.getIopArgs(new ArrayList<QryIop>())) {
+                        fields.add(iop.getField());
+                    }
+                }
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Parse a query, using the retrieval model's default query operator
+     * for unstructured queries.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model.
+     * @return The optimized query tree, or null if the query is empty.
+     * @throws IOException Error accessing the index
+     */
+    static Qry parseQuery(String qString, RetrievalModel model)
+            throws IOException {
+        String defaultOp = model.defaultQrySopName();
+        qString = defaultOp + "(" + qString + ")";
+
+        Timer.enter(PARSE_PHASE);
+
+        try {
+            return QryParser.getQuery(qString);
+        } finally {
+            Timer.exit();
+        }
+    }
+
+    /**
+     * Score every document that an initialized query matches
+     * (document-at-a-time), adding it to a score list.  If the calling
+     * thread's deadline expires, scoring stops, and the list is marked
+     * as timed out.
+     *
+     * @param q     An initialized query.
+     * @param model The retrieval model determines how matching and scoring is done.
+     * @param r     The score list that matching documents are added to.
+     * @throws IOException Error accessing the index
+     */
+    static void iterateQuery(Qry q, RetrievalModel model, ScoreList r)
+            throws IOException {
+        Deadline deadline = Deadline.current();
+
+        while (q.docIteratorHasMatch(model)) {
+            if ((deadline != null) && deadline.expired()) {
+                r.setTimedOut(true);
+                break;
+            }
+
+            int docid = q.docIteratorGetMatch();
+            double score = ((QrySop) q).getScore(model);
+            r.add(docid, score);
+            q.docIteratorAdvancePast(docid);
+        }
+    }
+
     /**
      * Process the query file.
      *
@@ -714,7 +1737,7 @@ public class QryEval {
 
                 ScoreList r = null;
 
-                r = processQuery(query, model);
+                r = processCachedQuery(query, model, outputLength, null);
 
                 int maxLen = 0;
                 // change 719.1 to 719_1
@@ -734,8 +1757,7 @@ public class QryEval {
                 ArrayList<DocScorePair> docScores = new ArrayList<>();
 
                 for (int i = 0; i < maxLen; i++) {
-                    String externId = Idx.getExternalDocid(r.getDocid(i));
-                    int internId = Idx.getInternalDocid(externId);
+                    int internId = r.getDocid(i);
                     double score = r.getDocidScore(i);
                     docScores.add(new DocScorePair(internId, score));
                 }
@@ -754,40 +1776,12 @@ public class QryEval {
      * @param qid
      * @param r
      * @param outputLen
-     * @param parameters
+     * @param output The run file.
      * @throws IOException
      */
-    static void printResults(String qid, ScoreList r, int outputLen, Map<String, String> parameters) throws IOException {
+    static void printResults(String qid, ScoreList r, int outputLen, TrecRunWriter output) throws IOException {
         r.sort();
-        String outputFile = parameters.get("trecEvalOutputPath");
-        File file = null;
-        FileWriter output = null;
-        try {
-            file = new File(outputFile);
-            output = new FileWriter(file, true);
-            if (r != null) {
-                int i = 0;
-                for (i = 0; i < outputLen; i++) {
-                    String externid = Idx.getExternalDocid(r.getDocid(i));
-                    double score = r.getDocidScore(i);
-                    output.write(String.format("%s  Q0  %s  %d  %.18f  fubar\n",
-                            qid, externid, i + 1, score));
-                    System.out.println(String.format("%s  Q0  %s  %d  %f  run-1",
-                            qid, externid, i + 1, score));
-                }
-                if (i == 0) {
-                    output.write(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummyRecord", 1, 0));
-                    System.out.print(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummyRecord", 1, 0));
-                }
-            } else {
-                output.write(String.format("%s  Q0  %s  %d  %d  fubar\n", qid, "dummy", 1, 0));
-                System.out.println(String.format("%s  Q0  %s  %d  %f  run-1", qid, "dummy", 1, 0));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            output.close();
-        }
+        output.write(qid, r, outputLen);
     }
 
     /**
@@ -801,6 +1795,33 @@ public class QryEval {
     private static Map<String, String> readParameterFile(String parameterFileName)
             throws IOException {
 
+        Map<String, String> parameters = readParameters(parameterFileName);
+
+        //  A server reads its queries from connections instead of a file.
+
+        boolean server = parameters.containsKey("server:port");
+
+        if (!(parameters.containsKey("indexPath") &&
+                (server || parameters.containsKey("queryFilePath")) &&
+                (server || parameters.containsKey("trecEvalOutputPath")))) {
+            throw new IllegalArgumentException
+                    ("Required parameters were missing from the parameter file.");
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Read a file of key=value parameters, without checking which ones
+     * are present.  Tools that share QryEval's parameter files use it.
+     *
+     * @param parameterFileName The parameter file.
+     * @return The parameters, in <key, value> format.
+     * @throws IOException Error reading the file.
+     */
+    static Map<String, String> readParameters(String parameterFileName)
+            throws IOException {
+
         Map<String, String> parameters = new HashMap<String, String>();
 
         File parameterFile = new File(parameterFileName);
@@ -820,13 +1841,6 @@ public class QryEval {
 
         scan.close();
 
-        if (!(parameters.containsKey("indexPath") &&
-                parameters.containsKey("queryFilePath") &&
-                parameters.containsKey("trecEvalOutputPath"))) {
-            throw new IllegalArgumentException
-                    ("Required parameters were missing from the parameter file.");
-        }
-
         return parameters;
     }
 
@@ -53,6 +53,24 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  The phase of each operator class's evaluate method.
+   */
+  private static final ClassValue<Timer.Phase> EVALUATE_PHASES =
+    new ClassValue<Timer.Phase> () {
+      protected Timer.Phase computeValue (Class<?> c) {
+        return Timer.phase (c.getName ());
+      }
+    };
+
+  /**
+   *  Document frequency and collection term frequency to report
+   *  instead of the inverted list's own, or -1.  They are set when
+   *  an index is part of a larger corpus whose statistics are known.
+   */
+  private int statsDf = -1;
+  private int statsCtf = -1;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -85,12 +103,19 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
+    int from = this.docIteratorIndex;
+
     while ((this.docIteratorIndex < this.invertedList.df) &&
            (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
       this.docIteratorIndex ++;
     }
            
     this.locIteratorIndex = 0;
+
+    if (this.stats != null) {
+      this.stats.advanceCalls++;
+      this.stats.advanceSkipped += this.docIteratorIndex - from;
+    }
   }
 
   /**
@@ -137,7 +162,7 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
-    return this.invertedList.ctf;
+    return (this.statsCtf >= 0) ? this.statsCtf : this.invertedList.ctf;
   }
 
   /**
@@ -147,9 +172,40 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
+    return (this.statsDf >= 0) ? this.statsDf : this.invertedList.df;
+  }
+
+  /**
+   *  Get the document frequency (df) of the inverted list itself,
+   *  ignoring statistics set by setCollectionStats.
+   *  @return The document frequency (df) of the inverted list.
+   */
+  public int getListDf () {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the collection term frequency (ctf) of the inverted list
+   *  itself, ignoring statistics set by setCollectionStats.
+   *  @return The collection term frequency (ctf) of the inverted list.
+   */
+  public int getListCtf () {
+    return this.invertedList.ctf;
+  }
+
+  /**
+   *  Set the document frequency (df) and collection term frequency
+   *  (ctf) that getDf and getCtf report, e.g., the statistics of the
+   *  whole corpus when the index is one part of it.  Iteration still
+   *  covers only the operator's own inverted list.
+   *  @param df The document frequency.
+   *  @param ctf The collection term frequency.
+   */
+  public void setCollectionStats (int df, int ctf) {
+    this.statsDf = df;
+    this.statsCtf = ctf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -170,18 +226,37 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param context The index that the query is evaluated against
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext context)
+    throws IOException {
+
+    this.context = context;
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, context);
     }
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+    //  Evaluate the operator.  Its time, without the time of its
+    //  arguments, is a phase named by its class.
+
+    Timer.enter (EVALUATE_PHASES.get (this.getClass ()));
+    long start = (this.stats != null) ? System.nanoTime () : 0;
+
+    try {
+      this.evaluate ();
+    } finally {
+      Timer.exit ();
+    }
+
+    //  The operator matches the documents in its inverted list.
+
+    if (this.stats != null) {
+      this.stats.nanos += System.nanoTime () - start;
+      this.stats.matches = this.invertedList.df;
+    }
 
     //  Initialize the internal iterators.
 
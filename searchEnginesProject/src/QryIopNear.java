@@ -37,7 +37,12 @@ public class QryIopNear extends QryIop {
         }
         //  Each pass of the loop adds 1 document to result inverted list
         //  until all of the argument inverted lists are depleted.
+        Deadline deadline = Deadline.current();
+        long compared = 0;
+
         while (this.docIteratorHasMatchAll((null))) {
+            Deadline.check(deadline);
+
             // Advance all doc iterators until they point to the same document
             QryIop prev = ((QryIop)args.get(0));
             int minId = prev.docIteratorGetMatch();
@@ -72,6 +77,7 @@ public class QryIopNear extends QryIop {
                     }
 
                     // get locations in two location lists
+                    compared++;
                     int prev_loc = prev_locs.get(prev_pointer);
                     int curr_loc = curr_locs.get(curr_pointer);
 
@@ -108,5 +114,9 @@ public class QryIopNear extends QryIop {
             }
         }
 
+        if (this.stats != null) {
+            this.stats.positionsCompared += compared;
+        }
+
     }
 }
@@ -28,8 +28,12 @@ public class QryIopSyn extends QryIop {
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
+    Deadline deadline = Deadline.current ();
+
     while (true) {
 
+      Deadline.check (deadline);
+
       //  Find the minimum next document id.  If there is none, we're done.
 
       int minDocid = Qry.INVALID_DOCID;
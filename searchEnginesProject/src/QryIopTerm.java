@@ -16,6 +16,11 @@ public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  An inverted list that was read for several queries, or null.
+   */
+  private InvList sharedList = null;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +40,41 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term that the operator matches.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    if (this.sharedList != null) {
+      this.invertedList = this.sharedList;
+    } else {
+      this.invertedList = new InvList(this.context, this.term, this.field);
+
+      if (this.stats != null) {
+        this.stats.postings += this.invertedList.df;
+        this.stats.positions += this.invertedList.ctf;
+      }
+    }
+  }
+
+  /**
+   *  Use an inverted list that was already read from the index,
+   *  instead of reading it again when the operator is initialized.
+   *  The list is only read, so operators in different queries can
+   *  share it.
+   *  @param list The inverted list of this term in this field.
+   */
+  public void setSharedInvList (InvList list) {
+    this.sharedList = list;
   }
 
   /**
@@ -25,7 +25,12 @@ public class QryIopWindow extends QryIop {
         }
 
         //  each while loop search for next document that every term matches
+        Deadline deadline = Deadline.current();
+        long compared = 0;
+
         while (this.docIteratorHasMatchAll((null))) {
+            Deadline.check(deadline);
+
             // get current document id
             int docId = this.args.get(0).docIteratorGetMatch();
             // check id is valid
@@ -41,6 +46,7 @@ public class QryIopWindow extends QryIop {
 
             while (true) {
                 int[] res = findMinMaxPos(pointers);
+                compared += total_size;
                 int flag = res[0];
                 int maxPos = res[1];
                 int minPos = res[2];
@@ -67,6 +73,10 @@ public class QryIopWindow extends QryIop {
             this.args.get(0).docIteratorAdvancePast(docId);
         }
 
+        if (this.stats != null) {
+            this.stats.positionsCompared += compared;
+        }
+
     }
 
     /**
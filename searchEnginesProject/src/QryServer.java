@@ -0,0 +1,531 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  QryServer evaluates queries that arrive over a line-oriented TCP
+ *  connection, so that the index, its caches and the JIT's work stay
+ *  resident between queries.  It is started by QryEval when the
+ *  parameter file has server:port.
+ *  <p>
+ *  Each request is one line:
+ *  </p>
+ *  <pre>
+ *    [key=value TAB]... qid:query
+ *  </pre>
+ *  <p>
+ *  The optional key=value fields override parameters of the parameter
+ *  file for this query only:  the retrieval model (retrievalAlgorithm,
+ *  BM25:k_1, Indri:mu, ...), trecEvalOutputLength and queryTimeout.
+ *  The response is the ranking in trec_eval format, one document per
+ *  line, followed by an empty line.  If the query ran out of time, the
+ *  ranking is partial, and a TIMEOUT line precedes the empty line.  A
+ *  request that fails gets "ERROR message" and an empty line.  QUIT
+ *  closes the connection, and SHUTDOWN stops the server if
+ *  server:allowShutdown is true.
+ *  </p>
+ *  <ul>
+ *  <li><b>server:port</b>: The port, or 0 for any free port.</li>
+ *  <li><b>server:host</b>: The address to listen on (default
+ *      127.0.0.1, local connections only).</li>
+ *  <li><b>server:threads</b>: The number of requests that are
+ *      evaluated at the same time, over all connections (default:  one
+ *      per core).  Others wait until a worker is free.</li>
+ *  <li><b>server:shutdownTimeout</b>: Seconds that a shutdown waits for
+ *      queries in progress (default 30).</li>
+ *  </ul>
+ *  <p>
+ *  Each connection has a lightweight thread that reads its requests
+ *  and gives each one to the workers, and one that writes the
+ *  responses, in the order of the requests.  An idle connection
+ *  doesn't hold a worker, and a client may send several requests
+ *  without waiting, which are then evaluated concurrently.
+ *  </p>
+ *  <p>
+ *  A shutdown, by SHUTDOWN or by a signal that stops the JVM, stops
+ *  accepting connections and requests, lets the workers finish the
+ *  requests that were received, and then closes the connections.
+ *  </p>
+ *  <p>
+ *  If the parameter file has metrics:path, each request's metrics are
+ *  recorded, as in a batch run.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String DEFAULT_HOST = "127.0.0.1";
+  public static final double DEFAULT_SHUTDOWN_TIMEOUT = 30.0;
+
+  private final Map<String,String> parameters;
+  private final RetrievalModel defaultModel;
+  private final int defaultOutputLength;
+  private final double defaultTimeout;
+  private final FederatedSearch federated;
+  private final SegmentSearch segments;
+  private final ServerSocket serverSocket;
+  private final ExecutorService workers;
+  private final ExecutorService connectionThreads;
+  private final int maxPipelined;
+  private final long shutdownTimeoutMillis;
+  private final boolean allowShutdown;
+
+  private final Set<Socket> connections =
+    Collections.newSetFromMap (new ConcurrentHashMap<Socket,Boolean> ());
+  private final AtomicBoolean stopping = new AtomicBoolean (false);
+  private final CountDownLatch stopped = new CountDownLatch (1);
+
+  /**
+   *  Marks the end of a connection's responses.
+   */
+  private static final Future<byte[]> END =
+    CompletableFuture.completedFuture (new byte[0]);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a server and start listening.  Connections are accepted
+   *  when run is called.
+   *  @param parameters The parameters of the run.
+   *  @param federated The indexes to search, or null to search the current index.
+   *  @param segments Searches the segments of the current index in
+   *    parallel, or null to search it sequentially.
+   *  @throws IOException Error opening the socket.
+   */
+  public QryServer (Map<String,String> parameters,
+                    FederatedSearch federated,
+                    SegmentSearch segments)
+    throws IOException {
+
+    this.parameters = parameters;
+    this.defaultModel = QryEval.initializeRetrievalModel (parameters);
+    this.defaultOutputLength =
+      Integer.parseInt (parameters.get ("trecEvalOutputLength"));
+    this.defaultTimeout = QryEval.getTimeout (parameters);
+    this.federated = federated;
+    this.segments = segments;
+
+    String host = DEFAULT_HOST;
+    int numThreads = Runtime.getRuntime ().availableProcessors ();
+    double timeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    if (parameters.containsKey ("server:host")) {
+      host = parameters.get ("server:host");
+    }
+
+    if (parameters.containsKey ("server:threads")) {
+      numThreads = Integer.parseInt (parameters.get ("server:threads"));
+    }
+
+    if (parameters.containsKey ("server:shutdownTimeout")) {
+      timeout = Double.parseDouble (parameters.get ("server:shutdownTimeout"));
+    }
+
+    this.shutdownTimeoutMillis = (long) (timeout * 1000);
+    this.allowShutdown = parameters.containsKey ("server:allowShutdown") &&
+      parameters.get ("server:allowShutdown").toLowerCase ().equals ("true");
+    this.serverSocket = new ServerSocket ();
+    this.serverSocket.setReuseAddress (true);
+    this.serverSocket.bind (new InetSocketAddress (
+      InetAddress.getByName (host),
+      Integer.parseInt (parameters.get ("server:port"))));
+    this.workers = Executors.newFixedThreadPool (Math.max (1, numThreads));
+    this.maxPipelined = Math.max (1, numThreads);
+    this.connectionThreads = Executors.newCachedThreadPool (new ThreadFactory () {
+      public Thread newThread (Runnable r) {
+        Thread t = new Thread (r, "connection");
+        t.setDaemon (true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   *  Get the port that the server listens on.
+   *  @return The port.
+   */
+  public int getPort () {
+    return this.serverSocket.getLocalPort ();
+  }
+
+  /**
+   *  Accept and serve connections until the server is shut down.
+   *  A shutdown hook shuts the server down gracefully if the JVM is
+   *  stopped.
+   *  @throws IOException Error accepting a connection.
+   */
+  public void run () throws IOException {
+
+    Thread hook = new Thread ("server-shutdown") {
+      public void run () {
+        shutdown ();
+        awaitStopped ();
+      }
+    };
+
+    Runtime.getRuntime ().addShutdownHook (hook);
+    System.out.println ("Listening on " +
+                        this.serverSocket.getInetAddress ().getHostAddress () +
+                        ":" + getPort ());
+
+    try {
+      while (! this.stopping.get ()) {
+        final Socket socket;
+
+        try {
+          socket = this.serverSocket.accept ();
+        } catch (SocketException ex) {
+          if (this.stopping.get ()) {
+            break;				// The socket was closed by shutdown
+          }
+          throw ex;
+        }
+
+        this.connections.add (socket);
+
+        try {
+          this.connectionThreads.execute (new Runnable () {
+            public void run () {
+              serve (socket);
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          closeQuietly (socket);
+          this.connections.remove (socket);
+        }
+      }
+    } finally {
+      shutdown ();
+      drain ();
+
+      try {
+        Runtime.getRuntime ().removeShutdownHook (hook);
+      } catch (IllegalStateException ex) {
+        // The JVM is already stopping, and the hook is running
+      }
+
+      this.stopped.countDown ();
+    }
+  }
+
+  /**
+   *  Stop accepting connections, and stop reading requests from open
+   *  connections.  Requests in progress are finished.  run returns
+   *  when they are.
+   */
+  public void shutdown () {
+
+    if (! this.stopping.compareAndSet (false, true)) {
+      return;
+    }
+
+    System.out.println ("Shutting down");
+
+    try {
+      this.serverSocket.close ();
+    } catch (IOException ex) {
+      // Closing anyway
+    }
+
+    for (Socket socket : this.connections) {
+      try {
+        socket.shutdownInput ();		// The next read sees the end
+      } catch (IOException ex) {
+        closeQuietly (socket);
+      }
+    }
+  }
+
+  /**
+   *  Wait for the workers to finish their requests, and for the
+   *  responses to be written, then close any connection that is still
+   *  open.
+   */
+  private void drain () {
+
+    this.workers.shutdown ();
+
+    try {
+      if (! this.workers.awaitTermination (this.shutdownTimeoutMillis,
+                                           TimeUnit.MILLISECONDS)) {
+        System.out.println ("Warning:  Queries were still running at shutdown");
+        this.workers.shutdownNow ();
+      }
+
+      this.connectionThreads.shutdown ();
+
+      if (! this.connectionThreads.awaitTermination (1000, TimeUnit.MILLISECONDS)) {
+        this.connectionThreads.shutdownNow ();	// Requests that never ran
+      }
+    } catch (InterruptedException ex) {
+      this.workers.shutdownNow ();
+      this.connectionThreads.shutdownNow ();
+      Thread.currentThread ().interrupt ();
+    }
+
+    for (Socket socket : this.connections) {
+      closeQuietly (socket);
+    }
+  }
+
+  /**
+   *  Wait until run has returned, or the shutdown timeout expires.
+   */
+  private void awaitStopped () {
+    try {
+      this.stopped.await (this.shutdownTimeoutMillis + 1000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   *  Read the requests of one connection until it is closed, and give
+   *  each one to the workers.  Another thread writes the responses.
+   *  @param socket The connection.
+   */
+  private void serve (final Socket socket) {
+
+    final BlockingQueue<Future<byte[]>> responses =
+      new ArrayBlockingQueue<Future<byte[]>> (this.maxPipelined);
+    Future<?> writer = null;
+
+    try (BufferedReader input = new BufferedReader (
+           new InputStreamReader (socket.getInputStream (), StandardCharsets.UTF_8))) {
+
+      final OutputStream output = socket.getOutputStream ();
+
+      writer = this.connectionThreads.submit (new Runnable () {
+        public void run () {
+          writeResponses (socket, output, responses);
+        }
+      });
+
+      String line;
+
+      try {
+        while ((line = input.readLine ()) != null) {
+          line = line.trim ();
+
+          if (line.length () == 0) {
+            continue;
+          } else if (line.equals ("QUIT")) {
+            break;
+          } else if (line.equals ("SHUTDOWN")) {
+            if (this.allowShutdown) {
+              responses.put (response ("OK"));
+              shutdown ();
+              break;
+            }
+            responses.put (response ("ERROR Shutdown is not allowed"));
+          } else {
+            responses.put (submit (line));
+          }
+        }
+      } finally {
+        responses.put (END);
+      }
+
+      writer.get ();
+    } catch (IOException ex) {
+      System.out.println ("Connection error:  " + ex.getMessage ());
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+    } catch (ExecutionException ex) {
+      System.out.println ("Connection error:  " + ex.getCause ());
+    } finally {
+      if (writer != null) {
+        writer.cancel (true);
+      }
+
+      this.connections.remove (socket);
+      closeQuietly (socket);
+    }
+  }
+
+  /**
+   *  Write the responses of a connection, in the order of its
+   *  requests, until the end of the requests.  If the connection
+   *  fails, the remaining responses are discarded.
+   *  @param socket The connection.
+   *  @param output The connection's output stream.
+   *  @param responses The responses, in the order of the requests.
+   */
+  private void writeResponses (Socket socket, OutputStream output,
+                               BlockingQueue<Future<byte[]>> responses) {
+
+    boolean failed = false;
+
+    try {
+      Future<byte[]> f;
+
+      while ((f = responses.take ()) != END) {
+        byte[] bytes;
+
+        try {
+          bytes = f.get ();
+        } catch (ExecutionException ex) {
+          bytes = message ("ERROR " + ex.getCause ());
+        }
+
+        if (! failed) {
+          try {
+            output.write (bytes);
+            output.flush ();
+          } catch (IOException ex) {
+            System.out.println ("Connection error:  " + ex.getMessage ());
+            closeQuietly (socket);		// The reader sees the end
+            failed = true;
+          }
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   *  Give a request to the workers.
+   *  @param request The request line.
+   *  @return The response.
+   */
+  private Future<byte[]> submit (final String request) {
+    try {
+      return this.workers.submit (new Callable<byte[]> () {
+        public byte[] call () throws IOException {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+
+          try (TrecRunWriter output = new TrecRunWriter (bytes, 1 << 16, false)) {
+            handle (request, output);
+            output.writeText ("");
+          }
+
+          return bytes.toByteArray ();
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      return response ("ERROR The server is shutting down");
+    }
+  }
+
+  /**
+   *  Make a response that is a protocol message.
+   *  @param text The message.
+   *  @return The response.
+   */
+  private static Future<byte[]> response (String text) {
+    return CompletableFuture.completedFuture (message (text));
+  }
+
+  /**
+   *  Encode a protocol message.
+   *  @param text The message.
+   *  @return The message, followed by an empty line.
+   */
+  private static byte[] message (String text) {
+    return (text + "\n\n").getBytes (StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Evaluate one request and write its response.
+   *  @param request The request line.
+   *  @param output The connection.
+   *  @throws IOException Error writing the response.
+   */
+  private void handle (String request, TrecRunWriter output)
+    throws IOException {
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    String qLine;
+    int outputLength;
+    double timeout;
+    QueryMetrics metrics = null;
+    StringBuilder console = new StringBuilder ();
+    ScoreList r;
+
+    try {
+      String[] fields = request.split ("\t");
+      qLine = fields[fields.length - 1].trim ();
+      RetrievalModel model = this.defaultModel;
+      outputLength = this.defaultOutputLength;
+      timeout = this.defaultTimeout;
+
+      //  Per-request parameters replace the parameter file's.
+
+      if (fields.length > 1) {
+        Map<String,String> p = new HashMap<String,String> (this.parameters);
+
+        for (int i = 0; i < fields.length - 1; i++) {
+          int eq = fields[i].indexOf ('=');
+
+          if (eq <= 0) {
+            throw new IllegalArgumentException ("Bad parameter " + fields[i]);
+          }
+
+          p.put (fields[i].substring (0, eq).trim (),
+                 fields[i].substring (eq + 1).trim ());
+        }
+
+        model = QryEval.initializeRetrievalModel (p);
+        outputLength = Integer.parseInt (p.get ("trecEvalOutputLength"));
+        timeout = QryEval.getTimeout (p);
+      }
+
+      if (QryEval.metricsLog != null) {
+        metrics = new QueryMetrics (QryEval.getQid (qLine));
+      }
+
+      //  Requests are served concurrently, so each request's console
+      //  text is printed at once.
+
+      QryEval.setConsoleBuffer (console);
+
+      try {
+        r = QryEval.processQueryLine (qLine, model, outputLength, this.federated,
+                                      this.segments, null, timeout, metrics);
+      } finally {
+        QryEval.setConsoleBuffer (null);
+      }
+    } catch (RuntimeException ex) {
+      System.out.print (console);
+      output.writeText ("ERROR " + ex.getMessage ());
+      return;
+    } catch (IOException ex) {
+      System.out.print (console);
+      output.writeText ("ERROR " + ex.getMessage ());
+      return;
+    }
+
+    QryEval.writeResults (output, QryEval.getQid (qLine), r, outputLength, metrics);
+
+    if ((r != null) && r.isTimedOut ()) {
+      output.writeText ("TIMEOUT");
+    }
+
+    timer.stop ();
+    console.append ("Served " + QryEval.getQid (qLine) + " in " + timer +
+                    System.lineSeparator ());
+    System.out.print (console);
+  }
+
+  /**
+   *  Close a socket, ignoring errors.
+   *  @param socket The socket.
+   */
+  private static void closeQuietly (Socket socket) {
+    try {
+      socket.close ();
+    } catch (IOException ex) {
+      // Closing anyway
+    }
+  }
+}
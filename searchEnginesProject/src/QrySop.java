@@ -2,6 +2,8 @@
  *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -38,11 +40,88 @@ public abstract class QrySop extends Qry {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param context The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext context)
+    throws IOException {
+    this.context = context;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, context);
+    }
+  }
+
+  /**
+   *  Initialize the query operator, initializing its arguments
+   *  concurrently.  The arguments of a QrySop are independent
+   *  subtrees, so each one is initialized by a task of the executor
+   *  (the last by the calling thread), and nested QrySop arguments
+   *  split their own arguments the same way.  Tasks run under the
+   *  calling thread's {@link Deadline}.
+   *  @param r A retrieval model that guides initialization
+   *  @param context The index that the query is evaluated against
+   *  @param executor Runs the initialization of subtrees, or null to
+   *    initialize them sequentially.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (final RetrievalModel r,
+                          final IndexContext context,
+                          final Executor executor)
+    throws IOException {
+
+    if (executor == null) {
+      this.initialize (r, context);
+      return;
+    }
+
+    this.context = context;
+    List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>> ();
+    final Deadline deadline = Deadline.current ();
+
+    for (int i = 0; i < this.args.size () - 1; i++) {
+      final Qry q_i = this.args.get (i);
+      FutureTask<Void> task = new FutureTask<Void> (new Callable<Void> () {
+        public Void call () throws IOException {
+          Deadline previous = Deadline.setCurrent (deadline);
+
+          try {
+            initializeArg (q_i, r, context, executor);
+          } finally {
+            Deadline.setCurrent (previous);
+          }
+          return null;
+        }
+      });
+
+      executor.execute (task);
+      tasks.add (task);
+    }
+
+    initializeArg (this.args.get (this.args.size () - 1), r, context, executor);
+
+    for (FutureTask<Void> task : tasks) {
+      QryEval.getResult (task);
+    }
+  }
+
+  /**
+   *  Initialize one argument of a query operator.
+   *  @param q_i The argument.
+   *  @param r A retrieval model that guides initialization
+   *  @param context The index that the query is evaluated against
+   *  @param executor Runs the initialization of subtrees.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void initializeArg (Qry q_i,
+                                     RetrievalModel r,
+                                     IndexContext context,
+                                     Executor executor)
+    throws IOException {
+
+    if (q_i instanceof QrySop) {
+      ((QrySop) q_i).initialize (r, context, executor);
+    } else {
+      q_i.initialize (r, context);
     }
   }
 }
@@ -92,18 +92,19 @@ public class QrySopScore extends QrySop {
       double b = ((RetrievalModelBM25)r).b;
       double k3 = ((RetrievalModelBM25)r).k_3;
 
+      // corpus statistics, computed once when the index is opened
+      IndexStats stats = this.context.getIndexStats();
       // number of documents
-      double N = Idx.getNumDocs();
+      double N = stats.getNumDocs();
       // document frequency
       double df = q_i.getDf();
       // term frequency
       double tf = this.getArg(0).docIteratorGetMatchPosting().tf;
       // document length
       String field = q_i.getField();
-      double docLen = Idx.getFieldLength(field, q_i.docIteratorGetMatch());
+      double docLen = this.context.getFieldLength(field, q_i.docIteratorGetMatch());
       // average document length
-      double docCount = (double) Idx.getDocCount(field);
-      double avg_docLen = Idx.getSumOfFieldLengths(field) / docCount;
+      double avg_docLen = stats.getAvgFieldLength(field);
 
       // three parts: rsj, tf, user
       double rsj_weight = Math.max(0, Math.log((N - df + 0.5)/ (df + 0.5)));
@@ -132,10 +133,10 @@ public class QrySopScore extends QrySop {
           double tf = q_i.docIteratorGetMatchPosting().tf;
           // document length
           String field = q_i.getField();
-          double docLen = Idx.getFieldLength(field, q_i.docIteratorGetMatch());
+          double docLen = this.context.getFieldLength(field, q_i.docIteratorGetMatch());
           // maximum likelihood estimation
           double ctf = q_i.getCtf();
-          double p_mle = ctf / (double) Idx.getSumOfFieldLengths(field);
+          double p_mle = ctf / (double) this.context.getSumOfFieldLengths(field);
           return (1.0 - lambda) * ((tf + mu * p_mle) / (docLen + mu)) + lambda * p_mle;
       } else {
           return 0;
@@ -158,10 +159,10 @@ public class QrySopScore extends QrySop {
         double lambda = ((RetrievalModelIndri)r).lambda;
         String field = q_i.getField();
         // document length
-        double docLen = Idx.getFieldLength(field, docid);
+        double docLen = this.context.getFieldLength(field, docid);
         // maximum likelihood estimation
         double ctf = q_i.getCtf();
-        double p_mle = ctf / (double) Idx.getSumOfFieldLengths(field);
+        double p_mle = ctf / (double) this.context.getSumOfFieldLengths(field);
 
         return (1.0 - lambda) * ((0 + mu * p_mle) / (docLen + mu)) + lambda * p_mle;
     }
@@ -173,10 +174,13 @@ public class QrySopScore extends QrySop {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param context The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize (RetrievalModel r) throws IOException {
+  public void initialize (RetrievalModel r, IndexContext context)
+    throws IOException {
+      this.context = context;
       Qry q = this.args.get (0);
-      q.initialize (r);
+      q.initialize (r, context);
   }
 }
@@ -44,11 +44,13 @@ public abstract class QrySopW extends QrySop{
      *  is fully evaluated, and the results are stored in an internal
      *  inverted list that may be accessed via the internal iterator.
      *  @param r A retrieval model that guides initialization
+     *  @param context The index that the query is evaluated against
      *  @throws IOException Error accessing the Lucene index.
      */
-    public void initialize(RetrievalModel r) throws IOException{
+    public void initialize(RetrievalModel r, IndexContext context) throws IOException{
+        this.context = context;
         for (Qry q_i: this.args) {
-            q_i.initialize(r);
+            q_i.initialize(r, context);
         }
     }
 }
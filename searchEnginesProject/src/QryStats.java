@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  QryStats counts the work that one query operator does while a
+ *  query is evaluated.  The counters are optional:  a query tree has
+ *  them only if {@link Qry#enableStats} was called, and operators
+ *  check for null before counting, so a query without them costs a
+ *  field read per count.
+ *  <p>
+ *  Counting adds a call to System.nanoTime to each match, so it is
+ *  meant to be left on for a sample of the queries.
+ *  </p>
+ *  <ul>
+ *  <li><b>stats:sampleRate</b>: The fraction of queries, in [0, 1],
+ *      whose counters are collected and printed.  The default is 0.</li>
+ *  </ul>
+ */
+public class QryStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static volatile double sampleRate = 0;
+  private static final AtomicLong queries = new AtomicLong ();
+
+  /**
+   *  The documents that the operator matched.  For a QryIop operator,
+   *  these are the documents in its inverted list.
+   */
+  long matches = 0;
+
+  /**
+   *  The calls to docIteratorAdvanceTo, and the postings that they
+   *  skipped (QryIop operators only).
+   */
+  long advanceCalls = 0;
+  long advanceSkipped = 0;
+
+  /**
+   *  The comparisons of positions in #NEAR (a pair of positions each)
+   *  and #WINDOW (a position of each argument each).
+   */
+  long positionsCompared = 0;
+
+  /**
+   *  The postings and positions decoded from the index.
+   */
+  long postings = 0;
+  long positions = 0;
+
+  /**
+   *  The time spent in the operator, in nanoseconds.  For a QryIop
+   *  operator, this is the time its evaluate method took; for a QrySop
+   *  operator, the time spent finding matches, including the time of
+   *  its arguments.
+   */
+  long nanos = 0;
+
+  /**
+   *  The last document that was counted as a match.
+   */
+  int lastMatch = Qry.INVALID_DOCID;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the fraction of queries whose counters are collected.
+   *  @param rate The fraction, in [0, 1].
+   */
+  public static void setSampleRate (double rate) {
+
+    if ((rate < 0) || (rate > 1)) {
+      throw new IllegalArgumentException ("stats:sampleRate must be in [0, 1]");
+    }
+
+    sampleRate = rate;
+  }
+
+  /**
+   *  Decide whether to collect the counters of the next query.  The
+   *  queries that are sampled are spread evenly, e.g., every 10th
+   *  query when the rate is 0.1.
+   *  @return True if the counters should be collected.
+   */
+  public static boolean sample () {
+
+    double rate = sampleRate;
+
+    if (rate <= 0) {
+      return false;
+    }
+
+    long n = queries.incrementAndGet ();
+    return (long) (n * rate) != (long) ((n - 1) * rate);
+  }
+
+  /**
+   *  Count a match, unless it is the document that was counted last.
+   *  @param docid The internal document id.
+   */
+  void match (int docid) {
+    if (docid != this.lastMatch) {
+      this.matches++;
+      this.lastMatch = docid;
+    }
+  }
+
+  /**
+   *  Describe the counters that are not 0.
+   *  @return The counters, e.g., "matches 12, time 0.210 ms".
+   */
+  @Override public String toString () {
+
+    StringBuilder b = new StringBuilder ();
+
+    b.append ("matches ").append (this.matches);
+
+    if (this.advanceCalls > 0) {
+      b.append (", advanceTo ").append (this.advanceCalls);
+
+      if (this.advanceSkipped > 0) {
+        b.append (" (skipped ").append (this.advanceSkipped).append (")");
+      }
+    }
+
+    if (this.positionsCompared > 0) {
+      b.append (", positions compared ").append (this.positionsCompared);
+    }
+
+    if (this.postings > 0) {
+      b.append (", postings ").append (this.postings)
+        .append (" (positions ").append (this.positions).append (")");
+    }
+
+    b.append (String.format (", time %.3f ms", this.nanos / 1e6));
+    return b.toString ();
+  }
+}
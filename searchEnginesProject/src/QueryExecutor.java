@@ -0,0 +1,225 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  QueryExecutor runs the queries of a query file concurrently.  It
+ *  has two modes.
+ *  <ul>
+ *  <li><b>pool</b>: A fixed pool of numThreads platform threads
+ *      evaluates queries.  This is the default.</li>
+ *  <li><b>virtual</b>: Each query runs on its own virtual thread, and
+ *      the independent subtrees of its query tree are initialized on
+ *      virtual threads of their own.  A query that blocks on a page
+ *      fault doesn't hold a platform thread, so cold indexes can be
+ *      read with high concurrency without tuning a pool size.  A
+ *      limiter bounds the number of queries in progress
+ *      (virtual:maxConcurrency).</li>
+ *  </ul>
+ *  <p>
+ *  The rest of the code needs Java 8, but virtual threads need Java
+ *  21.  On older JVMs the virtual mode uses a cached pool of platform
+ *  threads under the same limiter, and prints a warning.
+ *  </p>
+ *  <p>
+ *  The two modes have been compared only on a warm index and a single
+ *  CPU (ThroughputBenchmark, Java 21, 50 queries, 5 trials), where
+ *  their throughput was within 12% of each other at concurrency 1,
+ *  4 and 16.  The benefit of the virtual mode on cold indexes is
+ *  expected, not measured.
+ *  </p>
+ */
+public class QueryExecutor {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String POOL = "pool";
+  public static final String VIRTUAL = "virtual";
+
+  /**
+   *  The default number of queries in progress in the virtual mode.
+   */
+  public static final int DEFAULT_MAX_CONCURRENCY = 256;
+
+  private final String mode;
+  private final int concurrency;
+  private final ExecutorService executor;
+  private final Semaphore limiter;
+  private final boolean virtualThreads;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param mode The execution mode:  pool or virtual.
+   *  @param concurrency The number of threads in the pool mode, or the
+   *    maximum number of queries in progress in the virtual mode.
+   *  @throws IllegalArgumentException Unknown mode.
+   */
+  public QueryExecutor (String mode, int concurrency)
+    throws IllegalArgumentException {
+
+    if (! (mode.equals (POOL) || mode.equals (VIRTUAL))) {
+      throw new IllegalArgumentException ("Unknown executionMode " + mode);
+    }
+
+    this.mode = mode;
+    this.concurrency = Math.max (1, concurrency);
+
+    if (mode.equals (POOL)) {
+      this.executor = Executors.newFixedThreadPool (this.concurrency);
+      this.limiter = null;
+      this.virtualThreads = false;
+    } else {
+      ExecutorService virtual = newVirtualThreadPerTaskExecutor ();
+      this.virtualThreads = (virtual != null);
+
+      if (virtual == null) {
+        System.out.println ("Warning:  Virtual threads are not available " +
+                            "in Java " + System.getProperty ("java.version") +
+                            "; using platform threads.");
+        virtual = Executors.newCachedThreadPool (new ThreadFactory () {
+          public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "query");
+            t.setDaemon (true);
+            return t;
+          }
+        });
+      }
+
+      this.executor = virtual;
+      this.limiter = new Semaphore (this.concurrency);
+    }
+  }
+
+  /**
+   *  Get the query executor that a parameter file specifies.
+   *  executionMode is pool (the default) or virtual.  numThreads
+   *  (default 1) is the size of the pool, and virtual:maxConcurrency
+   *  is the limit of the virtual mode.
+   *  @param parameters The parameters of the run.
+   *  @return The executor, or null if queries are evaluated one at a
+   *    time by the calling thread.
+   *  @throws IllegalArgumentException Unknown mode.
+   */
+  public static QueryExecutor fromParameters (Map<String,String> parameters)
+    throws IllegalArgumentException {
+
+    String mode = POOL;
+
+    if (parameters.containsKey ("executionMode")) {
+      mode = parameters.get ("executionMode").trim ().toLowerCase ();
+    }
+
+    if (mode.equals (VIRTUAL)) {
+      int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+      if (parameters.containsKey ("virtual:maxConcurrency")) {
+        maxConcurrency =
+          Integer.parseInt (parameters.get ("virtual:maxConcurrency").trim ());
+      }
+
+      return new QueryExecutor (mode, maxConcurrency);
+    }
+
+    int numThreads = 1;
+
+    if (parameters.containsKey ("numThreads")) {
+      numThreads = Integer.parseInt (parameters.get ("numThreads").trim ());
+    }
+
+    return (numThreads > 1) ? new QueryExecutor (mode, numThreads) : null;
+  }
+
+  /**
+   *  Create an executor that starts a virtual thread for each task,
+   *  if the JVM has virtual threads.  It is looked up by reflection so
+   *  that the code compiles and runs on Java 8.
+   *  @return The executor, or null.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor () {
+    try {
+      Method m = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke (null);
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Get the execution mode.
+   *  @return pool or virtual.
+   */
+  public String getMode () {
+    return this.mode;
+  }
+
+  /**
+   *  Get the number of queries that can be in progress at the same time.
+   *  @return The pool size or the limit.
+   */
+  public int getConcurrency () {
+    return this.concurrency;
+  }
+
+  /**
+   *  Get the executor that initializes the subtrees of query trees.
+   *  @return The executor in the virtual mode, otherwise null, which
+   *    means that a query's own thread initializes its whole tree.
+   */
+  public Executor getSubtreeExecutor () {
+    return (this.limiter != null) ? this.executor : null;
+  }
+
+  /**
+   *  Start evaluating a query.  In the virtual mode, the caller waits
+   *  while the limit of queries in progress is reached.
+   *  @param task The query.
+   *  @return The query's result.
+   *  @throws InterruptedException Interrupted while waiting.
+   */
+  public <T> Future<T> submit (final Callable<T> task)
+    throws InterruptedException {
+
+    if (this.limiter == null) {
+      return this.executor.submit (task);
+    }
+
+    this.limiter.acquire ();
+
+    try {
+      return this.executor.submit (new Callable<T> () {
+        public T call () throws Exception {
+          try {
+            return task.call ();
+          } finally {
+            limiter.release ();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      this.limiter.release ();
+      throw ex;
+    }
+  }
+
+  /**
+   *  Stop the threads, cancelling any queries in progress.
+   */
+  public void shutdownNow () {
+    this.executor.shutdownNow ();
+  }
+
+  /**
+   *  Get a description of the executor, e.g., for logs.
+   *  @return The description.
+   */
+  @Override public String toString () {
+    return (this.limiter == null)
+      ? this.mode + ", " + this.concurrency + " threads"
+      : this.mode + ", " + (this.virtualThreads ? "virtual" : "platform") +
+        " threads, at most " + this.concurrency + " queries";
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ *  QueryMetrics measures the evaluation of one query:  the time of
+ *  each phase (parse, initialize, iterate, sort, output), the
+ *  postings and positions read from the index, the documents scored,
+ *  the bytes that the query's thread allocated, and whether the
+ *  ranking came from the result cache.
+ *  <p>
+ *  The query's thread makes its metrics current with start, and the
+ *  code that does the work adds to the current metrics, if there are
+ *  any.  Work that other threads do for the query (e.g., concurrent
+ *  subtree initialization, or federated and segment search) is
+ *  timed by its phase, but its postings and allocations are not
+ *  counted.  Records are written and aggregated by {@link MetricsLog}.
+ *  </p>
+ */
+public class QueryMetrics {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String CACHE_OFF = "off";
+  public static final String CACHE_HIT = "hit";
+  public static final String CACHE_MISS = "miss";
+
+  /**
+   *  The names of the timed phases, in the order of the times array.
+   */
+  public static final String[] PHASES =
+    { "parse", "initialize", "iterate", "sort", "output" };
+
+  public static final int PARSE = 0;
+  public static final int INITIALIZE = 1;
+  public static final int ITERATE = 2;
+  public static final int SORT = 3;
+  public static final int OUTPUT = 4;
+
+  private static final ThreadLocal<QueryMetrics> CURRENT =
+    new ThreadLocal<QueryMetrics> ();
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean ();
+
+  final String qid;
+  final long[] phaseNanos = new long[PHASES.length];
+  long postings = 0;
+  long positions = 0;
+  long documentsScored = 0;
+  long allocatedBytes = 0;
+  String cache = CACHE_OFF;
+  boolean timedOut = false;
+  int results = 0;
+  long totalNanos = 0;
+  long heapUsedBytes = 0;
+
+  private long startNanos = 0;
+  private long startAllocatedBytes = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param qid The query id.
+   */
+  public QueryMetrics (String qid) {
+    this.qid = qid;
+  }
+
+  /**
+   *  Get the calling thread's metrics.
+   *  @return The metrics, or null if the thread isn't measured.
+   */
+  public static QueryMetrics current () {
+    return CURRENT.get ();
+  }
+
+  /**
+   *  Start measuring the query on the calling thread.
+   */
+  public void start () {
+    CURRENT.set (this);
+    this.startAllocatedBytes = threadAllocatedBytes ();
+    this.startNanos = System.nanoTime ();
+  }
+
+  /**
+   *  Stop measuring the query on the calling thread.
+   *  @param r The query's ranking, or null if the query was empty.
+   */
+  public void stop (ScoreList r) {
+    this.totalNanos += System.nanoTime () - this.startNanos;
+    this.allocatedBytes += threadAllocatedBytes () - this.startAllocatedBytes;
+    CURRENT.remove ();
+
+    if (r != null) {
+      this.results = r.size ();
+      this.timedOut = r.isTimedOut ();
+    }
+
+    Runtime runtime = Runtime.getRuntime ();
+    this.heapUsedBytes = runtime.totalMemory () - runtime.freeMemory ();
+  }
+
+  /**
+   *  Add the time and allocation of writing the query's results,
+   *  which may be done by another thread.
+   *  @param nanos The time.
+   *  @param bytes The bytes allocated.
+   */
+  public void addOutput (long nanos, long bytes) {
+    this.phaseNanos[OUTPUT] += nanos;
+    this.totalNanos += nanos;
+    this.allocatedBytes += bytes;
+  }
+
+  /**
+   *  Add time to a phase.
+   *  @param phase The phase, e.g., PARSE.
+   *  @param nanos The time.
+   */
+  public void addTime (int phase, long nanos) {
+    this.phaseNanos[phase] += nanos;
+  }
+
+  /**
+   *  Add to the postings and positions read from the index.
+   *  @param postings The number of postings (documents).
+   *  @param positions The number of positions.
+   */
+  public void addPostings (long postings, long positions) {
+    this.postings += postings;
+    this.positions += positions;
+  }
+
+  /**
+   *  Add to the documents that were scored.
+   *  @param n The number of documents.
+   */
+  public void addDocumentsScored (long n) {
+    this.documentsScored += n;
+  }
+
+  /**
+   *  Record whether the ranking came from the result cache.
+   *  @param hit True if it did.
+   */
+  public void setCacheHit (boolean hit) {
+    this.cache = hit ? CACHE_HIT : CACHE_MISS;
+  }
+
+  /**
+   *  Get the bytes that the calling thread has allocated, if the JVM
+   *  can tell.
+   *  @return The bytes, or 0.
+   */
+  static long threadAllocatedBytes () {
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) THREADS;
+
+      if (threads.isThreadAllocatedMemorySupported () &&
+          threads.isThreadAllocatedMemoryEnabled ()) {
+        return threads.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   *  Get the field names of a CSV file of records.
+   *  @return The header line, without a line terminator.
+   */
+  public static String csvHeader () {
+    StringBuilder b = new StringBuilder ("qid");
+
+    for (String phase : PHASES) {
+      b.append (',').append (phase).append ("Ms");
+    }
+
+    return b.append (",totalMs,postings,positions,documentsScored," +
+                     "allocatedBytes,heapUsedBytes,cache,timedOut,results")
+      .toString ();
+  }
+
+  /**
+   *  Get the record as a line of CSV.
+   *  @return The line, without a line terminator.
+   */
+  public String toCsv () {
+    StringBuilder b = new StringBuilder ();
+    b.append (csvField (this.qid));
+
+    for (long nanos : this.phaseNanos) {
+      b.append (',').append (millis (nanos));
+    }
+
+    return b.append (',').append (millis (this.totalNanos))
+      .append (',').append (this.postings)
+      .append (',').append (this.positions)
+      .append (',').append (this.documentsScored)
+      .append (',').append (this.allocatedBytes)
+      .append (',').append (this.heapUsedBytes)
+      .append (',').append (this.cache)
+      .append (',').append (this.timedOut)
+      .append (',').append (this.results)
+      .toString ();
+  }
+
+  /**
+   *  Get the record as a JSON object.
+   *  @return The object, on one line.
+   */
+  public String toJson () {
+    StringBuilder b = new StringBuilder ();
+    b.append ("{\"qid\":").append (jsonString (this.qid));
+
+    for (int i = 0; i < PHASES.length; i++) {
+      b.append (",\"").append (PHASES[i]).append ("Ms\":")
+        .append (millis (this.phaseNanos[i]));
+    }
+
+    return b.append (",\"totalMs\":").append (millis (this.totalNanos))
+      .append (",\"postings\":").append (this.postings)
+      .append (",\"positions\":").append (this.positions)
+      .append (",\"documentsScored\":").append (this.documentsScored)
+      .append (",\"allocatedBytes\":").append (this.allocatedBytes)
+      .append (",\"heapUsedBytes\":").append (this.heapUsedBytes)
+      .append (",\"cache\":\"").append (this.cache)
+      .append ("\",\"timedOut\":").append (this.timedOut)
+      .append (",\"results\":").append (this.results)
+      .append ('}')
+      .toString ();
+  }
+
+  /**
+   *  Convert nanoseconds to milliseconds, with microsecond precision.
+   *  The decimal point is always '.', whatever the default locale is,
+   *  so that the JSON and CSV records can be parsed.
+   *  @param nanos The time.
+   *  @return The time in milliseconds.
+   */
+  static String millis (long nanos) {
+    return String.format (Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  /**
+   *  Quote a string for JSON.
+   *  @param s The string.
+   *  @return The quoted string.
+   */
+  static String jsonString (String s) {
+    StringBuilder b = new StringBuilder ("\"");
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if ((c == '"') || (c == '\\')) {
+        b.append ('\\').append (c);
+      } else if (c < 0x20) {
+        b.append (String.format ("\\u%04x", (int) c));
+      } else {
+        b.append (c);
+      }
+    }
+
+    return b.append ('"').toString ();
+  }
+
+  /**
+   *  Quote a CSV field if it needs to be.
+   *  @param s The field.
+   *  @return The field, quoted if it has a comma or a quote.
+   */
+  private static String csvField (String s) {
+    return ((s.indexOf (',') < 0) && (s.indexOf ('"') < 0))
+      ? s
+      : "\"" + s.replace ("\"", "\"\"") + "\"";
+  }
+}
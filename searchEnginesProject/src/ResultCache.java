@@ -0,0 +1,389 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  ResultCache remembers the top of the rankings of queries that were
+ *  evaluated, so that a repeated query is answered without reading
+ *  the index.
+ *  <p>
+ *  A ranking is identified by the canonical form of its optimized
+ *  query tree (operators, distances, weights, terms and fields), the
+ *  retrieval model's class and parameters, and the index and its
+ *  version, so a refreshed index never returns stale rankings.  An
+ *  entry stores the top k docids and scores of a ranking, and answers
+ *  later requests for at most k documents, or for any number if the
+ *  ranking had no more than k.
+ *  </p>
+ *  <ul>
+ *  <li><b>cache:memoryMB</b>: The memory budget of the in-memory tier
+ *      (default 64).  The least recently used entries are evicted
+ *      when it is exceeded.</li>
+ *  <li><b>cache:dir</b>: A directory for an on-disk tier (optional).
+ *      Entries are written through to it, so they survive eviction
+ *      and later runs that search the same version of the index.</li>
+ *  </ul>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int DEFAULT_MEMORY_MB = 64;
+
+  private static final int FILE_MAGIC = 0x52434531;	// "RCE1"
+
+  private final long memoryBudget;
+  private final Path dir;
+  private long memoryUsed = 0;
+
+  private final LinkedHashMap<String,Entry> entries =
+    new LinkedHashMap<String,Entry> (16, 0.75f, true);	// LRU order
+
+  private long hits = 0;
+  private long diskHits = 0;
+  private long misses = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The top of one ranking.
+   */
+  private static class Entry {
+    private final int[] docids;
+    private final double[] scores;
+    private final boolean complete;		// The whole ranking
+    private final long bytes;
+
+    private Entry (int[] docids, double[] scores, boolean complete, String key) {
+      this.docids = docids;
+      this.scores = scores;
+      this.complete = complete;
+      this.bytes = 96 + 2L * key.length () + 12L * docids.length;
+    }
+
+    private boolean covers (int k) {
+      return this.complete || (this.docids.length >= k);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param memoryBudget The memory budget of the in-memory tier, in bytes.
+   *  @param dir The directory of the on-disk tier, or null.
+   *  @throws IOException Error creating the directory.
+   */
+  public ResultCache (long memoryBudget, String dir) throws IOException {
+    this.memoryBudget = memoryBudget;
+    this.dir = (dir == null) ? null : Paths.get (dir);
+
+    if (this.dir != null) {
+      Files.createDirectories (this.dir);
+    }
+  }
+
+  /**
+   *  Get the result cache that a parameter file specifies.
+   *  @param parameters The parameters of the run.
+   *  @return The cache, or null if neither cache:memoryMB nor
+   *    cache:dir is given.
+   *  @throws IOException Error creating the on-disk tier.
+   */
+  public static ResultCache fromParameters (Map<String,String> parameters)
+    throws IOException {
+
+    if (! (parameters.containsKey ("cache:memoryMB") ||
+           parameters.containsKey ("cache:dir"))) {
+      return null;
+    }
+
+    double memoryMB = DEFAULT_MEMORY_MB;
+
+    if (parameters.containsKey ("cache:memoryMB")) {
+      memoryMB = Double.parseDouble (parameters.get ("cache:memoryMB"));
+    }
+
+    return new ResultCache ((long) (memoryMB * 1024 * 1024),
+                            parameters.get ("cache:dir"));
+  }
+
+  /**
+   *  Get the key of a query's ranking.
+   *  @param q The parsed query.
+   *  @param model The retrieval model.
+   *  @param context The index.
+   *  @return The key.
+   */
+  public static String key (Qry q, RetrievalModel model, IndexContext context) {
+
+    IndexReader reader = context.getIndexReader ();
+    long version = (reader instanceof DirectoryReader)
+      ? ((DirectoryReader) reader).getVersion ()
+      : -1;
+    StringBuilder key = new StringBuilder ();
+
+    key.append (context.getIndexPath ()).append ('@').append (version)
+      .append (' ').append (model.getClass ().getName ())
+      .append ('(').append (model.getParameterString ()).append (") ");
+    appendCanonical (key, q);
+    return key.toString ();
+  }
+
+  /**
+   *  Append the canonical form of a query tree.  Unlike toString, it
+   *  includes weights, and operator names are lower case.
+   *  @param key The key that is built.
+   *  @param q The query tree.
+   */
+  private static void appendCanonical (StringBuilder key, Qry q) {
+
+    if (q instanceof QryIopTerm) {
+      key.append (((QryIopTerm) q).getTerm ()).append ('.')
+        .append (((QryIopTerm) q).getField ());
+      return;
+    }
+
+    key.append (q.getDisplayName ().toLowerCase ()).append ('(');
+
+    for (int i = 0; i < q.args.size (); i++) {
+      if (i > 0) {
+        key.append (' ');
+      }
+
+      if (q instanceof QrySopW) {
+        key.append (((QrySopW) q).getWeight (i)).append (' ');
+      }
+
+      appendCanonical (key, q.args.get (i));
+    }
+
+    key.append (')');
+  }
+
+  /**
+   *  Look up a ranking.
+   *  @param key The ranking's key.
+   *  @param k The number of documents that are needed.
+   *  @param context The index that the ranking is from.
+   *  @return The top of the ranking, sorted, or null if it isn't cached.
+   */
+  public ScoreList get (String key, int k, IndexContext context) {
+
+    Entry e;
+
+    synchronized (this) {
+      e = this.entries.get (key);
+    }
+
+    boolean fromDisk = false;
+
+    if ((e == null) && (this.dir != null)) {
+      e = readEntry (key);
+
+      if (e != null) {
+        fromDisk = true;
+        putEntry (key, e);
+      }
+    }
+
+    synchronized (this) {
+      if ((e == null) || ! e.covers (k)) {
+        this.misses++;
+        return null;
+      }
+
+      this.hits++;
+
+      if (fromDisk) {
+        this.diskHits++;
+      }
+    }
+
+    ScoreList r = new ScoreList (context);
+
+    for (int i = 0; i < e.docids.length; i++) {
+      r.add (e.docids[i], e.scores[i]);
+    }
+
+    return r;
+  }
+
+  /**
+   *  Remember the top of a ranking.
+   *  @param key The ranking's key.
+   *  @param r The ranking, sorted.
+   *  @param k The number of documents to remember.
+   */
+  public void put (String key, ScoreList r, int k) {
+
+    int n = Math.min (r.size (), k);
+    int[] docids = new int[n];
+    double[] scores = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      docids[i] = r.getDocid (i);
+      scores[i] = r.getDocidScore (i);
+    }
+
+    Entry e = new Entry (docids, scores, n == r.size (), key);
+    putEntry (key, e);
+
+    if (this.dir != null) {
+      writeEntry (key, e);
+    }
+  }
+
+  /**
+   *  Add an entry to the in-memory tier, and evict the least recently
+   *  used entries until the tier is within its budget.
+   *  @param key The ranking's key.
+   *  @param e The entry.
+   */
+  private synchronized void putEntry (String key, Entry e) {
+
+    Entry old = this.entries.put (key, e);
+
+    if (old != null) {
+      this.memoryUsed -= old.bytes;
+    }
+
+    this.memoryUsed += e.bytes;
+
+    Iterator<Entry> it = this.entries.values ().iterator ();
+
+    while ((this.memoryUsed > this.memoryBudget) && it.hasNext ()) {
+      this.memoryUsed -= it.next ().bytes;
+      it.remove ();
+    }
+  }
+
+  /**
+   *  Get the file of a key in the on-disk tier.
+   *  @param key The key.
+   *  @return The file.
+   */
+  private Path file (String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance ("SHA-256")
+        .digest (key.getBytes (StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder ();
+
+      for (int i = 0; i < 16; i++) {
+        name.append (String.format ("%02x", hash[i]));
+      }
+
+      return this.dir.resolve (name.append (".rc").toString ());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException (ex);	// Every JVM has SHA-256
+    }
+  }
+
+  /**
+   *  Read an entry from the on-disk tier.  Unreadable files are
+   *  ignored; they are replaced when the ranking is cached again.
+   *  @param key The ranking's key.
+   *  @return The entry, or null if it isn't on disk.
+   */
+  private Entry readEntry (String key) {
+
+    Path path = file (key);
+
+    if (! Files.exists (path)) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (Files.newInputStream (path)))) {
+
+      if (in.readInt () != FILE_MAGIC) {
+        return null;
+      }
+
+      byte[] keyBytes = new byte[in.readInt ()];
+      in.readFully (keyBytes);
+
+      if (! key.equals (new String (keyBytes, StandardCharsets.UTF_8))) {
+        return null;				// A hash collision
+      }
+
+      boolean complete = in.readBoolean ();
+      int n = in.readInt ();
+      int[] docids = new int[n];
+      double[] scores = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        docids[i] = in.readInt ();
+        scores[i] = in.readDouble ();
+      }
+
+      return new Entry (docids, scores, complete, key);
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Write an entry to the on-disk tier.  It is written to a temporary
+   *  file that is then renamed, so readers never see part of a file.
+   *  Errors are reported and otherwise ignored; the cache is only an
+   *  optimization.
+   *  @param key The ranking's key.
+   *  @param e The entry.
+   */
+  private void writeEntry (String key, Entry e) {
+
+    Path path = file (key);
+    Path tmp = null;
+
+    try {
+      tmp = Files.createTempFile (this.dir, "rc", ".tmp");
+
+      try (DataOutputStream out = new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+        byte[] keyBytes = key.getBytes (StandardCharsets.UTF_8);
+
+        out.writeInt (FILE_MAGIC);
+        out.writeInt (keyBytes.length);
+        out.write (keyBytes);
+        out.writeBoolean (e.complete);
+        out.writeInt (e.docids.length);
+
+        for (int i = 0; i < e.docids.length; i++) {
+          out.writeInt (e.docids[i]);
+          out.writeDouble (e.scores[i]);
+        }
+      }
+
+      Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      System.out.println ("Warning:  Can't write the result cache:  " + ex);
+
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists (tmp);
+        } catch (IOException ex2) {
+          // Nothing else to do
+        }
+      }
+    }
+  }
+
+  /**
+   *  Get a description of the cache's use, e.g., for logs.
+   *  @return The description.
+   */
+  @Override public synchronized String toString () {
+    return this.hits + " hits (" + this.diskHits + " from disk), " +
+      this.misses + " misses, " + this.entries.size () + " entries, " +
+      (this.memoryUsed / 1024) + " KB";
+  }
+}
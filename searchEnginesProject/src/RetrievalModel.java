@@ -16,4 +16,13 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get the model's parameters, e.g., to tell rankings that were
+   *  produced with different parameters apart.
+   *  @return The parameters, as name=value pairs.
+   */
+  public String getParameterString () {
+    return "";
+  }
+
 }
@@ -23,4 +23,13 @@ public class RetrievalModelBM25 extends RetrievalModel {
         this.b = b;
         this.k_3 = k_3;
     }
+
+    /**
+     * Get the model's parameters.
+     * @return The parameters, as name=value pairs.
+     */
+    @Override
+    public String getParameterString() {
+        return "k_1=" + this.k_1 + ",b=" + this.b + ",k_3=" + this.k_3;
+    }
 }
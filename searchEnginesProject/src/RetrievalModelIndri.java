@@ -20,4 +20,13 @@ public class RetrievalModelIndri extends RetrievalModel {
         this.mu = mu;
         this.lambda = lambda;
     }
+
+    /**
+     * Get the model's parameters.
+     * @return The parameters, as name=value pairs.
+     */
+    @Override
+    public String getParameterString() {
+        return "mu=" + this.mu + ",lambda=" + this.lambda;
+    }
 }
@@ -21,21 +21,53 @@ public class ScoreList {
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-	    this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	    ex.printStackTrace();
-      }
+    private ScoreListEntry(int internalDocid, String externalId, double score) {
+      this.docid = internalDocid;
+      this.externalId = externalId;
+      this.score = score;
     }
   }
 
+  /**
+   *  The phase that looks up external document ids.  The ids are
+   *  looked up together when the list is sorted, so the phase is
+   *  entered once per list, not once per document.
+   */
+  private static final Timer.Phase EXTERNAL_ID_PHASE = Timer.phase("external id");
+
   /**
    *  A list of document ids and scores. 
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The index that the internal document ids belong to.
+   */
+  private final IndexContext context;
+
+  /**
+   *  True if the query's time budget ran out, so the list only has
+   *  the documents that were scored before it did.
+   */
+  private boolean timedOut = false;
+
+  /**
+   *  Create an empty score list for documents in the current index.
+   */
+  public ScoreList() {
+    this(Idx.getCurrentContext());
+  }
+
+  /**
+   *  Create an empty score list for documents in the specified index.
+   *  @param context The index that the internal document ids belong to.
+   */
+  public ScoreList(IndexContext context) {
+    this.context = context;
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
@@ -45,6 +77,47 @@ public class ScoreList {
     scores.add(new ScoreListEntry(docid, score));
   }
 
+  /**
+   *  Append a document score to a score list when the external id is
+   *  already known, e.g., when merging score lists from several
+   *  indexes.  The internal docid is only meaningful in the document's
+   *  own index.
+   *  @param docid An internal document id.
+   *  @param externalId The document's external id.
+   *  @param score The document's score.
+   */
+  public void add(int docid, String externalId, double score) {
+    scores.add(new ScoreListEntry(docid, externalId, score));
+  }
+
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    return externalId(this.scores.get(n));
+  }
+
+  /**
+   *  Get the external docid of an entry, looking it up if it isn't
+   *  known yet.
+   *  @param entry The entry.
+   *  @return The external document id.
+   */
+  private String externalId(ScoreListEntry entry) {
+    if (entry.externalId == null) {
+      try {
+	    entry.externalId = this.context.getExternalDocid (entry.docid);
+      }
+      catch (IOException ex){
+	    ex.printStackTrace();
+      }
+    }
+
+    return entry.externalId;
+  }
+
   /**
    *  Get the internal docid of the n'th entry.
    *  @param n The index of the requested document.
@@ -100,9 +173,36 @@ public class ScoreList {
    *  Sort the list by score and external document id.
    */
   public void sort () {
+    Timer.enter(EXTERNAL_ID_PHASE);
+
+    try {
+      for (ScoreListEntry entry : this.scores) {
+        externalId(entry);
+      }
+    } finally {
+      Timer.exit();
+    }
+
     Collections.sort(this.scores, new ScoreListComparator());
   }
   
+  /**
+   *  Check whether the list is partial because the query's time
+   *  budget ran out.
+   *  @return True if the query timed out.
+   */
+  public boolean isTimedOut() {
+    return this.timedOut;
+  }
+
+  /**
+   *  Mark the list as partial, or not.
+   *  @param timedOut True if the query timed out.
+   */
+  public void setTimedOut(boolean timedOut) {
+    this.timedOut = timedOut;
+  }
+
   /**
    * Reduce the score list to the first num results to save on RAM.
    * @param num Number of results to keep.
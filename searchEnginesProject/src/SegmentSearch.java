@@ -0,0 +1,229 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  SegmentSearch evaluates a query separately in each segment (Lucene
+ *  leaf reader) of an index, in parallel on a fork-join pool, and
+ *  merges the segments' top-k lists.  A single query on a
+ *  multi-segment index can use every core.
+ *  <p>
+ *  Segments read their own postings and document lengths, but are
+ *  scored with the statistics of the whole index:  corpus and field
+ *  statistics come from the index's {@link IndexStats}, and the df and
+ *  ctf of each query operator are summed over segments before any
+ *  document is scored.  The merged ranking is the ranking that
+ *  {@link QryEval#processQuery} produces.
+ *  </p>
+ */
+public class SegmentSearch {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final ForkJoinPool pool;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a segment-parallel searcher.
+   *  @param parallelism The number of threads, or 0 for one per core.
+   */
+  public SegmentSearch (int parallelism) {
+    if (parallelism <= 0) {
+      parallelism = Runtime.getRuntime ().availableProcessors ();
+    }
+
+    this.pool = new ForkJoinPool (parallelism);
+  }
+
+  /**
+   *  Stop the threads that search segments.
+   */
+  public void close () {
+    this.pool.shutdown ();
+  }
+
+  /**
+   *  Evaluate a query against every segment of an index and merge the
+   *  results.
+   *  @param context The index.
+   *  @param qString A string that contains a query.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param k The length of the ranking.
+   *  @return The ranking, or null if the query is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList search (IndexContext context,
+                           final String qString,
+                           final RetrievalModel model,
+                           final int k)
+    throws IOException {
+
+    List<IndexContext> leaves = context.getLeafContexts ();
+    final Deadline deadline = Deadline.current ();
+
+    //  Parse and initialize a query tree for each segment.  The pool's
+    //  threads work under the calling thread's deadline.
+
+    List<Callable<Qry>> initTasks = new ArrayList<Callable<Qry>> ();
+
+    for (final IndexContext leaf : leaves) {
+      initTasks.add (new Callable<Qry> () {
+        public Qry call () throws IOException {
+          Deadline previous = Deadline.setCurrent (deadline);
+
+          try {
+            Qry q = QryEval.parseQuery (qString, model);
+
+            if ((q == null) || (q.args.size () == 0)) {
+              return null;
+            }
+
+            q.initialize (model, leaf);
+            return q;
+          } finally {
+            Deadline.setCurrent (previous);
+          }
+        }
+      });
+    }
+
+    final List<Qry> queries;
+
+    try {
+      queries = invokeAll (initTasks);
+    } catch (Deadline.Exceeded ex) {
+      ScoreList r = new ScoreList (context);
+      r.setTimedOut (true);			// Nothing was scored
+      return r;
+    }
+
+    if (queries.isEmpty ()) {
+      return QryEval.processQuery (qString, model, context);	// Empty index
+    }
+
+    if (queries.get (0) == null) {
+      return null;				// Empty query
+    }
+
+    //  Replace each segment's df and ctf with the index's.
+
+    List<List<QryIop>> iops = new ArrayList<List<QryIop>> ();
+
+    for (Qry q : queries) {
+      iops.add (q.getIopArgs (new ArrayList<QryIop> ()));
+    }
+
+    for (int i = 0; i < iops.get (0).size (); i++) {
+      int df = 0;
+      int ctf = 0;
+
+      for (List<QryIop> leafIops : iops) {
+        df += leafIops.get (i).getListDf ();
+        ctf += leafIops.get (i).getListCtf ();
+      }
+
+      for (List<QryIop> leafIops : iops) {
+        leafIops.get (i).setCollectionStats (df, ctf);
+      }
+    }
+
+    //  Score the documents of each segment.
+
+    List<Callable<ScoreList>> scoreTasks = new ArrayList<Callable<ScoreList>> ();
+
+    for (int i = 0; i < queries.size (); i++) {
+      final Qry q = queries.get (i);
+      final IndexContext leaf = leaves.get (i);
+
+      scoreTasks.add (new Callable<ScoreList> () {
+        public ScoreList call () throws IOException {
+          Deadline previous = Deadline.setCurrent (deadline);
+
+          try {
+            ScoreList r = new ScoreList (leaf);
+            QryEval.iterateQuery (q, model, r);
+            r.sort ();
+            r.truncate (k);
+            return r;
+          } finally {
+            Deadline.setCurrent (previous);
+          }
+        }
+      });
+    }
+
+    List<ScoreList> results = invokeAll (scoreTasks);
+
+    //  Merge, converting segment docids to index docids.
+
+    ScoreList merged = new ScoreList (context);
+
+    for (int i = 0; i < results.size (); i++) {
+      ScoreList r = results.get (i);
+      int docBase = leaves.get (i).getDocBase () - context.getDocBase ();
+
+      if (r.isTimedOut ()) {
+        merged.setTimedOut (true);
+      }
+
+      for (int j = 0; j < r.size (); j++) {
+        merged.add (r.getDocid (j) + docBase, r.getExternalDocid (j),
+                    r.getDocidScore (j));
+      }
+    }
+
+    merged.sort ();
+    merged.truncate (k);
+    return merged;
+  }
+
+  /**
+   *  Run tasks on the pool and wait for their results.
+   *  @param tasks The tasks.
+   *  @return Their results, in the same order.
+   *  @throws IOException A task failed.
+   */
+  private <T> List<T> invokeAll (List<Callable<T>> tasks) throws IOException {
+
+    List<T> results = new ArrayList<T> ();
+
+    try {
+      for (Future<T> f : this.pool.invokeAll (tasks)) {
+        results.add (f.get ());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Segment search was interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      //  A fork-join pool may wrap a task's IOException, e.g., a
+      //  Deadline.Exceeded, in RuntimeExceptions.
+
+      Throwable t = cause;
+
+      while (t instanceof RuntimeException) {
+        t = t.getCause ();
+      }
+
+      if (t instanceof IOException) {
+        cause = t;
+      }
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException (cause);
+    }
+
+    return results;
+  }
+}
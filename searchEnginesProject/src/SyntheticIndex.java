@@ -0,0 +1,453 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  SyntheticIndex builds a Lucene index of generated documents, and
+ *  matching query and intent files, so that benchmarks and scaling
+ *  tests can run anywhere, at any size, and give the same results.
+ *  <p>
+ *  Documents have the fields that QryEval expects:  body, title, url,
+ *  inlink and keywords (indexed, with term vectors), and externalId
+ *  (stored).  Terms are drawn from a Zipfian distribution over a
+ *  vocabulary of pronounceable words that the query parser's analyzer
+ *  leaves unchanged.  Field lengths are log-normal.  The index uses
+ *  {@link DocLenStoreSimilarity}, so its norms are the field lengths.
+ *  The external id sidecars are written after the index.
+ *  </p>
+ *  <p>
+ *  Usage:  java SyntheticIndex paramFile.  Parameters:
+ *  </p>
+ *  <ul>
+ *  <li><b>indexPath</b>: The index directory.  It must not exist.</li>
+ *  <li><b>synthetic:docs</b>: The number of documents (default 10000).</li>
+ *  <li><b>synthetic:vocabulary</b>: The number of distinct terms
+ *      (default 100000).</li>
+ *  <li><b>synthetic:zipfExponent</b>: The exponent of the term
+ *      distribution (default 1.0).</li>
+ *  <li><b>synthetic:FIELD:length</b>: The mean length of a field, e.g.,
+ *      synthetic:body:length (defaults:  body 300, title 8, url 6,
+ *      inlink 20, keywords 5).</li>
+ *  <li><b>synthetic:lengthSigma</b>: The standard deviation of the log
+ *      of the field lengths (default 0.6).</li>
+ *  <li><b>synthetic:keywordsRate</b>: The fraction of documents that
+ *      have keywords (default 0.5).</li>
+ *  <li><b>synthetic:termVectors</b>: true to store term vectors
+ *      (default true).</li>
+ *  <li><b>synthetic:threads</b>: Indexing threads (default 1).  With
+ *      more than one, the documents are the same, but their internal
+ *      ids may be in a different order.</li>
+ *  <li><b>synthetic:ramBufferMB</b>: The indexing buffer (default 256).</li>
+ *  <li><b>synthetic:seed</b>: The seed (default 1).</li>
+ *  <li><b>synthetic:queryFilePath</b>, <b>synthetic:queries</b>: A
+ *      query file to write, and its number of queries (default 100).</li>
+ *  <li><b>synthetic:intentsFilePath</b>: An intents file to write for
+ *      the queries (2 or 3 intents each), for diversity runs.</li>
+ *  </ul>
+ */
+public class SyntheticIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int DEFAULT_DOCS = 10000;
+  public static final int DEFAULT_VOCABULARY = 100000;
+  public static final double DEFAULT_ZIPF_EXPONENT = 1.0;
+  public static final double DEFAULT_LENGTH_SIGMA = 0.6;
+  public static final double DEFAULT_KEYWORDS_RATE = 0.5;
+  public static final int DEFAULT_QUERIES = 100;
+
+  /**
+   *  The fields, and their default mean lengths.
+   */
+  static final String[] FIELDS = { "body", "title", "url", "inlink", "keywords" };
+  static final double[] DEFAULT_LENGTHS = { 300, 8, 6, 20, 5 };
+
+  /**
+   *  Query terms are drawn from these ranks, so that they are neither
+   *  in almost every document nor in almost none.
+   */
+  static final int QUERY_MIN_RANK = 20;
+  static final int QUERY_MAX_RANK = 5000;
+
+  private static final String CONSONANTS = "bdfgklmnprtvz";
+  private static final String VOWELS = "aiou";
+
+  private final int numDocs;
+  private final double[] cumulative;		// Zipfian CDF over ranks
+  private final double[] lengthMu = new double[FIELDS.length];
+  private final double lengthSigma;
+  private final double keywordsRate;
+  private final long seed;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param parameters The parameters of the generator.
+   */
+  public SyntheticIndex (Map<String,String> parameters) {
+
+    this.numDocs = getInt (parameters, "synthetic:docs", DEFAULT_DOCS);
+    this.seed = getInt (parameters, "synthetic:seed", 1);
+    this.lengthSigma =
+      getDouble (parameters, "synthetic:lengthSigma", DEFAULT_LENGTH_SIGMA);
+    this.keywordsRate =
+      getDouble (parameters, "synthetic:keywordsRate", DEFAULT_KEYWORDS_RATE);
+
+    //  The mean of a log-normal length is exp (mu + sigma^2 / 2).
+
+    for (int f = 0; f < FIELDS.length; f++) {
+      double mean = getDouble (parameters, "synthetic:" + FIELDS[f] + ":length",
+                               DEFAULT_LENGTHS[f]);
+      this.lengthMu[f] = Math.log (mean) - this.lengthSigma * this.lengthSigma / 2;
+    }
+
+    int vocabulary = getInt (parameters, "synthetic:vocabulary", DEFAULT_VOCABULARY);
+    double s = getDouble (parameters, "synthetic:zipfExponent", DEFAULT_ZIPF_EXPONENT);
+
+    this.cumulative = new double[vocabulary];
+    double sum = 0;
+
+    for (int rank = 1; rank <= vocabulary; rank++) {
+      sum += 1.0 / Math.pow (rank, s);
+      this.cumulative[rank - 1] = sum;
+    }
+
+    for (int i = 0; i < vocabulary; i++) {
+      this.cumulative[i] /= sum;
+    }
+  }
+
+  /**
+   *  Get the term of a rank.  Terms are strings of consonant-vowel
+   *  syllables, which the query parser's analyzer doesn't stem or
+   *  remove.
+   *  @param rank The rank, from 0.
+   *  @return The term.
+   */
+  static String term (int rank) {
+    StringBuilder b = new StringBuilder ();
+    int syllables = CONSONANTS.length () * VOWELS.length ();
+    int n = rank + syllables;			// At least two syllables
+
+    do {
+      int syllable = n % syllables;
+      b.append (CONSONANTS.charAt (syllable / VOWELS.length ()))
+        .append (VOWELS.charAt (syllable % VOWELS.length ()));
+      n /= syllables;
+    } while (n > 0);
+
+    return b.toString ();
+  }
+
+  /**
+   *  Draw a rank from the Zipfian distribution.
+   *  @param random The source of randomness.
+   *  @return The rank, from 0.
+   */
+  int nextRank (Random random) {
+    int i = Arrays.binarySearch (this.cumulative, random.nextDouble ());
+    return Math.min ((i >= 0) ? i : -i - 1, this.cumulative.length - 1);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param n The document's number, from 0.
+   *  @return The external id.
+   */
+  static String externalId (long n) {
+    return String.format ("syn-%09d", n);
+  }
+
+  /**
+   *  Generate a document.  Each document has its own random sequence,
+   *  so it is the same whichever thread generates it.
+   *  @param n The document's number, from 0.
+   *  @param fieldType The type of the text fields.
+   *  @return The document.
+   */
+  Document document (long n, FieldType fieldType) {
+
+    Random random = new Random (this.seed * 0x9E3779B97F4A7C15L + n);
+    Document doc = new Document ();
+    StringBuilder text = new StringBuilder ();
+
+    doc.add (new StringField ("externalId", externalId (n), Field.Store.YES));
+
+    for (int f = 0; f < FIELDS.length; f++) {
+      if (FIELDS[f].equals ("keywords") && (random.nextDouble () >= this.keywordsRate)) {
+        continue;
+      }
+
+      long length = Math.max (1, Math.round (
+        Math.exp (this.lengthMu[f] + this.lengthSigma * random.nextGaussian ())));
+      text.setLength (0);
+
+      for (long i = 0; i < length; i++) {
+        text.append (term (nextRank (random))).append (' ');
+      }
+
+      doc.add (new Field (FIELDS[f], text.toString (), fieldType));
+    }
+
+    return doc;
+  }
+
+  /**
+   *  Build the index.
+   *  @param indexPath The index directory.
+   *  @param termVectors True to store term vectors.
+   *  @param numThreads The number of indexing threads.
+   *  @param ramBufferMB The size of the indexing buffer.
+   *  @throws IOException Error writing the index.
+   */
+  public void buildIndex (String indexPath, boolean termVectors,
+                          int numThreads, double ramBufferMB)
+    throws IOException {
+
+    EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable ();
+    analyzer.setLowercase (true);
+    analyzer.setStopwordRemoval (true);
+    analyzer.setStemmer (EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+
+    IndexWriterConfig config = new IndexWriterConfig (analyzer);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setRAMBufferSizeMB (ramBufferMB);
+    config.setMergePolicy (new LogByteSizeMergePolicy ());	// Keeps docid order
+
+    final FieldType fieldType = new FieldType (TextField.TYPE_NOT_STORED);
+
+    if (termVectors) {
+      fieldType.setStoreTermVectors (true);
+      fieldType.setStoreTermVectorPositions (true);
+    }
+
+    fieldType.freeze ();
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    try (final IndexWriter writer =
+           new IndexWriter (FSDirectory.open (Paths.get (indexPath)), config)) {
+
+      //  Threads take documents in blocks, in order.
+
+      final AtomicLong next = new AtomicLong (0);
+      final long reportInterval = Math.max (1, this.numDocs / 10);
+      ExecutorService threads = Executors.newFixedThreadPool (numThreads);
+      List<Future<Void>> results = new ArrayList<Future<Void>> ();
+
+      for (int t = 0; t < numThreads; t++) {
+        results.add (threads.submit (new Callable<Void> () {
+          public Void call () throws IOException {
+            long n;
+
+            while ((n = next.getAndIncrement ()) < numDocs) {
+              writer.addDocument (document (n, fieldType));
+
+              if ((n + 1) % reportInterval == 0) {
+                System.out.println ("Indexed " + (n + 1) + " documents");
+              }
+            }
+
+            return null;
+          }
+        }));
+      }
+
+      threads.shutdown ();
+
+      for (Future<Void> result : results) {
+        QryEval.getResult (result);
+      }
+    }
+
+    //  Write the external id sidecars, so that the index is ready to use.
+
+    try (DirectoryReader reader =
+           DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)))) {
+      ExternalIdStore.write (reader, Paths.get (indexPath, ExternalIdStore.FILE_NAME));
+      ExternalIdStore.writeInverse (
+        reader, Paths.get (indexPath, ExternalIdStore.INVERSE_FILE_NAME));
+    }
+
+    timer.stop ();
+    System.out.println ("Wrote " + this.numDocs + " documents to " + indexPath +
+                        " in " + timer);
+  }
+
+  /**
+   *  Write a query file.  Most queries are bags of words; the others
+   *  use #NEAR, #SYN or a field, so that those operators are
+   *  exercised.
+   *  @param path The query file.
+   *  @param numQueries The number of queries.
+   *  @return The terms of each query, for writeIntents.
+   *  @throws IOException Error writing the file.
+   */
+  public List<List<String>> writeQueries (String path, int numQueries)
+    throws IOException {
+
+    Random random = new Random (this.seed);
+    List<List<String>> queryTerms = new ArrayList<List<String>> ();
+
+    try (PrintWriter output = new PrintWriter (new BufferedWriter (new FileWriter (path)))) {
+      for (int qid = 1; qid <= numQueries; qid++) {
+        List<String> terms = new ArrayList<String> ();
+        int length = 1 + random.nextInt (4);
+
+        for (int i = 0; i < length; i++) {
+          terms.add (queryTerm (random));
+        }
+
+        StringBuilder query = new StringBuilder ();
+        double kind = random.nextDouble ();
+
+        if ((kind < 0.15) && (length >= 2)) {
+          query.append ("#near/").append (1 + random.nextInt (4)).append ('(')
+            .append (terms.get (0)).append (' ').append (terms.get (1)).append (')');
+        } else if ((kind < 0.30) && (length >= 2)) {
+          query.append ("#syn(").append (terms.get (0)).append (' ')
+            .append (terms.get (1)).append (')');
+        } else if (kind < 0.40) {
+          query.append (terms.get (0)).append (".title");
+        } else {
+          query.append (terms.get (0));
+        }
+
+        int first = (query.charAt (0) == '#') ? 2 : 1;
+
+        for (int i = first; i < length; i++) {
+          query.append (' ').append (terms.get (i));
+        }
+
+        output.println (qid + ":" + query);
+        queryTerms.add (terms);
+      }
+    }
+
+    return queryTerms;
+  }
+
+  /**
+   *  Write an intents file for the queries of writeQueries.  Each
+   *  query has 2 or 3 intents, each a query term and one or two
+   *  related terms.
+   *  @param path The intents file.
+   *  @param queryTerms The terms of each query.
+   *  @throws IOException Error writing the file.
+   */
+  public void writeIntents (String path, List<List<String>> queryTerms)
+    throws IOException {
+
+    Random random = new Random (this.seed + 1);
+
+    try (PrintWriter output = new PrintWriter (new BufferedWriter (new FileWriter (path)))) {
+      for (int q = 0; q < queryTerms.size (); q++) {
+        List<String> terms = queryTerms.get (q);
+        int numIntents = 2 + random.nextInt (2);
+
+        for (int i = 1; i <= numIntents; i++) {
+          StringBuilder intent = new StringBuilder ();
+          intent.append (terms.get (random.nextInt (terms.size ())));
+
+          for (int j = random.nextInt (2); j >= 0; j--) {
+            intent.append (' ').append (queryTerm (random));
+          }
+
+          output.println ((q + 1) + "." + i + ":" + intent);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Draw a query term.
+   *  @param random The source of randomness.
+   *  @return The term.
+   */
+  private String queryTerm (Random random) {
+    int maxRank = Math.min (QUERY_MAX_RANK, this.cumulative.length);
+    int minRank = Math.min (QUERY_MIN_RANK, maxRank - 1);
+    return term (minRank + random.nextInt (maxRank - minRank));
+  }
+
+  /**
+   *  Get an integer parameter.
+   *  @param parameters The parameters.
+   *  @param key The parameter.
+   *  @param defaultValue The value if the parameter isn't given.
+   *  @return The value.
+   */
+  private static int getInt (Map<String,String> parameters, String key,
+                             int defaultValue) {
+    return parameters.containsKey (key)
+      ? Integer.parseInt (parameters.get (key))
+      : defaultValue;
+  }
+
+  /**
+   *  Get a floating point parameter.
+   *  @param parameters The parameters.
+   *  @param key The parameter.
+   *  @param defaultValue The value if the parameter isn't given.
+   *  @return The value.
+   */
+  private static double getDouble (Map<String,String> parameters, String key,
+                                   double defaultValue) {
+    return parameters.containsKey (key)
+      ? Double.parseDouble (parameters.get (key))
+      : defaultValue;
+  }
+
+  /**
+   *  Build the index and the files that the parameter file specifies.
+   *  @param args The only argument is the parameter file name.
+   *  @throws IOException Error writing the index or the files.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.err.println ("Usage:  java SyntheticIndex paramFile");
+      System.exit (1);
+    }
+
+    Map<String,String> parameters = QryEval.readParameters (args[0]);
+    String indexPath = parameters.get ("indexPath");
+
+    if (indexPath == null) {
+      throw new IllegalArgumentException ("The parameter file has no indexPath");
+    }
+
+    if (Files.exists (Paths.get (indexPath))) {
+      throw new IllegalArgumentException (indexPath + " already exists");
+    }
+
+    SyntheticIndex generator = new SyntheticIndex (parameters);
+    String termVectors = parameters.get ("synthetic:termVectors");
+
+    generator.buildIndex (indexPath,
+                          (termVectors == null) || termVectors.toLowerCase ().equals ("true"),
+                          getInt (parameters, "synthetic:threads", 1),
+                          getDouble (parameters, "synthetic:ramBufferMB", 256));
+
+    if (parameters.containsKey ("synthetic:queryFilePath")) {
+      List<List<String>> queryTerms =
+        generator.writeQueries (parameters.get ("synthetic:queryFilePath"),
+                                getInt (parameters, "synthetic:queries", DEFAULT_QUERIES));
+
+      if (parameters.containsKey ("synthetic:intentsFilePath")) {
+        generator.writeIntents (parameters.get ("synthetic:intentsFilePath"), queryTerms);
+      }
+    }
+  }
+}
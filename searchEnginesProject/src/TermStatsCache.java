@@ -0,0 +1,264 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  TermStatsCache is a concurrent, bounded cache of term statistics
+ *  (document frequency and collection term frequency), keyed by field
+ *  and term bytes.  Query expansion and query planning ask for the
+ *  statistics of the same terms many times, and each Lucene lookup
+ *  searches the term dictionary of every segment.
+ *  <p>
+ *  A miss is filled with a single seek that produces both statistics.
+ *  prefetch fills the cache for many terms of a field with one
+ *  TermsEnum, visiting the terms in dictionary order.  When the cache
+ *  grows beyond its limit, arbitrary entries are evicted.
+ *  </p><p>
+ *  A cache can also be built over the caches of an index's segments
+ *  (ofSegments), summing their statistics.  The statistics of a
+ *  segment never change, so when an index is reopened the caches of
+ *  its unchanged segments are kept (reopen) and only new segments
+ *  start cold.
+ *  </p>
+ */
+public class TermStatsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The default maximum number of cached terms.
+   */
+  public static final int DEFAULT_MAX_SIZE = 1 << 17;
+
+  private static final TermStats ABSENT = new TermStats (0, 0);
+
+  private final IndexReader reader;
+  private final List<TermStatsCache> segments;
+  private final int maxSize;
+  private final ConcurrentHashMap<Term,TermStats> cache;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The statistics of one term.
+   */
+  public static class TermStats {
+
+    /**
+     *  Document frequency: The number of documents that have the term
+     *  in the field.
+     */
+    public final int df;
+
+    /**
+     *  Collection term frequency: The number of times that the term
+     *  occurs across all instances of the field.
+     */
+    public final long ctf;
+
+    private TermStats (int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param reader The index that statistics are read from.
+   *  @param maxSize The maximum number of cached terms.
+   */
+  public TermStatsCache (IndexReader reader, int maxSize) {
+    this (reader, null, maxSize,
+          new ConcurrentHashMap<Term,TermStats> (Math.min (maxSize, 1 << 12)));
+  }
+
+  private TermStatsCache (IndexReader reader,
+                          List<TermStatsCache> segments,
+                          int maxSize,
+                          ConcurrentHashMap<Term,TermStats> cache) {
+    this.reader = reader;
+    this.segments = segments;
+    this.maxSize = maxSize;
+    this.cache = cache;
+  }
+
+  /**
+   *  Create a cache whose statistics are the sums of the statistics of
+   *  an index's segments, as Lucene's own index-wide statistics are.
+   *  @param segments The caches of the segments.
+   *  @param maxSize The maximum number of cached terms.
+   *  @return The cache.
+   */
+  public static TermStatsCache ofSegments (List<TermStatsCache> segments,
+                                           int maxSize) {
+    return new TermStatsCache (
+      null, new ArrayList<TermStatsCache> (segments), maxSize,
+      new ConcurrentHashMap<Term,TermStats> (Math.min (maxSize, 1 << 12)));
+  }
+
+  /**
+   *  Get a cache for a new reader of the same segment (e.g., the
+   *  segment with new deletions) that shares this cache's entries.
+   *  Lucene's term statistics include deleted documents, so they are
+   *  still correct.
+   *  @param reader A reader of the segment that this cache describes.
+   *  @return The cache.
+   */
+  public TermStatsCache reopen (IndexReader reader) {
+    return new TermStatsCache (reader, null, this.maxSize, this.cache);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.
+   *  @param term The field and term.
+   *  @return The document frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int docFreq (Term term) throws IOException {
+    return get (term).df;
+  }
+
+  /**
+   *  Get the statistics of a term, reading them from the index if
+   *  they are not cached.
+   *  @param term The field and term.
+   *  @return The term's statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TermStats get (Term term) throws IOException {
+
+    TermStats stats = this.cache.get (term);
+
+    if (stats == null) {
+      if (this.segments != null) {
+        int df = 0;
+        long ctf = 0;
+
+        for (TermStatsCache segment : this.segments) {
+          TermStats s = segment.get (term);
+          df += s.df;
+          ctf += s.ctf;
+        }
+
+        stats = (df == 0) ? ABSENT : new TermStats (df, ctf);
+      } else {
+        Terms terms = MultiFields.getTerms (this.reader, term.field ());
+        stats = (terms == null) ? ABSENT : lookup (terms.iterator (), term.bytes ());
+      }
+      put (term, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Read the statistics of a term from an enumeration of a field's
+   *  term dictionary.
+   *  @param ithTerm The field's terms.
+   *  @param bytes The term.
+   *  @return The term's statistics.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static TermStats lookup (TermsEnum ithTerm, BytesRef bytes)
+    throws IOException {
+
+    if (ithTerm.seekExact (bytes)) {
+      return new TermStats (ithTerm.docFreq (), ithTerm.totalTermFreq ());
+    } else {
+      return ABSENT;
+    }
+  }
+
+  /**
+   *  Read the statistics of many terms of one field into the cache.
+   *  Terms that are already cached are skipped.  The rest are looked
+   *  up in term dictionary order using a single TermsEnum.
+   *  @param fieldName The field name.
+   *  @param termStrings The terms.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void prefetch (String fieldName, Collection<String> termStrings)
+    throws IOException {
+
+    //  The segments prefetch; sums are computed when they are needed.
+
+    if (this.segments != null) {
+      for (TermStatsCache segment : this.segments) {
+        segment.prefetch (fieldName, termStrings);
+      }
+      return;
+    }
+
+    List<BytesRef> missing = new ArrayList<BytesRef> ();
+
+    for (String t : termStrings) {
+      if ((t != null) && ! this.cache.containsKey (new Term (fieldName, t))) {
+        missing.add (new BytesRef (t));
+      }
+    }
+
+    if (missing.isEmpty ()) {
+      return;
+    }
+
+    Collections.sort (missing);
+
+    Terms terms = MultiFields.getTerms (this.reader, fieldName);
+    TermsEnum ithTerm = (terms == null) ? null : terms.iterator ();
+
+    for (BytesRef bytes : missing) {
+      TermStats stats = (ithTerm == null) ? ABSENT : lookup (ithTerm, bytes);
+      put (new Term (fieldName, bytes), stats);
+    }
+  }
+
+  /**
+   *  Add an entry, evicting entries if the cache is full.
+   *  @param term The field and term.
+   *  @param stats The term's statistics.
+   */
+  private void put (Term term, TermStats stats) {
+
+    if (this.cache.size () >= this.maxSize) {
+
+      //  Evict about a quarter of the entries.  The cache is used for
+      //  repeated lookups within a query or an expansion, so precise
+      //  LRU order isn't worth the synchronization it needs.
+
+      int evict = Math.max (1, this.maxSize / 4);
+      Iterator<Term> it = this.cache.keySet ().iterator ();
+
+      while (it.hasNext () && (evict-- > 0)) {
+        it.next ();
+        it.remove ();
+      }
+    }
+
+    this.cache.put (term, stats);
+  }
+
+  /**
+   *  Get the number of cached terms.
+   *  @return The number of cached terms.
+   */
+  public int size () {
+    return this.cache.size ();
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.
+   *  @param term The field and term.
+   *  @return The collection term frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long totalTermFreq (Term term) throws IOException {
+    return get (term).ctf;
+  }
+}
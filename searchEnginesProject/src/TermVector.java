@@ -3,6 +3,7 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
@@ -39,22 +40,36 @@ public class TermVector {
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
   private Term[] terms;
+  private boolean statsPrefetched = false;
+  private IndexContext context;
 
   //  --------------- Methods ---------------------------------------
 
   /**
-   *  @param docId An internal document id
+   *  @param docId An internal document id in the current index
    *  @param fieldName The name of a document field.
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this(Idx.getCurrentContext(), docId, fieldName);
+  }
+
+  /**
+   *  @param context The index that contains the document
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(IndexContext context, int docId, String fieldName)
+    throws IOException {
+    this.context = context;
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = context.getIndexReader().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -196,7 +211,8 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    prefetchStemStats();
+    return this.context.getTotalTermFreq(terms[i]);
   }
   
   /**
@@ -206,7 +222,21 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    prefetchStemStats();
+    return this.context.getDocFreq(terms[i]);
+  }
+
+  /**
+   * Callers usually ask for the statistics of every stem in the
+   * vector, so the first request reads them all in one pass over
+   * the term dictionary.
+   * @throws IOException Error accessing the Lucene index
+   */
+  private void prefetchStemStats() throws IOException {
+    if (! this.statsPrefetched) {
+      this.context.prefetchTermStats(this.fieldName, Arrays.asList(this.stems));
+      this.statsPrefetched = true;
+    }
   }
   
 }
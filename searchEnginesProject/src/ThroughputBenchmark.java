@@ -0,0 +1,530 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  ThroughputBenchmark replays a query file against an index and a
+ *  retrieval model, and measures the queries per second and the
+ *  latency of each query, so that versions of QryEval can be compared
+ *  on a realistic run.
+ *  <p>
+ *  The run has these passes over the query file:
+ *  </p>
+ *  <ol>
+ *  <li><b>cold</b>: one pass right after the index is opened, before
+ *      the JIT and the caches are warm;</li>
+ *  <li>warm-up passes, which aren't reported;</li>
+ *  <li><b>warm</b>: for each execution mode and concurrency, some
+ *      trials; and</li>
+ *  <li><b>cached</b>: if the parameter file has a result cache, a
+ *      pass after each warm trial, which the cache answers.</li>
+ *  </ol>
+ *  <p>
+ *  The result cache is emptied before the cold pass and each warm
+ *  trial, so they evaluate every query.  Only its in-memory tier is
+ *  used; cache:dir is ignored, so that earlier runs don't make the
+ *  cold passes warm.
+ *  </p>
+ *  <p>
+ *  A query's latency is the time from the start of its evaluation to
+ *  the end of formatting its results (they are discarded), and its
+ *  phases are the ones of {@link QueryMetrics}.  The console output of
+ *  query evaluation is discarded while passes run.  The report is
+ *  printed, and written as JSON, with each pass and a summary per
+ *  phase, mode and concurrency, to compare with the report of
+ *  another version.
+ *  </p>
+ *  <p>
+ *  Usage:  java ThroughputBenchmark paramFile.  The parameter file is
+ *  QryEval's (indexPath, queryFilePath, retrievalAlgorithm and its
+ *  parameters, trecEvalOutputLength, queryTimeout, cache:memoryMB),
+ *  and:
+ *  </p>
+ *  <ul>
+ *  <li><b>load:concurrency</b>: Comma-separated numbers of queries
+ *      that are evaluated at the same time (default 1).</li>
+ *  <li><b>load:modes</b>: Comma-separated execution modes, pool or
+ *      virtual (default pool).  See {@link QueryExecutor}.</li>
+ *  <li><b>load:warmupPasses</b>: (default 1).</li>
+ *  <li><b>load:trials</b>: (default 3).</li>
+ *  <li><b>load:outputPath</b>: The JSON report (optional).</li>
+ *  <li><b>load:label</b>: A name for the run in the report, e.g., a
+ *      version (optional).</li>
+ *  </ul>
+ */
+public class ThroughputBenchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int DEFAULT_WARMUP_PASSES = 1;
+  public static final int DEFAULT_TRIALS = 3;
+
+  private final List<String> queries;
+  private final RetrievalModel model;
+  private final int outputLength;
+  private final double timeout;
+  private final long cacheBytes;			// 0 for no result cache
+  private final PrintStream console;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The measurements of one pass over the query file.
+   */
+  private static class Pass {
+    private final String phase;
+    private final String mode;
+    private final int concurrency;
+    private final int trial;
+    private final List<QueryMetrics> metrics = new ArrayList<QueryMetrics> ();
+    private long wallNanos = 0;
+
+    private Pass (String phase, String mode, int concurrency, int trial) {
+      this.phase = phase;
+      this.mode = mode;
+      this.concurrency = concurrency;
+      this.trial = trial;
+    }
+
+    private double qps () {
+      return this.metrics.size () * 1e9 / this.wallNanos;
+    }
+
+    /**
+     *  Get the sorted values of one kind of time.
+     *  @param phase A QueryMetrics phase, or -1 for the total.
+     *  @return The times, in nanoseconds.
+     */
+    private long[] times (int phase) {
+      long[] values = new long[this.metrics.size ()];
+
+      for (int i = 0; i < values.length; i++) {
+        QueryMetrics m = this.metrics.get (i);
+        values[i] = (phase < 0) ? m.totalNanos : m.phaseNanos[phase];
+      }
+
+      Arrays.sort (values);
+      return values;
+    }
+
+    private int count (String cache, boolean timedOut) {
+      int n = 0;
+
+      for (QueryMetrics m : this.metrics) {
+        if ((cache != null) ? m.cache.equals (cache) : (m.timedOut == timedOut)) {
+          n++;
+        }
+      }
+
+      return n;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param parameters The parameters of the run.
+   *  @param console Where progress and the report are printed.
+   *  @throws IOException Error reading the query file.
+   */
+  public ThroughputBenchmark (Map<String,String> parameters, PrintStream console)
+    throws IOException {
+
+    this.queries = new ArrayList<String> ();
+
+    try (BufferedReader input =
+           new BufferedReader (new FileReader (parameters.get ("queryFilePath")))) {
+      String qLine;
+
+      while ((qLine = input.readLine ()) != null) {
+        if (qLine.indexOf (':') >= 0) {
+          this.queries.add (qLine);
+        }
+      }
+    }
+
+    this.model = QryEval.initializeRetrievalModel (parameters);
+    this.outputLength = Integer.parseInt (parameters.get ("trecEvalOutputLength"));
+    this.timeout = QryEval.getTimeout (parameters);
+    this.cacheBytes = parameters.containsKey ("cache:memoryMB")
+      ? (long) (Double.parseDouble (parameters.get ("cache:memoryMB")) * 1024 * 1024)
+      : 0;
+    this.console = console;
+  }
+
+  /**
+   *  Evaluate the query file once.
+   *  @param pass Where the measurements are added.
+   *  @param executor Evaluates queries concurrently, or null to
+   *    evaluate them one at a time on this thread.
+   *  @throws IOException Error accessing the index.
+   */
+  private void replay (Pass pass, QueryExecutor executor) throws IOException {
+
+    List<Future<QueryMetrics>> pending = new ArrayList<Future<QueryMetrics>> ();
+    final Executor subtrees = (executor == null) ? null : executor.getSubtreeExecutor ();
+    long start = System.nanoTime ();
+
+    for (final String qLine : this.queries) {
+      if (executor == null) {
+        pass.metrics.add (evaluate (qLine, null));
+      } else {
+        try {
+          pending.add (executor.submit (new Callable<QueryMetrics> () {
+            public QueryMetrics call () throws IOException {
+              return evaluate (qLine, subtrees);
+            }
+          }));
+        } catch (InterruptedException ex) {
+          Thread.currentThread ().interrupt ();
+          throw new InterruptedIOException ("The benchmark was interrupted");
+        }
+      }
+    }
+
+    for (Future<QueryMetrics> f : pending) {
+      pass.metrics.add (QryEval.getResult (f));
+    }
+
+    pass.wallNanos = System.nanoTime () - start;
+  }
+
+  /**
+   *  Evaluate one query and format its results.
+   *  @param qLine The query, qid:query.
+   *  @param subtrees Initializes subtrees concurrently, or null.
+   *  @return The query's metrics.
+   *  @throws IOException Error accessing the index.
+   */
+  private QueryMetrics evaluate (String qLine, Executor subtrees) throws IOException {
+
+    QueryMetrics metrics = new QueryMetrics (QryEval.getQid (qLine));
+    ScoreList r = QryEval.processQueryLine (qLine, this.model, this.outputLength,
+                                            null, null, subtrees, this.timeout, metrics);
+
+    long start = System.nanoTime ();
+
+    try (TrecRunWriter output = new TrecRunWriter (new ByteArrayOutputStream (), 1 << 16, false)) {
+      output.write (metrics.qid, r, this.outputLength);
+    }
+
+    metrics.addOutput (System.nanoTime () - start, 0);
+    return metrics;
+  }
+
+  /**
+   *  Empty the result cache, if there is one.
+   *  @throws IOException Never; the cache has no on-disk tier.
+   */
+  private void resetCache () throws IOException {
+    QryEval.resultCache =
+      (this.cacheBytes > 0) ? new ResultCache (this.cacheBytes, null) : null;
+  }
+
+  /**
+   *  Run the benchmark.
+   *  @param modes The execution modes.
+   *  @param concurrencies The numbers of queries evaluated at once.
+   *  @param warmupPasses The number of passes that aren't reported.
+   *  @param trials The number of warm passes of each mode and concurrency.
+   *  @return The reported passes.
+   *  @throws IOException Error accessing the index.
+   */
+  List<Pass> run (List<String> modes, List<Integer> concurrencies,
+                         int warmupPasses, int trials)
+    throws IOException {
+
+    List<Pass> passes = new ArrayList<Pass> ();
+
+    resetCache ();
+    Pass cold = new Pass ("cold", "sequential", 1, 0);
+    replay (cold, null);
+    passes.add (cold);
+    report (cold);
+
+    for (int i = 0; i < warmupPasses; i++) {
+      resetCache ();
+      replay (new Pass ("warmup", "sequential", 1, i), null);
+    }
+
+    for (String mode : modes) {
+      for (int concurrency : concurrencies) {
+        QueryExecutor executor = new QueryExecutor (mode, concurrency);
+
+        try {
+          for (int trial = 0; trial < trials; trial++) {
+            resetCache ();
+            Pass warm = new Pass ("warm", mode, concurrency, trial);
+            replay (warm, executor);
+            passes.add (warm);
+            report (warm);
+
+            if (QryEval.resultCache != null) {
+              Pass cached = new Pass ("cached", mode, concurrency, trial);
+              replay (cached, executor);
+              passes.add (cached);
+              report (cached);
+            }
+          }
+        } finally {
+          executor.shutdownNow ();
+        }
+      }
+    }
+
+    return passes;
+  }
+
+  /**
+   *  Print a line about a pass.
+   *  @param pass The pass.
+   */
+  private void report (Pass pass) {
+    long[] latency = pass.times (-1);
+
+    this.console.println (String.format (
+      "%-7s %-8s %4d %3d %9.1f qps  p50 %8.3f  p95 %8.3f  p99 %8.3f  max %8.3f ms",
+      pass.phase, pass.mode, pass.concurrency, pass.trial, pass.qps (),
+      MetricsLog.percentile (latency, 0.50) / 1e6,
+      MetricsLog.percentile (latency, 0.95) / 1e6,
+      MetricsLog.percentile (latency, 0.99) / 1e6,
+      latency[latency.length - 1] / 1e6));
+  }
+
+  /**
+   *  Get the report of a run as JSON.
+   *  @param label The name of the run, or null.
+   *  @param parameters The parameters of the run.
+   *  @param passes The passes.
+   *  @return The report.
+   */
+  static String toJson (String label, Map<String,String> parameters, List<Pass> passes) {
+
+    StringBuilder b = new StringBuilder ();
+
+    b.append ("{\n  \"label\": ").append (QueryMetrics.jsonString ((label == null) ? "" : label))
+      .append (",\n  \"date\": ").append (QueryMetrics.jsonString (
+        new SimpleDateFormat ("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ROOT).format (new Date ())))
+      .append (",\n  \"java\": ").append (QueryMetrics.jsonString (System.getProperty ("java.version")))
+      .append (",\n  \"cores\": ").append (Runtime.getRuntime ().availableProcessors ())
+      .append (",\n  \"parameters\": {");
+
+    String separator = "";
+
+    for (String key : new TreeSet<String> (parameters.keySet ())) {
+      b.append (separator).append ("\n    ").append (QueryMetrics.jsonString (key))
+        .append (": ").append (QueryMetrics.jsonString (parameters.get (key)));
+      separator = ",";
+    }
+
+    b.append ("\n  },\n  \"passes\": [");
+    separator = "";
+
+    for (Pass pass : passes) {
+      b.append (separator).append ("\n    {\"phase\": \"").append (pass.phase)
+        .append ("\", \"mode\": \"").append (pass.mode)
+        .append ("\", \"concurrency\": ").append (pass.concurrency)
+        .append (", \"trial\": ").append (pass.trial)
+        .append (", \"queries\": ").append (pass.metrics.size ())
+        .append (", \"seconds\": ").append (String.format (Locale.ROOT, "%.3f", pass.wallNanos / 1e9))
+        .append (", \"qps\": ").append (String.format (Locale.ROOT, "%.2f", pass.qps ()))
+        .append (", \"cacheHits\": ").append (pass.count (QueryMetrics.CACHE_HIT, false))
+        .append (", \"timedOut\": ").append (pass.count (null, true))
+        .append (",\n     \"latencyMs\": ");
+      appendDistribution (b, pass.times (-1));
+      b.append (",\n     \"phasesMs\": {");
+
+      for (int phase = 0; phase < QueryMetrics.PHASES.length; phase++) {
+        b.append ((phase > 0) ? ", " : "").append ('"')
+          .append (QueryMetrics.PHASES[phase]).append ("\": ");
+        appendDistribution (b, pass.times (phase));
+      }
+
+      b.append ("}}");
+      separator = ",";
+    }
+
+    b.append ("\n  ],\n  \"summary\": [");
+    separator = "";
+
+    //  Summarize the trials of each phase, mode and concurrency.
+
+    Map<String,List<Pass>> groups = new LinkedHashMap<String,List<Pass>> ();
+
+    for (Pass pass : passes) {
+      String key = pass.phase + " " + pass.mode + " " + pass.concurrency;
+
+      if (! groups.containsKey (key)) {
+        groups.put (key, new ArrayList<Pass> ());
+      }
+
+      groups.get (key).add (pass);
+    }
+
+    for (List<Pass> group : groups.values ()) {
+      Pass first = group.get (0);
+      double[] qps = new double[group.size ()];
+      double[] p50 = new double[group.size ()];
+      double[] p99 = new double[group.size ()];
+
+      for (int i = 0; i < group.size (); i++) {
+        long[] latency = group.get (i).times (-1);
+        qps[i] = group.get (i).qps ();
+        p50[i] = MetricsLog.percentile (latency, 0.50) / 1e6;
+        p99[i] = MetricsLog.percentile (latency, 0.99) / 1e6;
+      }
+
+      double mean = 0;
+
+      for (double x : qps) {
+        mean += x;
+      }
+
+      mean /= qps.length;
+
+      double variance = 0;
+
+      for (double x : qps) {
+        variance += (x - mean) * (x - mean);
+      }
+
+      b.append (separator).append ("\n    {\"phase\": \"").append (first.phase)
+        .append ("\", \"mode\": \"").append (first.mode)
+        .append ("\", \"concurrency\": ").append (first.concurrency)
+        .append (", \"trials\": ").append (group.size ())
+        .append (String.format (Locale.ROOT, ", \"qpsMedian\": %.2f, \"qpsMean\": %.2f, \"qpsStddev\": %.2f",
+                                median (qps), mean,
+                                (qps.length > 1) ? Math.sqrt (variance / (qps.length - 1)) : 0.0))
+        .append (String.format (Locale.ROOT, ", \"p50MedianMs\": %.3f, \"p99MedianMs\": %.3f}",
+                                median (p50), median (p99)));
+      separator = ",";
+    }
+
+    return b.append ("\n  ]\n}\n").toString ();
+  }
+
+  /**
+   *  Append the mean, percentiles and maximum of sorted times, in
+   *  milliseconds, as a JSON object.
+   *  @param b The JSON that is built.
+   *  @param sorted The times, in nanoseconds, in ascending order.
+   */
+  private static void appendDistribution (StringBuilder b, long[] sorted) {
+    double sum = 0;
+
+    for (long x : sorted) {
+      sum += x;
+    }
+
+    b.append (String.format (Locale.ROOT,
+      "{\"mean\": %.3f, \"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+      sum / sorted.length / 1e6,
+      MetricsLog.percentile (sorted, 0.50) / 1e6,
+      MetricsLog.percentile (sorted, 0.95) / 1e6,
+      MetricsLog.percentile (sorted, 0.99) / 1e6,
+      sorted[sorted.length - 1] / 1e6));
+  }
+
+  /**
+   *  Get the median of some values.
+   *  @param values The values.  They are sorted.
+   *  @return The median.
+   */
+  private static double median (double[] values) {
+    Arrays.sort (values);
+    int n = values.length;
+    return ((n % 2) == 1) ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+  }
+
+  /**
+   *  Split a comma-separated parameter.
+   *  @param parameters The parameters of the run.
+   *  @param key The parameter.
+   *  @param defaultValue The value if the parameter isn't given.
+   *  @return The values.
+   */
+  private static List<String> getList (Map<String,String> parameters, String key,
+                                       String defaultValue) {
+    List<String> values = new ArrayList<String> ();
+
+    for (String value : (parameters.containsKey (key)
+                         ? parameters.get (key) : defaultValue).split (",")) {
+      if (value.trim ().length () > 0) {
+        values.add (value.trim ().toLowerCase ());
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the index or writing the report.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length != 1) {
+      System.err.println ("Usage:  java ThroughputBenchmark paramFile");
+      System.exit (1);
+    }
+
+    Map<String,String> parameters = QryEval.readParameters (args[0]);
+
+    if (parameters.containsKey ("cache:dir")) {
+      System.out.println ("Warning:  cache:dir is ignored; the cache is memory only");
+    }
+
+    Idx.setDirectoryOptions (DirectoryOptions.fromParameters (parameters));
+    Idx.open (parameters.get ("indexPath"));
+
+    List<Integer> concurrencies = new ArrayList<Integer> ();
+
+    for (String c : getList (parameters, "load:concurrency", "1")) {
+      concurrencies.add (Integer.parseInt (c));
+    }
+
+    int warmupPasses = parameters.containsKey ("load:warmupPasses")
+      ? Integer.parseInt (parameters.get ("load:warmupPasses"))
+      : DEFAULT_WARMUP_PASSES;
+    int trials = parameters.containsKey ("load:trials")
+      ? Integer.parseInt (parameters.get ("load:trials"))
+      : DEFAULT_TRIALS;
+
+    //  Query evaluation prints each query; that would dominate the time.
+
+    PrintStream console = System.out;
+    ThroughputBenchmark benchmark = new ThroughputBenchmark (parameters, console);
+    List<Pass> passes;
+
+    System.setOut (new PrintStream (new OutputStream () {
+      public void write (int b) {
+      }
+      public void write (byte[] b, int offset, int length) {
+      }
+    }));
+
+    try {
+      passes = benchmark.run (getList (parameters, "load:modes", QueryExecutor.POOL),
+                              concurrencies, warmupPasses, trials);
+    } finally {
+      System.setOut (console);
+    }
+
+    String json = toJson (parameters.get ("load:label"), parameters, passes);
+
+    if (parameters.containsKey ("load:outputPath")) {
+      try (Writer output = new FileWriter (parameters.get ("load:outputPath"))) {
+        output.write (json);
+      }
+      console.println ("Wrote " + parameters.get ("load:outputPath"));
+    } else {
+      console.print (json);
+    }
+
+    Idx.stopRefreshTimer ();
+  }
+}
@@ -2,9 +2,23 @@
  *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  A simple timer.
+ *  <p>
+ *  The class also times the phases of query evaluation across a run.
+ *  Code marks a phase with enter and exit, and phases nest:  a phase
+ *  that is entered while another is active is its child, so the same
+ *  phase may appear under different parents.  Each (parent, phase)
+ *  has a {@link LatencyHistogram} of its durations, which phaseReport
+ *  prints as a tree.  Phase timing is off unless setProfiling turns
+ *  it on; then enter and exit only read a flag.  Nesting is per
+ *  thread, so the phases of work that other threads do for a query
+ *  (e.g., concurrent subtree initialization) are at the top of the
+ *  tree.
+ *  </p>
  */
 public class Timer {
 
@@ -18,6 +32,83 @@ public class Timer {
 
   private static final BigDecimal MILLION = new BigDecimal ("1000000");
 
+  //  Phase timing
+
+  private static volatile boolean profiling = false;
+
+  private static final Map<String,Phase> PHASES = new ConcurrentHashMap<String,Phase> ();
+  private static final List<Phase> PHASE_LIST = new ArrayList<Phase> ();
+  private static final Node ROOT = new Node (null);
+
+  private static final ThreadLocal<Stack> STACK = new ThreadLocal<Stack> () {
+    protected Stack initialValue () {
+      return new Stack ();
+    }
+  };
+
+  /**
+   *  A kind of work that is timed, e.g., parse.
+   */
+  public static class Phase {
+    private final String name;
+    private final int id;
+
+    private Phase (String name, int id) {
+      this.name = name;
+      this.id = id;
+    }
+
+    public String getName () {
+      return this.name;
+    }
+  }
+
+  /**
+   *  A phase under a parent phase, and its durations.
+   */
+  private static class Node {
+    private final Phase phase;
+    private final LatencyHistogram histogram = new LatencyHistogram ();
+    private volatile Node[] children = new Node[0];	// By phase id
+
+    private Node (Phase phase) {
+      this.phase = phase;
+    }
+
+    private Node child (Phase p) {
+      Node[] c = this.children;
+
+      if ((p.id < c.length) && (c[p.id] != null)) {
+        return c[p.id];
+      }
+
+      synchronized (this) {
+        c = this.children;
+
+        if (p.id >= c.length) {
+          c = Arrays.copyOf (c, p.id + 1);
+        } else if (c[p.id] != null) {
+          return c[p.id];
+        } else {
+          c = c.clone ();
+        }
+
+        c[p.id] = new Node (p);
+        this.children = c;
+        return c[p.id];
+      }
+    }
+  }
+
+  /**
+   *  The phases that a thread is in.
+   */
+  private static class Stack {
+    private Node[] nodes = new Node[16];
+    private long[] starts = new long[16];
+    private int depth = 0;
+  }
+
   /**
    *  Start the timer.
    *  @throws IllegalStateException If the timer is started again while running.
@@ -71,5 +162,137 @@ public class Timer {
     return result.toString();
 
   }
-  
+
+  /**
+   *  Get a phase, creating it the first time that its name is used.
+   *  Callers keep the phase, e.g., in a static field.
+   *  @param name The name of the phase.
+   *  @return The phase.
+   */
+  public static Phase phase (String name) {
+    Phase p = PHASES.get (name);
+
+    if (p != null) {
+      return p;
+    }
+
+    synchronized (PHASE_LIST) {
+      p = PHASES.get (name);
+
+      if (p == null) {
+        p = new Phase (name, PHASE_LIST.size ());
+        PHASE_LIST.add (p);
+        PHASES.put (name, p);
+      }
+
+      return p;
+    }
+  }
+
+  /**
+   *  Turn phase timing on or off.
+   *  @param on True to time phases.
+   */
+  public static void setProfiling (boolean on) {
+    profiling = on;
+  }
+
+  /**
+   *  Check whether phases are timed.
+   *  @return True if they are.
+   */
+  public static boolean isProfiling () {
+    return profiling;
+  }
+
+  /**
+   *  Enter a phase on the calling thread.  Each enter must be matched
+   *  by an exit, e.g., in a finally block.
+   *  @param p The phase.
+   */
+  public static void enter (Phase p) {
+
+    if (! profiling) {
+      return;
+    }
+
+    Stack s = STACK.get ();
+    Node parent = (s.depth == 0) ? ROOT : s.nodes[s.depth - 1];
+
+    if (s.depth == s.nodes.length) {
+      s.nodes = Arrays.copyOf (s.nodes, 2 * s.depth);
+      s.starts = Arrays.copyOf (s.starts, 2 * s.depth);
+    }
+
+    s.nodes[s.depth] = parent.child (p);
+    s.starts[s.depth] = System.nanoTime ();
+    s.depth++;
+  }
+
+  /**
+   *  Exit the phase that the calling thread entered last, and record
+   *  its duration.
+   */
+  public static void exit () {
+
+    if (! profiling) {
+      return;
+    }
+
+    Stack s = STACK.get ();
+
+    if (s.depth == 0) {
+      return;				// Profiling was turned on inside a phase
+    }
+
+    s.depth--;
+    s.nodes[s.depth].histogram.record (System.nanoTime () - s.starts[s.depth]);
+  }
+
+  /**
+   *  Get the durations of the phases that were timed, as a tree.
+   *  @return The report, one line per phase, or an empty string if
+   *    no phases were timed.
+   */
+  public static String phaseReport () {
+
+    if (ROOT.children.length == 0) {
+      return "";
+    }
+
+    StringBuilder b = new StringBuilder ();
+    b.append (String.format ("%-36s %10s %10s %10s %10s %10s %10s %10s%n",
+                             "Phases (ms)", "n", "total", "mean",
+                             "p50", "p95", "p99", "max"));
+    appendPhases (b, ROOT, 1);
+    return b.toString ();
+  }
+
+  /**
+   *  Append the children of a phase to the report.
+   *  @param b The report.
+   *  @param parent The phase.
+   *  @param depth The depth of the children in the tree.
+   */
+  private static void appendPhases (StringBuilder b, Node parent, int depth) {
+
+    for (Node n : parent.children) {
+      if (n == null) {
+        continue;
+      }
+
+      LatencyHistogram h = n.histogram;
+      char[] indent = new char[2 * depth];
+      Arrays.fill (indent, ' ');
+
+      b.append (String.format ("%-36s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                               new String (indent) + n.phase.name,
+                               h.getCount (), h.getSum () / 1e6, h.getMean () / 1e6,
+                               h.getPercentile (0.50) / 1e6,
+                               h.getPercentile (0.95) / 1e6,
+                               h.getPercentile (0.99) / 1e6,
+                               h.getMax () / 1e6));
+      appendPhases (b, n, depth + 1);
+    }
+  }
 }
@@ -0,0 +1,342 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  TrecRunWriter writes rankings in trec_eval format:
+ *  <pre>
+ *    qid  Q0  externalId  rank  score  fubar
+ *  </pre>
+ *  The file is opened once and written through a large buffer.  Lines
+ *  are built in a reusable buffer without String.format; scores are
+ *  formatted by {@link #appendFixed}, which produces the same text as
+ *  String.format ("%.18f") without allocating.
+ *  <p>
+ *  Each line can also be echoed to the console, as
+ *  <pre>
+ *    qid  Q0  externalId  rank  score  run-1
+ *  </pre>
+ *  with six decimal places.  The echo is flushed after each ranking, so
+ *  it stays in order with other console output.
+ *  </p>
+ */
+public class TrecRunWriter implements Closeable {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The default size of the output buffer, in bytes.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  private static final int FILE_DECIMALS = 18;
+  private static final int CONSOLE_DECIMALS = 6;
+
+  private final Writer output;
+  private final Writer echo;
+  private final StringBuilder line = new StringBuilder (256);
+  private char[] chars = new char[256];
+
+  //  Scratch space for appendFixed.
+
+  private final StringBuilder scratch = new StringBuilder (32);
+  private final byte[] digits = new byte[32];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a run file.
+   *  @param path The file.
+   *  @param append True if rankings are appended to an existing file,
+   *    false if the file is replaced.
+   *  @param bufferSize The size of the output buffer, in bytes.
+   *  @param echo True if lines are echoed to the console.
+   *  @throws IOException Error opening the file.
+   */
+  public TrecRunWriter (String path, boolean append, int bufferSize, boolean echo)
+    throws IOException {
+
+    this (new FileOutputStream (path, append), bufferSize, echo);
+  }
+
+  /**
+   *  Write rankings to a stream, e.g., a socket.
+   *  @param out The stream.  It is closed when the writer is closed.
+   *  @param bufferSize The size of the output buffer, in bytes.
+   *  @param echo True if lines are echoed to the console.
+   */
+  public TrecRunWriter (OutputStream out, int bufferSize, boolean echo) {
+
+    this.output = new BufferedWriter (
+      new OutputStreamWriter (out, StandardCharsets.UTF_8), bufferSize);
+    this.echo = echo
+      ? new BufferedWriter (new OutputStreamWriter (System.out), 1 << 16)
+      : null;
+  }
+
+  /**
+   *  Write the top of a ranking.  If it is empty, a dummy record is
+   *  written, because trec_eval needs a line for every query.
+   *  @param qid The query id.
+   *  @param r The ranking, or null if the query was empty.
+   *  @param n The maximum number of documents to write.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (String qid, ScoreList r, int n) throws IOException {
+
+    if (r == null) {
+      writeDummy (qid, "dummy", false);
+    } else {
+      int len = Math.min (r.size (), n);
+
+      for (int i = 0; i < len; i++) {
+        writeLine (qid, r.getExternalDocid (i), i + 1, r.getDocidScore (i));
+      }
+
+      if (len == 0) {
+        writeDummy (qid, "dummyRecord", true);
+      }
+    }
+
+    if (this.echo != null) {
+      this.echo.flush ();
+    }
+  }
+
+  /**
+   *  Write a line of text as it is, e.g., a protocol message.
+   *  @param text The text, without a line terminator.
+   *  @throws IOException Error writing.
+   */
+  public void writeText (String text) throws IOException {
+    this.output.write (text);
+    this.output.write ('\n');
+  }
+
+  /**
+   *  Write one ranked document.
+   *  @param qid The query id.
+   *  @param externalId The document's external id.
+   *  @param rank The document's rank, starting at 1.
+   *  @param score The document's score.
+   *  @throws IOException Error writing the file.
+   */
+  public void writeLine (String qid, String externalId, int rank, double score)
+    throws IOException {
+
+    appendPrefix (qid, externalId, rank);
+    appendFixed (this.line, score, FILE_DECIMALS);
+    this.line.append ("  fubar\n");
+    flushLine (this.output);
+
+    if (this.echo != null) {
+      appendPrefix (qid, externalId, rank);
+      appendFixed (this.line, score, CONSOLE_DECIMALS);
+      this.line.append ("  run-1\n");
+      flushLine (this.echo);
+    }
+  }
+
+  /**
+   *  Write the record of a query that has no results.
+   *  @param qid The query id.
+   *  @param name The placeholder external id.
+   *  @param echoAsFile True if the console shows the file's line,
+   *    false if it shows a run-1 line.
+   *  @throws IOException Error writing the file.
+   */
+  private void writeDummy (String qid, String name, boolean echoAsFile)
+    throws IOException {
+
+    appendPrefix (qid, name, 1);
+    this.line.append ("0  fubar\n");
+
+    if ((this.echo != null) && echoAsFile) {
+      this.echo.append (this.line);
+    }
+
+    flushLine (this.output);
+
+    if ((this.echo != null) && ! echoAsFile) {
+      appendPrefix (qid, name, 1);
+      appendFixed (this.line, 0.0, CONSOLE_DECIMALS);
+      this.line.append ("  run-1\n");
+      flushLine (this.echo);
+    }
+  }
+
+  /**
+   *  Start a line in the line buffer.
+   *  @param qid The query id.
+   *  @param externalId The document's external id.
+   *  @param rank The document's rank.
+   */
+  private void appendPrefix (String qid, String externalId, int rank) {
+    this.line.setLength (0);
+    this.line.append (qid).append ("  Q0  ").append (externalId)
+      .append ("  ").append (rank).append ("  ");
+  }
+
+  /**
+   *  Copy the line buffer to a writer, and clear it.
+   *  @param w The writer.
+   *  @throws IOException Error writing.
+   */
+  private void flushLine (Writer w) throws IOException {
+    int len = this.line.length ();
+
+    if (len > this.chars.length) {
+      this.chars = new char[Math.max (len, 2 * this.chars.length)];
+    }
+
+    this.line.getChars (0, len, this.chars, 0);
+    w.write (this.chars, 0, len);
+    this.line.setLength (0);
+  }
+
+  /**
+   *  Append a double in fixed-point notation, with the same text as
+   *  String.format ("%.Nf"), without allocating.  Like Formatter, it
+   *  starts from the shortest decimal digits that identify the double
+   *  (the digits of Double.toString, which StringBuilder.append writes
+   *  without allocating), pads them with zeros, and rounds half up.
+   *  @param sb The buffer.
+   *  @param d The double.
+   *  @param decimals The number of digits after the decimal point.
+   */
+  public void appendFixed (StringBuilder sb, double d, int decimals) {
+
+    if (Double.isNaN (d) || Double.isInfinite (d)) {
+      sb.append (d);
+      return;
+    }
+
+    //  Parse the shortest representation, [-]digits.digits[E[-]exp],
+    //  into its digits and the position of the decimal point.
+
+    StringBuilder s = this.scratch;
+    s.setLength (0);
+    s.append (d);
+
+    int i = 0;
+    int nDigits = 0;
+    int point = -1;
+    boolean negative = (s.charAt (0) == '-');
+
+    if (negative) {
+      i++;
+    }
+
+    for (; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if (c == '.') {
+        point = nDigits;
+      } else if (c == 'E') {
+        break;
+      } else {
+        this.digits[nDigits++] = (byte) (c - '0');
+      }
+    }
+
+    if (i < s.length ()) {
+      int exp = 0;
+      boolean negativeExp = (s.charAt (++i) == '-');
+
+      if (negativeExp) {
+        i++;
+      }
+
+      for (; i < s.length (); i++) {
+        exp = 10 * exp + (s.charAt (i) - '0');
+      }
+
+      point += negativeExp ? -exp : exp;
+    }
+
+    //  Digit k of the number is digits[k], with the decimal point
+    //  before digit 'point'.  Round half up at the last kept digit.
+
+    int end = point + decimals;			// Digits [0, end) are kept
+    int carry = 0;
+
+    if (end < nDigits) {
+      if ((end >= 0) && (this.digits[end] >= 5)) {
+        carry = 1;
+      }
+      nDigits = Math.max (end, 0);
+    }
+
+    for (int k = nDigits - 1; (k >= 0) && (carry > 0); k--) {
+      int v = this.digits[k] + carry;
+      this.digits[k] = (byte) (v % 10);
+      carry = v / 10;
+    }
+
+    //  A carry out of the first digit adds a leading 1.
+
+    if (carry > 0) {
+      System.arraycopy (this.digits, 0, this.digits, 1, nDigits);
+      this.digits[0] = 1;
+      nDigits++;
+      point++;
+    }
+
+    if (negative) {
+      sb.append ('-');
+    }
+
+    if (point <= 0) {
+      sb.append ('0');
+    } else {
+      for (int k = 0; k < point; k++) {
+        sb.append ((char) ('0' + digitAt (k, nDigits)));
+      }
+    }
+
+    if (decimals > 0) {
+      sb.append ('.');
+
+      for (int k = point; k < point + decimals; k++) {
+        sb.append ((char) ('0' + digitAt (k, nDigits)));
+      }
+    }
+  }
+
+  /**
+   *  Get a digit of the number that appendFixed is formatting.
+   *  Positions outside of the digits array are zeros.
+   *  @param k The digit's position in the digits array.
+   *  @param nDigits The number of digits in the array.
+   *  @return The digit.
+   */
+  private int digitAt (int k, int nDigits) {
+    return ((k >= 0) && (k < nDigits)) ? this.digits[k] : 0;
+  }
+
+  /**
+   *  Flush the buffer to the file.
+   *  @throws IOException Error writing the file.
+   */
+  public void flush () throws IOException {
+    this.output.flush ();
+
+    if (this.echo != null) {
+      this.echo.flush ();
+    }
+  }
+
+  /**
+   *  Flush the buffer and close the file.
+   *  @throws IOException Error writing the file.
+   */
+  @Override public void close () throws IOException {
+    this.output.close ();
+
+    if (this.echo != null) {
+      this.echo.flush ();				// Don't close System.out
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright (c) 2018, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Warmup prepares an index for fast queries before the first real
+ *  query arrives.  The first queries after startup are slow because
+ *  the index isn't in the page cache, the JIT hasn't compiled the
+ *  query operators, and the caches are empty.
+ *  <p>
+ *  Warm-up is driven by a log of past queries (one query per line,
+ *  optionally preceded by "qid:", like a query file).  It reads the
+ *  postings of the terms that occur most often in the log, loads the
+ *  document lengths and the external id sidecar, and evaluates some
+ *  of the logged queries, discarding their results.
+ *  </p>
+ */
+public class Warmup {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The default number of most frequent terms whose postings are read.
+   */
+  public static final int DEFAULT_TOP_TERMS = 1000;
+
+  /**
+   *  The default number of queries that are evaluated.
+   */
+  public static final int DEFAULT_QUERIES = 100;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Warm up an index.
+   *  @param context The index.
+   *  @param model The retrieval model that queries will use.
+   *  @param queryLogPath A file of past queries.
+   *  @param topTerms The number of most frequent terms whose postings
+   *    are read.
+   *  @param numQueries The number of queries to evaluate.  The log is
+   *    repeated if it is shorter.
+   *  @throws IOException Error accessing the index or the query log.
+   */
+  public static void run (IndexContext context,
+                          RetrievalModel model,
+                          String queryLogPath,
+                          int topTerms,
+                          int numQueries)
+    throws IOException {
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    //  Parse the logged queries, and count how often each term occurs.
+
+    List<String> queries = readQueryLog (queryLogPath);
+    final Map<Term,Integer> termCounts = new HashMap<Term,Integer> ();
+
+    for (String query : queries) {
+      Qry q;
+
+      try {
+        q = QryEval.parseQuery (query, model);
+      } catch (IllegalArgumentException ex) {
+        continue;				// Skip syntax errors
+      }
+
+      if (q == null) {
+        continue;
+      }
+
+      for (QryIop iop : q.getIopArgs (new ArrayList<QryIop> ())) {
+        if (iop instanceof QryIopTerm) {
+          Term term = new Term (iop.getField (), ((QryIopTerm) iop).getTerm ());
+          Integer count = termCounts.get (term);
+          termCounts.put (term, (count == null) ? 1 : count + 1);
+        }
+      }
+    }
+
+    //  Read the postings of the most frequent terms.
+
+    List<Term> terms = new ArrayList<Term> (termCounts.keySet ());
+
+    Collections.sort (terms, new Comparator<Term> () {
+      public int compare (Term t1, Term t2) {
+        int c = termCounts.get (t2).compareTo (termCounts.get (t1));
+        return (c != 0) ? c : t1.compareTo (t2);
+      }
+    });
+
+    terms = terms.subList (0, Math.min (topTerms, terms.size ()));
+    long postings = touchPostings (context, terms);
+
+    //  Load the document lengths and the external ids.
+
+    context.getDocLengthStore ().prefetch (context.getIndexStats ().getFields ());
+
+    if (context.getExternalIdStore () != null) {
+      context.getExternalIdStore ().load ();
+    }
+
+    //  Evaluate queries, so that the JIT compiles the query operators.
+
+    int evaluated = 0;
+
+    for (int i = 0; (i < numQueries) && ! queries.isEmpty (); i++) {
+      try {
+        Qry q = QryEval.parseQuery (queries.get (i % queries.size ()), model);
+
+        if ((q != null) && (q.args.size () > 0)) {
+          q.initialize (model, context);
+          QryEval.iterateQuery (q, model, new ScoreList (context));
+          evaluated++;
+        }
+      } catch (IllegalArgumentException ex) {
+        // Skip syntax errors
+      }
+    }
+
+    timer.stop ();
+    System.out.println ("Warm-up:  " + terms.size () + " terms (" +
+                        postings + " postings), " + evaluated +
+                        " queries, " + timer);
+  }
+
+  /**
+   *  Read a query log.
+   *  @param queryLogPath A file of queries, one per line, each
+   *    optionally preceded by "qid:".
+   *  @return The queries.
+   *  @throws IOException Error reading the file.
+   */
+  private static List<String> readQueryLog (String queryLogPath)
+    throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+
+    try (BufferedReader input = new BufferedReader (new FileReader (queryLogPath))) {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        line = line.substring (line.indexOf (':') + 1).trim ();
+
+        if (line.length () > 0) {
+          queries.add (line);
+        }
+      }
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Read the postings, including positions, of some terms, and cache
+   *  their statistics.
+   *  @param context The index.
+   *  @param terms The terms.
+   *  @return The number of postings that were read.
+   *  @throws IOException Error accessing the index.
+   */
+  private static long touchPostings (IndexContext context, List<Term> terms)
+    throws IOException {
+
+    IndexReader reader = context.getIndexReader ();
+    long postings = 0;
+
+    for (Term term : terms) {
+      context.getDocFreq (term);
+
+      PostingsEnum iList =
+        MultiFields.getTermPositionsEnum (reader, term.field (), term.bytes ());
+
+      if (iList == null) {
+        continue;
+      }
+
+      while (iList.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        for (int i = iList.freq (); i > 0; i--) {
+          iList.nextPosition ();
+        }
+        postings++;
+      }
+    }
+
+    return postings;
+  }
+}